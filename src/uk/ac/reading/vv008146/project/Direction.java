@@ -1,6 +1,6 @@
 package uk.ac.reading.vv008146.project;
 
-import java.util.Random;
+import java.util.SplittableRandom;
 
 /**
  * Simple compass enumeration
@@ -11,11 +11,11 @@ public enum Direction {
 
     /**
      * Return a random direction
+     * @param random SplittableRandom to draw from, e.g. one of the world's streams
      * @return Random Direction
      */
 
-    public static Direction random() {
-        Random r = new Random();
-        return Direction.values()[r.nextInt(Direction.values().length)];
+    public static Direction random(SplittableRandom random) {
+        return Direction.values()[random.nextInt(Direction.values().length)];
     }
 }
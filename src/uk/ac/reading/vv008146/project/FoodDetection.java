@@ -0,0 +1,13 @@
+package uk.ac.reading.vv008146.project;
+
+/**
+ * Ways living beings can find food
+ */
+
+public enum FoodDetection {
+    // Search for the nearest food within the world's food detection distance
+    NEAREST,
+
+    // Follow the scent given off by food and prey, see ScentField
+    SCENT
+}
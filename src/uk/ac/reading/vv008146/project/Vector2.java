@@ -9,6 +9,8 @@ import java.io.Serializable;
 
 public class Vector2 implements Serializable {
 
+    private static final long serialVersionUID = 3920285149361715972L;
+
     private double x;
     private double y;
 
@@ -97,7 +99,93 @@ public class Vector2 implements Serializable {
     }
 
     public double getMagnitude() {
-        return Math.sqrt(Math.pow(this.getX(), 2) + Math.pow(this.getY(), 2));
+        return Math.sqrt(this.lengthSquared());
+    }
+
+    /**
+     * Get the square of this vector's magnitude. Cheaper than getMagnitude(), and good enough for
+     * comparing lengths.
+     *
+     * @return double squared magnitude
+     */
+
+    public double lengthSquared() {
+        return this.getX() * this.getX() + this.getY() * this.getY();
+    }
+
+    /*
+     * The methods below change this vector rather than returning a new one, and return this vector so that
+     * calls can be chained. They're used on hot paths to avoid creating lots of short-lived vectors.
+     */
+
+    /**
+     * Set both components of this vector
+     *
+     * @param x Horizontal component
+     * @param y Vertical component
+     * @return This vector
+     */
+
+    public Vector2 set(double x, double y) {
+        this.setX(x);
+        this.setY(y);
+
+        return this;
+    }
+
+    /**
+     * Copy another vector's components into this vector
+     *
+     * @param vec Vector2 vector to copy
+     * @return This vector
+     */
+
+    public Vector2 set(Vector2 vec) {
+        return this.set(vec.getX(), vec.getY());
+    }
+
+    /**
+     * Add a vector to this vector, in place
+     *
+     * @param vec Vector2 vector to add
+     * @return This vector
+     */
+
+    public Vector2 addInPlace(Vector2 vec) {
+        return this.set(this.getX() + vec.getX(), this.getY() + vec.getY());
+    }
+
+    /**
+     * Subtract a vector from this vector, in place
+     *
+     * @param vec Vector2 vector to subtract
+     * @return This vector
+     */
+
+    public Vector2 subtractInPlace(Vector2 vec) {
+        return this.set(this.getX() - vec.getX(), this.getY() - vec.getY());
+    }
+
+    /**
+     * Multiply this vector by a scalar value, in place
+     *
+     * @param value Value to multiply by
+     * @return This vector
+     */
+
+    public Vector2 scalarMultiplyInPlace(double value) {
+        return this.set(this.getX() * value, this.getY() * value);
+    }
+
+    /**
+     * Divide this vector by a scalar value, in place
+     *
+     * @param value Value to divide by
+     * @return This vector
+     */
+
+    public Vector2 scalarDivideInPlace(double value) {
+        return this.set(this.getX() / value, this.getY() / value);
     }
 
     @Override
@@ -1,13 +1,24 @@
 package uk.ac.reading.vv008146.project;
 
-import javafx.scene.paint.Color;
 import uk.ac.reading.vv008146.project.behaviour.BoidFlock;
+import uk.ac.reading.vv008146.project.behaviour.ParallelFlockEngine;
 import uk.ac.reading.vv008146.project.entities.*;
 import uk.ac.reading.vv008146.project.generation.SimplexNoise;
+import uk.ac.reading.vv008146.project.persistence.CheckpointWriter;
+import uk.ac.reading.vv008146.project.persistence.SnapshotFile;
+import uk.ac.reading.vv008146.project.persistence.WorldSnapshot;
+import uk.ac.reading.vv008146.project.simulation.RandomStreams;
+import uk.ac.reading.vv008146.project.simulation.SimulationClock;
+import uk.ac.reading.vv008146.project.spatial.FlowField;
+import uk.ac.reading.vv008146.project.spatial.ObstacleIndex;
+import uk.ac.reading.vv008146.project.spatial.OccupancyBitmap;
+import uk.ac.reading.vv008146.project.spatial.ScentField;
+import uk.ac.reading.vv008146.project.spatial.SpatialHashGrid;
 
 import java.io.*;
 import java.util.*;
-import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 import java.util.prefs.Preferences;
 
 /**
@@ -16,22 +27,91 @@ import java.util.prefs.Preferences;
 
 public class World implements Serializable {
 
+    private static final long serialVersionUID = 8462064631576807766L;
+
+    // Size (px) of each cell in the spatial indexes. Roughly the size of a sprite, and small enough that
+    // food detection only needs to visit a few cells
+    private static final double SPATIAL_CELL_SIZE = 32;
+
+    // How long a wandering being heads for the same goal before picking a new one
+    private static final long RANDOM_MOVEMENT_TICKS = SimulationClock.secondsToTicks(5);
+
+    // Food only grows where the noise map is at least this high
+    private static final double FOOD_NOISE_THRESHOLD = 0.6;
+
+    // Flow field cells are coarser than the spatial grid, as they only need to lead beings around walls
+    private static final double FLOW_FIELD_CELL_SIZE = 16;
+
+    // Shortest time between working out the flow field again after a patch has been eaten out
+    private static final long FLOW_FIELD_REBUILD_TICKS = SimulationClock.secondsToTicks(0.5);
+
     private int width;
     private int height;
     private Map<UUID, Entity> entities;
 
+    // Entities split up by kind, each with its own spatial index. Rebuilt from the entity map when the
+    // world is loaded
+    private transient EntityPartition<Food> food;
+    private transient EntityPartition<Obstacle> obstacles;
+    private transient EntityPartition<LivingBeing> beings;
+    private transient EntityPartition<GraveMarker> graveMarkers;
+
+    // Whether the state of living beings should be kept in a structure-of-arrays store
+    private boolean useEntityStore;
+    private transient EntityStore store;
+
+    // One bit per pixel, set where an obstacle stands
+    private transient OccupancyBitmap blockedPositions;
+
+    // Built once the world has been generated, and rebuilt on the next tick if obstacles are added or removed
+    private transient ObstacleIndex obstacleIndex;
+
     private Map<String, BoidFlock> flockMap;
 
+    // Whether flocks should be simulated on several threads at once
+    private boolean parallelFlocks;
+    private transient ParallelFlockEngine flockEngine;
+
+    // How beings that aren't in a flock find food. Worlds saved before this was added have none, and use
+    // NEAREST
+    private FoodDetection foodDetection;
+    private transient ScentField scentField;
+
+    // Set when food has been added, removed or moved, so the scent field's food sources need adding again
+    private transient boolean scentSourcesStale;
+
+    // Leads beings that haven't found food towards food patches, and around obstacles
+    private boolean flowFields;
+    private transient FlowField flowField;
+    private transient long lastFlowFieldRebuild;
+
+    // Number of ticks simulated so far
+    private long tick;
+
+    // Entities that have moved, or been eaten, died or respawned since the changes were last taken. Only
+    // recorded while something wants them, see setTrackChanges
+    private transient boolean trackChanges;
+    private transient List<Entity> changes;
+
+    // Goes up whenever an entity is added to or removed from the world
+    private transient int populationVersion;
+
     private Vector2 minimumPosition;
     private Vector2 maximumPosition;
 
-    private Color backgroundColor;
-
     private int foodDetectionDistance;
 
     private int populationLimit;
 
-    private double[][] noise;
+    // Every random number in the world is worked out from this, see RandomStreams
+    private long randomSeed;
+
+    // Streams drawn from while the world is built, created from the seed when first needed
+    private transient SplittableRandom[] randoms;
+
+    // Volatile, as it may be loaded on first use by whichever thread asks for it first
+    private volatile double[][] noise;
+    private transient Supplier<double[][]> noiseLoader;
 
     Preferences preferences;
 
@@ -45,10 +125,13 @@ public class World implements Serializable {
 
         this.width = 5;
         this.height = 5;
+        this.randomSeed = RandomStreams.newSeed();
         this.entities = new HashMap<>();
         this.populationLimit = this.width * this.height;
         this.foodDetectionDistance = 4;
         this.setupMinMaxPositions();
+        this.setupPartitions();
+        this.flockMap = new HashMap<>();
 
         //this.boidTestFlock = new BoidFlock(new ArrayList<LivingBeing>(), new Vector2(0, 0), new Vector2(this.width, this.height), this);
     }
@@ -92,9 +175,352 @@ public class World implements Serializable {
     public World(int width, int height, int numEntities) {
         this.width = width;
         this.height = height;
+        this.randomSeed = RandomStreams.newSeed();
         this.entities = new HashMap<>();
         this.populationLimit = numEntities;
         this.setupMinMaxPositions();
+        this.setupPartitions();
+        this.flockMap = new HashMap<>();
+    }
+
+    /**
+     * Get the seed every random number in the world is worked out from
+     * @return long seed
+     */
+
+    public long getRandomSeed() {
+        return randomSeed;
+    }
+
+    /**
+     * Set the seed every random number in the world is worked out from. Streams already drawn from start
+     * again from the new seed.
+     *
+     * @param randomSeed long seed
+     */
+
+    public void setRandomSeed(long randomSeed) {
+        this.randomSeed = randomSeed;
+        this.randoms = null;
+    }
+
+    /**
+     * Get one of the streams of random numbers drawn from while the world is built. Not thread safe, so
+     * only to be used from whichever thread is building or simulating the world.
+     *
+     * @param stream int stream, e.g. RandomStreams.PLACEMENT
+     * @return SplittableRandom
+     */
+
+    public SplittableRandom getRandom(int stream) {
+        if(this.randoms == null) {
+            this.randoms = new SplittableRandom[RandomStreams.STREAMS];
+        }
+
+        if(this.randoms[stream] == null) {
+            this.randoms[stream] = new SplittableRandom(RandomStreams.seedOf(this.randomSeed, stream));
+        }
+
+        return this.randoms[stream];
+    }
+
+    /**
+     * Get the first random number for an entity on this tick. Doesn't change any state, so it can be
+     * called from any thread, and gives the same number however many times it's called.
+     *
+     * @param stream int stream, e.g. RandomStreams.WANDERING
+     * @param e Entity to get the number for
+     * @return long random number, see RandomStreams for turning it into something useful
+     */
+
+    public long random(int stream, Entity e) {
+        return RandomStreams.start(this.randomSeed, stream, RandomStreams.keyOf(e.getUuid()), this.tick);
+    }
+
+    /**
+     * Setup empty partitions and blocked positions, ready for entities to be added
+     */
+
+    private void setupPartitions() {
+        this.food = new EntityPartition<>(this.width, this.height, SPATIAL_CELL_SIZE);
+        this.obstacles = new EntityPartition<>(this.width, this.height, SPATIAL_CELL_SIZE);
+        this.beings = new EntityPartition<>(this.width, this.height, SPATIAL_CELL_SIZE);
+        this.graveMarkers = new EntityPartition<>(this.width, this.height, SPATIAL_CELL_SIZE);
+        this.blockedPositions = new OccupancyBitmap(this.width, this.height);
+    }
+
+    /**
+     * Add an entity to the partition for its kind
+     * @param e Entity to add
+     */
+
+    private void partition(Entity e) {
+        if(e instanceof Food) {
+            this.food.add((Food) e);
+        } else if(e instanceof LivingBeing) {
+            this.beings.add((LivingBeing) e);
+        } else if(e instanceof Obstacle) {
+            this.obstacles.add((Obstacle) e);
+            this.blockedPositions.set(e.getPosition().getX(), e.getPosition().getY());
+        } else if(e instanceof GraveMarker) {
+            this.graveMarkers.add((GraveMarker) e);
+        }
+    }
+
+    /**
+     * Remove an entity from the partition for its kind
+     * @param e Entity to remove
+     */
+
+    private void unpartition(Entity e) {
+        if(e instanceof Food) {
+            this.food.remove(e);
+        } else if(e instanceof LivingBeing) {
+            this.beings.remove(e);
+        } else if(e instanceof Obstacle) {
+            this.obstacles.remove(e);
+        } else if(e instanceof GraveMarker) {
+            this.graveMarkers.remove(e);
+        }
+    }
+
+    /**
+     * Get the spatial index that holds entities of the same kind as the given entity
+     * @param e Entity
+     * @return SpatialHashGrid, or null if the kind of entity isn't partitioned
+     */
+
+    private SpatialHashGrid spatialIndexOf(Entity e) {
+        if(e instanceof Food) {
+            return this.food.getSpatialIndex();
+        } else if(e instanceof LivingBeing) {
+            return this.beings.getSpatialIndex();
+        } else if(e instanceof Obstacle) {
+            return this.obstacles.getSpatialIndex();
+        } else if(e instanceof GraveMarker) {
+            return this.graveMarkers.getSpatialIndex();
+        }
+
+        return null;
+    }
+
+    /**
+     * Rebuild the partitions and blocked positions after the world has been deserialized, as they
+     * aren't saved with the world.
+     *
+     * @param in Stream the world is being read from
+     * @throws IOException If the world can't be read
+     * @throws ClassNotFoundException If a class in the saved world can't be found
+     */
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+
+        this.setupPartitions();
+
+        for(Entity e : this.entities.values()) {
+            this.partition(e);
+        }
+
+        // Worlds saved before flocks were set up in the constructor may not have a flock map
+        if(this.flockMap == null) {
+            this.flockMap = new HashMap<>();
+        }
+
+        if(this.useEntityStore) {
+            this.useEntityStore = false;
+            this.setUseEntityStore(true);
+        }
+    }
+
+    /**
+     * Choose whether the state of living beings is kept in a structure-of-arrays EntityStore. With the
+     * store enabled, the per-tick starvation checks and movement run as tight loops over primitive arrays,
+     * which scales much better to very large numbers of beings. Food and obstacles barely change, so they
+     * keep their state in their own fields.
+     *
+     * @param useEntityStore Boolean use the store?
+     */
+
+    public void setUseEntityStore(boolean useEntityStore) {
+        if(useEntityStore == this.useEntityStore) {
+            return;
+        }
+
+        this.useEntityStore = useEntityStore;
+
+        if(useEntityStore) {
+            this.store = new EntityStore(this.beings.size());
+
+            for(int i = 0; i < this.beings.size(); i++) {
+                this.store.attach(this.beings.get(i));
+            }
+        } else {
+            for(int i = 0; i < this.beings.size(); i++) {
+                this.store.detach(this.beings.get(i));
+            }
+
+            this.store = null;
+        }
+    }
+
+    /**
+     * Returns whether the state of living beings is kept in a structure-of-arrays EntityStore
+     * @return Boolean
+     */
+
+    public boolean isUseEntityStore() {
+        return useEntityStore;
+    }
+
+    /**
+     * Choose whether flocks are simulated on several threads at once with a ParallelFlockEngine, or one
+     * boid at a time with BoidFlock.simulateFlock()
+     *
+     * @param parallelFlocks Boolean
+     */
+
+    public void setParallelFlocks(boolean parallelFlocks) {
+        this.parallelFlocks = parallelFlocks;
+
+        if(!parallelFlocks) {
+            this.flockEngine = null;
+        }
+    }
+
+    /**
+     * Check whether flocks are simulated on several threads at once
+     * @return Boolean
+     */
+
+    public boolean isParallelFlocks() {
+        return parallelFlocks;
+    }
+
+    /**
+     * Choose how beings that aren't part of a flock find food. NEAREST searches for the nearest food within
+     * the food detection distance, which costs more the more food and beings there are. SCENT keeps a
+     * ScentField that food and prey give off into, and beings follow the scent instead, which costs the
+     * same however much food there is.
+     *
+     * @param foodDetection FoodDetection
+     */
+
+    public void setFoodDetection(FoodDetection foodDetection) {
+        this.foodDetection = foodDetection;
+
+        if(foodDetection != FoodDetection.SCENT) {
+            this.scentField = null;
+        }
+    }
+
+    /**
+     * Get how beings that aren't part of a flock find food
+     * @return FoodDetection
+     */
+
+    public FoodDetection getFoodDetection() {
+        return foodDetection == null ? FoodDetection.NEAREST : foodDetection;
+    }
+
+    /**
+     * Choose whether the world keeps a FlowField leading to the food patches on its noise map. Beings that
+     * haven't found food follow it instead of wandering at random, and beings that find their way blocked
+     * use it to get around.
+     *
+     * @param flowFields Boolean
+     */
+
+    public void setFlowFields(boolean flowFields) {
+        this.flowFields = flowFields;
+
+        if(!flowFields) {
+            this.flowField = null;
+        }
+    }
+
+    /**
+     * Check whether the world keeps a flow field leading to food patches
+     * @return Boolean
+     */
+
+    public boolean isFlowFields() {
+        return flowFields;
+    }
+
+    /**
+     * Get the world's flow field
+     * @return FlowField, or null if flow fields are off or no tick has been simulated since they were
+     * turned on or the food or obstacles in the world changed
+     */
+
+    public FlowField getFlowField() {
+        return flowField;
+    }
+
+    /**
+     * Build a flow field from the noise map, obstacles and food in the world
+     */
+
+    private void buildFlowField() {
+        FlowField field = new FlowField(this.width, this.height, FLOW_FIELD_CELL_SIZE);
+        double[][] noise = this.getNoise();
+
+        for(int row = 0; row < field.getRows(); row++) {
+            for(int column = 0; column < field.getColumns(); column++) {
+                // Worlds without a noise map can grow food anywhere
+                int x = (int) Math.min(this.width - 1, (column + 0.5) * FLOW_FIELD_CELL_SIZE);
+                int y = (int) Math.min(this.height - 1, (row + 0.5) * FLOW_FIELD_CELL_SIZE);
+
+                if(noise == null || noise[x][y] >= FOOD_NOISE_THRESHOLD) {
+                    field.setPatch(column, row);
+                }
+            }
+        }
+
+        for(int i = 0; i < this.obstacles.size(); i++) {
+            field.block(this.obstacles.get(i).getPosition().getX(), this.obstacles.get(i).getPosition().getY());
+        }
+
+        for(int i = 0; i < this.food.size(); i++) {
+            Food f = this.food.get(i);
+
+            if(f.getEnergy() > 0) {
+                field.foodGrown(f.getPosition().getX(), f.getPosition().getY());
+            }
+        }
+
+        field.rebuild();
+
+        this.flowField = field;
+        this.lastFlowFieldRebuild = this.tick;
+    }
+
+    /**
+     * Get the world's scent field
+     * @return ScentField, or null if beings aren't finding food by scent or no tick has been simulated yet
+     */
+
+    public ScentField getScentField() {
+        return scentField;
+    }
+
+    /**
+     * Get the number of ticks simulated so far
+     * @return long tick
+     */
+
+    public long getTick() {
+        return tick;
+    }
+
+    /**
+     * Set the number of ticks simulated so far, e.g. when restoring a saved world
+     * @param tick long tick
+     */
+
+    public void setTick(long tick) {
+        this.tick = tick;
     }
 
     /**
@@ -124,6 +550,24 @@ public class World implements Serializable {
         return entities;
     }
 
+    /**
+     * Get the most entities the world can hold
+     * @return int population limit
+     */
+
+    public int getPopulationLimit() {
+        return populationLimit;
+    }
+
+    /**
+     * Get the world's flocks
+     * @return Map of species name to the flock of that species
+     */
+
+    public Map<String, BoidFlock> getFlocks() {
+        return flockMap;
+    }
+
     /**
      * Add entity to the world
      * @param e Entity object
@@ -133,11 +577,298 @@ public class World implements Serializable {
 
         if(this.entities.size() < this.populationLimit) {
             this.entities.put(e.getUuid(), e);
+            this.partition(e);
+
+            // Only beings change often enough to be worth keeping in the store
+            if(this.store != null && e instanceof LivingBeing) {
+                this.store.attach(e);
+            }
+
+            if(e instanceof Obstacle) {
+                this.obstacleIndex = null;
+            }
+
+            if(e instanceof Food || e instanceof Obstacle) {
+                this.flowField = null;
+            }
+
+            if(e instanceof Food) {
+                this.scentSourcesStale = true;
+            }
+
+            this.populationVersion++;
+            this.entityChanged(e);
         } else {
             System.out.println("World is full!");
         }
     }
 
+    /**
+     * Remove an entity from the world
+     * @param e Entity object
+     */
+
+    public void removeEntity(Entity e) {
+        if(this.entities.remove(e.getUuid()) != null) {
+            this.unpartition(e);
+
+            if(this.store != null) {
+                this.store.detach(e);
+            }
+
+            if(e instanceof Obstacle) {
+                this.unblock(e.getPosition().getX(), e.getPosition().getY());
+                this.obstacleIndex = null;
+            }
+
+            if(e instanceof Food || e instanceof Obstacle) {
+                this.flowField = null;
+            }
+
+            if(e instanceof Food) {
+                this.scentSourcesStale = true;
+            }
+
+            this.populationVersion++;
+            this.entityChanged(e);
+        }
+    }
+
+    /**
+     * Clear a blocked position after an obstacle has been removed, unless another obstacle is still
+     * standing on the same pixel.
+     *
+     * @param x X coordinate of the removed obstacle
+     * @param y Y coordinate of the removed obstacle
+     */
+
+    private void unblock(double x, double y) {
+        this.blockedPositions.clear(x, y);
+
+        this.obstacles.getSpatialIndex().forEachInRange(x, y, 1, e -> {
+            if(Math.floor(e.getPosition().getX()) == Math.floor(x) && Math.floor(e.getPosition().getY()) == Math.floor(y)) {
+                this.blockedPositions.set(x, y);
+            }
+        });
+    }
+
+    /**
+     * Keep the spatial indexes up to date with an entity's position. Called by the entity whenever its
+     * position is set.
+     *
+     * @param e Entity which has moved
+     */
+
+    public void entityMoved(Entity e) {
+        // Entities are given positions before the partitions exist while being deserialized
+        if(this.food == null) {
+            return;
+        }
+
+        SpatialHashGrid index = this.spatialIndexOf(e);
+
+        if(index != null) {
+            index.update(e);
+        }
+
+        // Food has moved from one cell to another without the flow field or scent field knowing
+        if(e instanceof Food) {
+            this.flowField = null;
+            this.scentSourcesStale = true;
+        }
+
+        this.entityChanged(e);
+    }
+
+    /**
+     * Record that an entity has run out of energy, e.g. by being eaten, or has got some back. Called by
+     * the entity itself.
+     *
+     * @param e Entity whose energy has run out or come back
+     */
+
+    public void entityEnergyChanged(Entity e) {
+        // Only food that's in the world counts towards a patch
+        if(this.flowField != null && e instanceof Food && e.getSpatialCell() >= 0) {
+            if(e.getEnergy() > 0) {
+                this.flowField.foodGrown(e.getPosition().getX(), e.getPosition().getY());
+            } else {
+                this.flowField.foodEaten(e.getPosition().getX(), e.getPosition().getY());
+            }
+        }
+
+        // Food only gives off scent while it has energy left
+        if(this.scentField != null && !this.scentSourcesStale && e instanceof Food && e.getSpatialCell() >= 0) {
+            this.scentField.addSource(ScentField.FOOD, e.getPosition().getX(), e.getPosition().getY(), e.getEnergy() > 0 ? 1 : -1);
+        }
+
+        this.entityChanged(e);
+    }
+
+    /**
+     * Record that an entity has moved, or has been eaten, died or respawned, so whatever is drawing the
+     * world knows to update it. Each entity is only recorded once until the changes are taken.
+     *
+     * @param e Entity which has changed
+     */
+
+    public void entityChanged(Entity e) {
+        if(!this.trackChanges || e.isChanged()) {
+            return;
+        }
+
+        e.setChanged(true);
+        this.changes.add(e);
+    }
+
+    /**
+     * Go through every entity that has changed since the changes were last taken, and forget about them
+     * @param action Consumer to give each changed entity to
+     */
+
+    public void takeChanges(Consumer<Entity> action) {
+        if(this.changes == null) {
+            return;
+        }
+
+        for(int i = 0; i < this.changes.size(); i++) {
+            Entity e = this.changes.get(i);
+            e.setChanged(false);
+            action.accept(e);
+        }
+
+        this.changes.clear();
+    }
+
+    /**
+     * Choose whether to record which entities change each tick. Off by default, as nothing needs the
+     * changes when the world is simulated without being drawn.
+     *
+     * @param trackChanges Boolean record changes?
+     */
+
+    public void setTrackChanges(boolean trackChanges) {
+        if(trackChanges && this.changes == null) {
+            this.changes = new ArrayList<>();
+        }
+
+        if(!trackChanges) {
+            this.takeChanges(e -> {});
+        }
+
+        this.trackChanges = trackChanges;
+    }
+
+    /**
+     * Check whether the world is recording which entities change each tick
+     * @return Boolean
+     */
+
+    public boolean isTrackChanges() {
+        return trackChanges;
+    }
+
+    /**
+     * Get a number that goes up whenever an entity is added to or removed from the world, so anything
+     * built from the world's entities can tell when it needs rebuilding
+     *
+     * @return int version
+     */
+
+    public int getPopulationVersion() {
+        return populationVersion;
+    }
+
+    /**
+     * Get all of the food in the world
+     * @return EntityPartition of food
+     */
+
+    public EntityPartition<Food> getFood() {
+        return food;
+    }
+
+    /**
+     * Get all of the living beings in the world
+     * @return EntityPartition of living beings
+     */
+
+    public EntityPartition<LivingBeing> getBeings() {
+        return beings;
+    }
+
+    /**
+     * Get all of the obstacles in the world
+     * @return EntityPartition of obstacles
+     */
+
+    public EntityPartition<Obstacle> getObstacles() {
+        return obstacles;
+    }
+
+    /**
+     * Get all of the grave markers in the world
+     * @return EntityPartition of grave markers
+     */
+
+    public EntityPartition<GraveMarker> getGraveMarkers() {
+        return graveMarkers;
+    }
+
+    /**
+     * Visit every entity in (or just around) a rectangle of the world, using the spatial indexes so that
+     * entities far from the rectangle are never looked at. Entities are visited one kind at a time, with
+     * living beings last, which suits drawing them.
+     *
+     * @param minX Left edge of the rectangle
+     * @param minY Top edge of the rectangle
+     * @param maxX Right edge of the rectangle
+     * @param maxY Bottom edge of the rectangle
+     * @param action Called once for each entity found
+     */
+
+    public void forEachInArea(double minX, double minY, double maxX, double maxY, Consumer<Entity> action) {
+        this.food.getSpatialIndex().forEachInArea(minX, minY, maxX, maxY, action);
+        this.obstacles.getSpatialIndex().forEachInArea(minX, minY, maxX, maxY, action);
+        this.graveMarkers.getSpatialIndex().forEachInArea(minX, minY, maxX, maxY, action);
+        this.beings.getSpatialIndex().forEachInArea(minX, minY, maxX, maxY, action);
+    }
+
+    /**
+     * Find the closest obstacle that is strictly within range of a position. Uses the obstacle index
+     * once it has been built, and falls back to the spatial index while the world is still being
+     * populated.
+     *
+     * @param x X coordinate
+     * @param y Y coordinate
+     * @param range Distance to search
+     * @return Entity closest obstacle, or null if there isn't one in range
+     */
+
+    public Entity findNearestObstacle(double x, double y, double range) {
+        if(this.obstacleIndex != null) {
+            return this.obstacleIndex.findNearest(x, y, range);
+        }
+
+        Entity closest = this.obstacles.getSpatialIndex().findNearest(x, y, range, e -> true);
+
+        // The obstacle index only returns obstacles strictly within range
+        if(closest != null && closest.getPosition().subtract(new Vector2(x, y)).getMagnitude() >= range) {
+            return null;
+        }
+
+        return closest;
+    }
+
+    /**
+     * Build the obstacle index from the obstacles currently in the world. Obstacles never move, so this
+     * only needs to happen once the world has been generated.
+     */
+
+    private void buildObstacleIndex() {
+        this.obstacleIndex = new ObstacleIndex(this.obstacles.toList());
+    }
+
     /**
      * @return String representation of world
      */
@@ -165,9 +896,24 @@ public class World implements Serializable {
      * @param seed
      */
     public static World fromText(String seed, int maxEntities, int foodDetectionDistance, List<String> food) {
+        return fromText(seed, maxEntities, foodDetectionDistance, food, RandomStreams.newSeed());
+    }
+
+    /**
+     * Seed format WORLD_WIDTH WORLD_HEIGHT PERCENT_FOOD PERCENT_OBSTACLES [ANIMAL QUANTITY]*. The same
+     * seed, random seed and templates always give the same world.
+     *
+     * @param seed Seed to generate world from
+     * @param maxEntities Maximum number of entities in the world
+     * @param foodDetectionDistance How far away beings can see food
+     * @param food Names of the food templates to place
+     * @param randomSeed long seed for every random number in the world
+     * @return World
+     */
+
+    public static World fromText(String seed, int maxEntities, int foodDetectionDistance, List<String> food, long randomSeed) {
 
         Preferences preferences = Preferences.userRoot().node("life-simulation");
-        Random rng = new Random();
 
         // Split the seed to get individual properties from it
         String[] splitString = seed.split(" ");
@@ -181,6 +927,9 @@ public class World implements Serializable {
 
         // Create a new world
         World world = new World(width, height, maxEntities);
+        world.setRandomSeed(randomSeed);
+
+        SplittableRandom rng = world.getRandom(RandomStreams.PLACEMENT);
 
         // Generate a noise map used to distribute food
         world.generateNoise();
@@ -194,8 +943,6 @@ public class World implements Serializable {
         // Add food to the world
         float foodPercentageMultiplier = (float) foodPercent / 100;
         int foodQuantity = Math.round((area * foodPercentageMultiplier));
-        double foodThreshold = 0.6;
-
         for(int j = 0; j < foodQuantity; j++) {
             boolean positionFound = false;
 
@@ -204,7 +951,7 @@ public class World implements Serializable {
             do {
                 randomPos = world.findRandomEmptyPosition();
 
-                if(world.getNoise()[randomPos[0]][randomPos[1]] >= foodThreshold) {
+                if(world.getNoise()[randomPos[0]][randomPos[1]] >= FOOD_NOISE_THRESHOLD) {
                     positionFound = true;
                 }
 
@@ -265,6 +1012,9 @@ public class World implements Serializable {
 
         world.foodDetectionDistance = foodDetectionDistance;
 
+        // Obstacles are all in place, so index them
+        world.buildObstacleIndex();
+
         return world;
     }
 
@@ -279,10 +1029,10 @@ public class World implements Serializable {
         // Noise generation
         this.noise = new double[width][height];
         double scaling = 0.007;
-        Random rng = new Random();
-        double seed = rng.nextDouble();
+        double seed = this.getRandom(RandomStreams.NOISE).nextDouble();
 
-        System.out.println("Noise seed: " + seed);
+        // Enough to generate the same world again
+        System.out.println("Noise seed: " + seed + " (random seed " + this.randomSeed + ")");
 
         for(int x = 0; x < this.getWidth(); x++) {
             for(int y = 0; y < this.getHeight(); y++) {
@@ -298,6 +1048,19 @@ public class World implements Serializable {
      */
 
     public static World fromText(String seed) {
+        return fromText(seed, RandomStreams.newSeed());
+    }
+
+    /**
+     * Seed format WORLD_WIDTH WORLD_HEIGHT PERCENT_FOOD PERCENT_OBSTACLES [ANIMAL QUANTITY]*. The same
+     * seed and random seed always give the same world.
+     *
+     * @param seed Seed to generate world from
+     * @param randomSeed long seed for every random number in the world
+     * @return World
+     */
+
+    public static World fromText(String seed, long randomSeed) {
         String[] splitString = seed.split(" ");
 
         int width = Integer.parseInt(splitString[0]);
@@ -308,6 +1071,7 @@ public class World implements Serializable {
         int obstaclesPercent = Integer.parseInt(splitString[3]);
 
         World world = new World(width, height, width*height);
+        world.setRandomSeed(randomSeed);
         world.generateNoise();
         world.setupMinMaxPositions();
 
@@ -330,6 +1094,8 @@ public class World implements Serializable {
             world.addEntity(new Obstacle(randomPosAsVec, world));
         }
 
+        world.buildObstacleIndex();
+
         world.foodDetectionDistance = 15;
 
         for(int i = 4; i < splitString.length - 1; i+= 2) {
@@ -347,52 +1113,31 @@ public class World implements Serializable {
     }
 
     /**
-     * Save a world to a file which can be loaded again later. Uses Java's Serializable capabilities.
+     * Save a world to a file which can be loaded again later
      * @param path Path to save world to
+     * @see World#save(String)
      */
 
     public void toFile(String path) {
-        // Export the world to a file
-        FileOutputStream fileOS = null;
-        try {
-            fileOS = new FileOutputStream(path);
-            ObjectOutputStream objectOS = new ObjectOutputStream(fileOS);
-
-            objectOS.writeObject(this);
-            objectOS.close();
-            fileOS.close();
-
-        } catch(IOException io) {
-            io.printStackTrace();
-        }
+        this.save(path);
     }
 
     /**
-     * Load a saved world from a file. The path must be exist and be a world file saved by the current
-     * version of the application.
+     * Load a saved world from a file. The path must be exist and be a world file saved by the application.
      *
      * @param path Path to world
      * @return World
+     * @see World#load(String)
      */
 
     public static World fromFile(String path) {
-        World world = null;
-
-        try {
-            FileInputStream fileIS = new FileInputStream(path);
-            ObjectInputStream objectIS = new ObjectInputStream(fileIS);
-            world = (World) objectIS.readObject();
-            return world;
-
-        } catch(IOException | ClassNotFoundException io) {
-            io.printStackTrace();
-        }
-
-        return world;
+        return load(path);
     }
 
     /**
-     * Check whether this tile is blocked by an obstacle
+     * Check whether this tile is blocked by an obstacle. Positions are rounded down to the pixel they
+     * fall in, and only obstacles block movement.
+     *
      * @param x X coordinate
      * @param y Y coordinate
      * @return Boolean
@@ -401,19 +1146,16 @@ public class World implements Serializable {
      */
 
     public boolean blocked(double x, double y) {
-        boolean blocked = false;
+        return this.blockedPositions.isSet(x, y);
+    }
 
-        for(Entity e : this.entities.values()) {
-            if(e != null) {
-                if(e.getPosition().getX() == x && e.getPosition().getY() == y) {
-                    if(!(e instanceof Food)) {
-                        blocked = true;
-                    }
-                }
-            }
-        }
+    /**
+     * Get the pixels blocked by obstacles, for checking whether a step can be taken
+     * @return OccupancyBitmap
+     */
 
-        return blocked;
+    public OccupancyBitmap getBlockedPositions() {
+        return blockedPositions;
     }
 
     /**
@@ -426,7 +1168,7 @@ public class World implements Serializable {
 
     public int[] findRandomEmptyPosition() {
 
-        Random rng = new Random();
+        SplittableRandom rng = this.getRandom(RandomStreams.PLACEMENT);
         int[] toReturn = new int[2];
 
         toReturn[0] = rng.nextInt(this.getWidth() - 1);
@@ -444,15 +1186,16 @@ public class World implements Serializable {
      int totalEntityEnergy() {
         int sum = 0;
 
-        for(Entity e : this.entities.values()) {
+        for(int i = 0; i < this.beings.size(); i++) {
+            sum+= this.beings.get(i).getEnergy();
+        }
 
-            if(e == null) {
-                continue;
-            }
+        for(int i = 0; i < this.obstacles.size(); i++) {
+            sum+= this.obstacles.get(i).getEnergy();
+        }
 
-            if(!(e instanceof Food)) {
-                sum+= e.getEnergy();
-            }
+        for(int i = 0; i < this.graveMarkers.size(); i++) {
+            sum+= this.graveMarkers.get(i).getEnergy();
         }
 
         return sum;
@@ -464,20 +1207,7 @@ public class World implements Serializable {
      */
 
      int foodCount() {
-        int sum = 0;
-
-        for(Entity e : this.entities.values()) {
-
-            if(e == null) {
-                continue;
-            }
-
-            if(e instanceof Food) {
-                sum++;
-            }
-        }
-
-        return sum;
+        return this.food.size();
     }
 
     /**
@@ -489,18 +1219,39 @@ public class World implements Serializable {
 
     private void moveEntityInRandomDirection(LivingBeing e) {
 
-        // Set a new random goal
-        if((System.currentTimeMillis() - e.getLastRandomMovement()) > 5000) {
-            Random rng = new Random();
-            e.setGoal(new Vector2(rng.nextInt((int) this.getMaximumPosition().getX()), rng.nextInt((int) this.getMaximumPosition().getY())));
-            e.setLastRandomMovement(System.currentTimeMillis());
+        // Set a new random goal every few seconds. Beings saved before time was counted in ticks will
+        // have a time far in the future, so they pick a new goal straight away
+        long sinceLastMovement = this.tick - e.getLastRandomMovement();
+
+        if(e.getGoal() == null || sinceLastMovement > RANDOM_MOVEMENT_TICKS || sinceLastMovement < 0) {
+            long random = this.random(RandomStreams.WANDERING, e);
+            int goalX = RandomStreams.nextInt(random, (int) this.getMaximumPosition().getX());
+            int goalY = RandomStreams.nextInt(RandomStreams.next(random), (int) this.getMaximumPosition().getY());
+
+            e.setGoal(new Vector2(goalX, goalY));
+            e.setLastRandomMovement(this.tick);
         }
 
-        e.setVelocity(e.getGoal().subtract(e.getPosition()));
+        e.setVelocity(e.getGoal().getX() - e.getPosition().getX(), e.getGoal().getY() - e.getPosition().getY());
         e.setEnergy(e.getEnergy() - e.getEnergyDepletionValue());
 
     }
 
+    /**
+     * Give eaten food a small chance of growing back on each tick. This used to be done by the GUI while
+     * updating sprites, so it's part of the simulation now that worlds can run without one.
+     */
+
+    private void respawnFood() {
+        for(int i = 0; i < food.size(); i++) {
+            Food f = food.get(i);
+
+            if(f.getEnergy() <= 0 && RandomStreams.nextInt(this.random(RandomStreams.FOOD_GROWTH, f), 1000) > 998) {
+                f.setEnergy(15);
+            }
+        }
+    }
+
     /**
      * Removes food eaten by entities. If the eaten food is actually another being, will set its energy to 0
      * @param e LivingBeing doing the eating
@@ -511,43 +1262,43 @@ public class World implements Serializable {
         // How far away an entity can actually be from food before eating it
         double variance = 10;
 
-        for(Entity worldEntity : entities.values()) {
-            if(worldEntity.getPosition().getX() > e.getPosition().getX() - variance && worldEntity.getPosition().getX() < e.getPosition().getX() + variance) {
-                if(worldEntity.getPosition().getY() > e.getPosition().getY() - variance && worldEntity.getPosition().getY() < e.getPosition().getY() + variance) {
-                    if (worldEntity instanceof Food) {
-                        // Dinner time for our entity
-                        // Eating isn't a 100% efficient process though, so the entity won't gain all of the energy in the
-                        // food, some will be expended... :(
-                        Food asFood = (Food) worldEntity;
-
-                        if (asFood.isPoisonous()) {
-                            e.setEnergy(e.getEnergy() - (worldEntity).getEnergy());
-                        } else {
-                            e.setEnergy(e.getEnergy() + (worldEntity).getEnergy() * e.getConsumptionEfficiencyPercentage());
-                        }
-
-                        // Gobble gobble
-                        // We don't remove food any more, since it can grow back. There was also a pesky ConcurrentModificationException that wouldn't
-                        // disappear, even when using an iterator.
-                        worldEntity.setEnergy(0);
-                    }
-
-                    if(worldEntity instanceof LivingBeing && e instanceof LivingBeing) {
+        double x = e.getPosition().getX();
+        double y = e.getPosition().getY();
 
-                        if(((LivingBeing) e).isCarnivore()) {
-                            if(!worldEntity.equals(e)) {
-                                LivingBeing lb = (LivingBeing) e;
+        this.food.getSpatialIndex().forEachInRange(x, y, variance, worldEntity -> {
+            if(worldEntity.getPosition().getX() > x - variance && worldEntity.getPosition().getX() < x + variance) {
+                if(worldEntity.getPosition().getY() > y - variance && worldEntity.getPosition().getY() < y + variance) {
+                    // Dinner time for our entity
+                    // Eating isn't a 100% efficient process though, so the entity won't gain all of the energy in the
+                    // food, some will be expended... :(
+                    Food asFood = (Food) worldEntity;
 
-                                if (lb.isCarnivore()) {
-                                    e.setEnergy(e.getEnergy() + (worldEntity).getEnergy() * e.getConsumptionEfficiencyPercentage());
-                                }
+                    if (asFood.isPoisonous()) {
+                        e.setEnergy(e.getEnergy() - (worldEntity).getEnergy());
+                    } else {
+                        e.setEnergy(e.getEnergy() + (worldEntity).getEnergy() * e.getConsumptionEfficiencyPercentage());
+                    }
 
-                                ((LivingBeing) worldEntity).setEnergy(0);
-                            }
+                    // Gobble gobble
+                    // We don't remove food any more, since it can grow back. There was also a pesky ConcurrentModificationException that wouldn't
+                    // disappear, even when using an iterator.
+                    worldEntity.setEnergy(0);
+                }
+            }
+        });
+
+        // Only carnivores eat other beings, so nobody else needs to look at them
+        if(e instanceof LivingBeing && ((LivingBeing) e).isCarnivore()) {
+            this.beings.getSpatialIndex().forEachInRange(x, y, variance, worldEntity -> {
+                if(worldEntity.getPosition().getX() > x - variance && worldEntity.getPosition().getX() < x + variance) {
+                    if(worldEntity.getPosition().getY() > y - variance && worldEntity.getPosition().getY() < y + variance) {
+                        if(!worldEntity.equals(e)) {
+                            e.setEnergy(e.getEnergy() + (worldEntity).getEnergy() * e.getConsumptionEfficiencyPercentage());
+                            worldEntity.setEnergy(0);
                         }
                     }
                 }
-            }
+            });
         }
     }
 
@@ -558,13 +1309,29 @@ public class World implements Serializable {
 
     public void simulateOutsideOfGrid() {
 
-        for(Entity e : entities.values()) {
+        if(this.obstacleIndex == null) {
+            this.buildObstacleIndex();
+        }
+
+        if(this.foodDetection == FoodDetection.SCENT) {
+            this.spreadScent();
+        }
+
+        if(this.flowFields) {
+            if(this.flowField == null) {
+                this.buildFlowField();
+            } else if(this.flowField.isDirty() && this.tick - this.lastFlowFieldRebuild >= FLOW_FIELD_REBUILD_TICKS) {
+                this.flowField.rebuild();
+                this.lastFlowFieldRebuild = this.tick;
+            }
+        }
 
-            // Scan for food
-            if(e instanceof LivingBeing) {
+        if(this.store != null) {
+            this.simulateStoredBeings();
+        } else {
+            for(int i = 0; i < beings.size(); i++) {
 
-                // Cast the variable so we can smell for food
-                LivingBeing being = (LivingBeing) e;
+                LivingBeing being = beings.get(i);
 
                 if (being.getEnergy() <= 0) {
                     being.setDead(true);
@@ -574,22 +1341,12 @@ public class World implements Serializable {
 
                 if (!being.isFlock() && !(being.isDead())) {
 
-                    if (being.smellFood(foodDetectionDistance) != null) {
-
-                        Entity meal = being.smellFood(foodDetectionDistance);
-                        being.setVelocity(being.getVelocity().add(being.calculateVectorToFood(meal)));
+                    this.steerForFood(being);
 
-
-                    } else {
-                        // No food detected, go for a wander...
-                        moveEntityInRandomDirection((LivingBeing) e);
-                    }
-
-                    e.setPosition(e.getPosition().add(e.getVelocity()));
+                    being.setPosition(being.getPosition().getX() + being.getVelocity().getX(), being.getPosition().getY() + being.getVelocity().getY());
                 }
 
-                removeEatenFood(e);
-
+                removeEatenFood(being);
             }
         }
 
@@ -599,9 +1356,134 @@ public class World implements Serializable {
          * a flock.
          */
 
-        // More Lambda goodness, it seems
-        this.flockMap.values().forEach(BoidFlock::simulateFlock);
+        if(this.parallelFlocks) {
+            if(this.flockEngine == null) {
+                this.flockEngine = new ParallelFlockEngine();
+            }
+
+            this.flockEngine.simulate(this.flockMap.values(), this.tick);
+        } else {
+            // More Lambda goodness, it seems
+            this.flockMap.values().forEach(BoidFlock::simulateFlock);
+        }
+
+        this.respawnFood();
+
+        this.tick++;
+
+    }
+
+    /**
+     * Steer a being that isn't part of a flock towards food, found the way set by setFoodDetection. If
+     * there's no food to be found, the being goes for a wander instead.
+     *
+     * @param being LivingBeing to steer
+     */
+
+    private void steerForFood(LivingBeing being) {
+        if(this.foodDetection == FoodDetection.SCENT) {
+            if(!being.steerByScent(this.scentField)) {
+                this.wander(being);
+            }
+
+            return;
+        }
+
+        // Scan for food
+        Entity meal = being.findFood(foodDetectionDistance);
 
+        if (meal != null) {
+            being.steerTowardsFood(meal);
+        } else {
+            // No food detected, go for a wander...
+            this.wander(being);
+        }
+    }
+
+    /**
+     * Move a being that hasn't found any food. It heads for the nearest food patch if the world has a flow
+     * field, otherwise it moves in a random direction.
+     *
+     * @param being LivingBeing to move
+     */
+
+    private void wander(LivingBeing being) {
+        if(this.flowField != null && being.steerByFlowField(this.flowField)) {
+            return;
+        }
+
+        moveEntityInRandomDirection(being);
+    }
+
+    /**
+     * Have prey give off scent where they are, then spread the scent field by a tick. Food is a source of
+     * scent in the field, kept up to date as it's eaten and grows back, so it's only gone through when
+     * food has been added, removed or moved. Carnivores don't give off scent, so they don't follow each
+     * other about.
+     */
+
+    private void spreadScent() {
+        if(this.scentField == null) {
+            this.scentField = new ScentField(this.width, this.height, SPATIAL_CELL_SIZE);
+            this.scentSourcesStale = true;
+        }
+
+        if(this.scentSourcesStale) {
+            this.scentField.clearSources(ScentField.FOOD);
+
+            for(int i = 0; i < this.food.size(); i++) {
+                Food f = this.food.get(i);
+
+                if(f.getEnergy() > 0) {
+                    this.scentField.addSource(ScentField.FOOD, f.getPosition().getX(), f.getPosition().getY(), 1);
+                }
+            }
+
+            this.scentSourcesStale = false;
+        }
+
+        for(int i = 0; i < this.beings.size(); i++) {
+            LivingBeing being = this.beings.get(i);
+
+            if(being.getEnergy() > 0 && !being.isCarnivore()) {
+                this.scentField.emit(ScentField.PREY, being.getPosition().getX(), being.getPosition().getY(), 1);
+            }
+        }
+
+        this.scentField.spread();
+    }
+
+    /**
+     * Simulate the beings that aren't part of a flock when their state is held in the EntityStore. The
+     * same as the loop in simulateOutsideOfGrid, except that starvation and movement are applied to
+     * every being at once with tight loops over the store. Beings all move after everyone has decided
+     * where to go.
+     */
+
+    private void simulateStoredBeings() {
+
+        this.store.markStarved();
+
+        for(int i = 0; i < beings.size(); i++) {
+            LivingBeing being = beings.get(i);
+
+            if (!being.isFlock() && !(being.isDead())) {
+                this.steerForFood(being);
+            }
+        }
+
+        this.store.integrate();
+
+        // Positions were changed behind the spatial index's back, so bring it up to date
+        for(int slot = 0; slot < this.store.size(); slot++) {
+            if(this.store.isFreeMoving(slot)) {
+                this.entityMoved(this.store.getOwner(slot));
+            }
+        }
+
+        for(int i = 0; i < beings.size(); i++) {
+            removeEatenFood(beings.get(i));
+        }
     }
 
     /**
@@ -610,9 +1492,45 @@ public class World implements Serializable {
      */
 
     public double[][] getNoise() {
+        if(this.noise == null && this.noiseLoader != null) {
+            this.loadNoise();
+        }
+
         return noise;
     }
 
+    private synchronized void loadNoise() {
+        // Another thread may have loaded it while this one was waiting
+        if(this.noise == null && this.noiseLoader != null) {
+            this.noise = this.noiseLoader.get();
+            this.noiseLoader = null;
+        }
+    }
+
+    /**
+     * Set the world's noise map, e.g. when restoring a saved world
+     * @param noise double[][] Noise value for each X,Y in the world
+     */
+
+    public void setNoise(double[][] noise) {
+        this.noiseLoader = null;
+        this.noise = noise;
+        this.flowField = null;
+    }
+
+    /**
+     * Have the world's noise map loaded the first time it's needed, rather than now. Used when opening a
+     * saved world, so that a large noise map doesn't hold up opening it.
+     *
+     * @param noiseLoader Supplier giving the noise map
+     */
+
+    public synchronized void setNoiseLoader(Supplier<double[][]> noiseLoader) {
+        this.noise = null;
+        this.noiseLoader = noiseLoader;
+        this.flowField = null;
+    }
+
     /**
      * Get the world's minimum position
      * @return Vector2
@@ -650,34 +1568,42 @@ public class World implements Serializable {
     }
 
     /**
-     * Save the world to a file.
+     * Save the world to a file, as a binary WorldSnapshot. Must be called from whichever thread is
+     * simulating the world.
      *
-     * @see World#toFile(String)
+     * @see SnapshotFile
      * @param path Path to save to
      */
 
     public void save(String path) {
         try {
-            FileOutputStream fos = new FileOutputStream(path);
-            ObjectOutputStream oos = new ObjectOutputStream(fos);
-            oos.writeObject(this);
-
+            SnapshotFile.write(WorldSnapshot.capture(this), path, null);
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
     /**
-     * Load the world from a file. The file must exist and be generated by a current version of
-     * the application.
+     * Load the world from a file. The file must exist and be generated by the application, either as a
+     * binary snapshot or, for worlds saved before snapshots were added, with Java serialization. The path
+     * can also be a directory of checkpoints, in which case the newest checkpoint is loaded.
      *
-     * @param path Path to save file
+     * @param path Path to save file, or checkpoint directory
      * @return World
-     * @see World#fromFile(String)
+     * @see SnapshotFile
+     * @see CheckpointWriter
      */
 
     public static World load(String path) {
         try {
+            if(new File(path).isDirectory()) {
+                return CheckpointWriter.restore(path);
+            }
+
+            if(SnapshotFile.isSnapshot(path)) {
+                return SnapshotFile.read(path).restore();
+            }
+
             FileInputStream fis = new FileInputStream(path);
             ObjectInputStream ois = new ObjectInputStream(fis);
             Object loadedObject = ois.readObject();
@@ -1,16 +1,18 @@
 package uk.ac.reading.vv008146.project.behaviour;
 
-import javafx.scene.layout.Pane;
 import uk.ac.reading.vv008146.project.Vector2;
 import uk.ac.reading.vv008146.project.World;
 import uk.ac.reading.vv008146.project.entities.Entity;
 import uk.ac.reading.vv008146.project.entities.Food;
 import uk.ac.reading.vv008146.project.entities.LivingBeing;
-import uk.ac.reading.vv008146.project.entities.Obstacle;
+import uk.ac.reading.vv008146.project.simulation.RandomStreams;
+import uk.ac.reading.vv008146.project.simulation.SimulationClock;
 
 import java.io.Serializable;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
-import java.util.Random;
+import java.util.Set;
 
 /**
  * This class will allow the entities within its list to act as a single flock or herd. Great for setting
@@ -19,6 +21,11 @@ import java.util.Random;
 
 public class BoidFlock implements Serializable {
 
+    private static final long serialVersionUID = -2039748201317942283L;
+
+    // How long the flock heads for the same goal before picking a new one
+    private static final long GOAL_CHANGE_TICKS = SimulationClock.secondsToTicks(1);
+
     // All entities to consider when applying boid rules
     private List<LivingBeing> flock;
 
@@ -28,10 +35,23 @@ public class BoidFlock implements Serializable {
     private double centreOfMassMovementFactor; // How far towards the flock's CoM to move a boid on each iteration (as a %) - default is 1 to move it 1% of the way
     private double minimumBoidDistance; // Minimum distance between two boids of the flock
 
-    private long goalLastChanged;
+    private long goalLastChanged; // Tick the goal was last changed on
     private Vector2 goal;
 
-    private Random rng;
+    // Seeds the flock's random numbers, whether it's simulated in parallel or not
+    private long seed;
+
+    // Last random number drawn for the boid being moved, or for a new goal. Started afresh from the seed,
+    // the tick and the boid for each of them, so nothing is carried over from one tick to the next
+    private transient long random;
+
+    // Sums of every boid's position and velocity, kept up to date through each tick so the flock averages
+    // don't need a pass over the whole flock for every boid
+    private transient Vector2 positionSum;
+    private transient Vector2 velocitySum;
+
+    // Used to pick out members of this flock from the world's spatial index
+    private transient Set<LivingBeing> members;
 
     /**
      * Instantiate a boid flock with a given list of entities. Use the world's min/max position, although
@@ -51,10 +71,35 @@ public class BoidFlock implements Serializable {
         this.centreOfMassMovementFactor = 1;
         this.minimumBoidDistance = 55;
 
-        this.rng = new Random();
+        // Seeded from the world, so the same world seed gives the same flocks
+        this.seed = world.getRandom(RandomStreams.FLOCKS).nextLong();
+
+        this.pickGoal();
+    }
+
+    /**
+     * Restore a saved flock
+     *
+     * @param flock List of living beings in the flock
+     * @param world The world the flock is in
+     * @param centreOfMassMovementFactor How far towards the flock's centre of mass boids move each tick
+     * @param minimumBoidDistance Minimum distance kept between two boids
+     * @param goal Vector2 position the flock is heading for
+     * @param goalLastChanged long tick the goal was last changed on
+     * @param seed long seed for the random numbers used by the flock
+     */
+
+    public BoidFlock(List<LivingBeing> flock, World world, double centreOfMassMovementFactor, double minimumBoidDistance, Vector2 goal, long goalLastChanged, long seed) {
+        this.flock = flock;
+        this.world = world;
+
+        this.centreOfMassMovementFactor = centreOfMassMovementFactor;
+        this.minimumBoidDistance = minimumBoidDistance;
 
-        this.goal = (new Vector2(rng.nextInt(world.getWidth()), rng.nextInt(world.getHeight())));
-        this.goalLastChanged = System.currentTimeMillis();
+        this.seed = seed;
+
+        this.goal = goal;
+        this.goalLastChanged = goalLastChanged;
     }
 
     /**
@@ -64,6 +109,68 @@ public class BoidFlock implements Serializable {
 
     public void add(LivingBeing e) {
         this.flock.add(e);
+
+        if(this.members != null) {
+            this.members.add(e);
+        }
+    }
+
+    /**
+     * Check whether a being belongs to this flock
+     * @param e LivingBeing to check
+     * @return Boolean
+     */
+
+    boolean isMember(Entity e) {
+        this.prepareMembers();
+
+        return this.members.contains(e);
+    }
+
+    /**
+     * Build the set used by isMember(Entity) if it doesn't exist yet. Called before the flock is simulated
+     * in parallel, so that threads only ever read the set.
+     */
+
+    void prepareMembers() {
+        if(this.members == null) {
+            this.members = Collections.newSetFromMap(new IdentityHashMap<>());
+            this.members.addAll(this.flock);
+        }
+    }
+
+    /**
+     * Pick a new goal for the flock if the current one has been around for long enough. This allows the
+     * boids some time to actually travel to the target point without just jittering in one place
+     */
+
+    void updateGoal() {
+        long sinceLastChange = world.getTick() - this.goalLastChanged;
+
+        // Flocks saved before time was counted in ticks will have a time far in the future
+        if(sinceLastChange > GOAL_CHANGE_TICKS || sinceLastChange < 0) {
+            this.pickGoal();
+        }
+    }
+
+    private void pickGoal() {
+        // Key 0 stands for the flock itself rather than one of its boids
+        this.random = RandomStreams.start(this.seed, RandomStreams.FLOCKS, 0, world.getTick());
+
+        this.goal = (new Vector2(this.nextInt(world.getWidth()), this.nextInt(world.getHeight())));
+        this.goalLastChanged = world.getTick();
+    }
+
+    /**
+     * Draw the next random number for the boid being moved, or the goal being picked
+     *
+     * @param bound int upper bound (exclusive)
+     * @return int between 0 and bound
+     */
+
+    private int nextInt(int bound) {
+        this.random = RandomStreams.next(this.random);
+        return RandomStreams.nextInt(this.random, bound);
     }
 
     /**
@@ -73,37 +180,71 @@ public class BoidFlock implements Serializable {
 
     public void simulateFlock() {
 
-        // Only change the goal if defined number of seconds has passed. This allows the boids some time
-        // to actually travel to the target point without just jittering in one place
-        if(System.currentTimeMillis() - this.goalLastChanged > 1000) {
-            this.goal = (new Vector2(rng.nextInt(world.getWidth()), rng.nextInt(world.getHeight())));
-            this.goalLastChanged = System.currentTimeMillis();
+        // Only change the goal if defined number of seconds has passed
+        this.updateGoal();
+
+        // Each rule writes its result into a scratch vector, rather than creating new vectors for every boid
+        Vector2 steering = new Vector2();
+        Vector2 rule = new Vector2();
+
+        if(this.positionSum == null) {
+            this.positionSum = new Vector2();
+            this.velocitySum = new Vector2();
         }
 
-        for(LivingBeing boid : this.flock) {
+        // Sum up the flock once per tick, and then keep the sums up to date as each boid moves
+        this.positionSum.set(0, 0);
+        this.velocitySum.set(0, 0);
+
+        for(int i = 0; i < this.flock.size(); i++) {
+            this.positionSum.addInPlace(this.flock.get(i).getPosition());
+            this.velocitySum.addInPlace(this.flock.get(i).getVelocity());
+        }
+
+        for(int i = 0; i < this.flock.size(); i++) {
+
+            LivingBeing boid = this.flock.get(i);
+
+            // Drawn from the boid and the tick, so a flock that's been saved and loaded again moves the same
+            this.random = RandomStreams.start(this.seed, RandomStreams.FLOCKS, RandomStreams.keyOf(boid.getUuid()), world.getTick());
+
+            // Take the boid out of the sums while it moves, and put it back afterwards
+            this.positionSum.subtractInPlace(boid.getPosition());
+            this.velocitySum.subtractInPlace(boid.getVelocity());
+
+            steering.set(boid.getVelocity());
 
-            Vector2 CoMVector = this.centreOfMassRule(boid);
-            Vector2 velocityVector = this.normaliseVelocityRule(boid).scalarMultiply(rng.nextInt(5));
-            Vector2 positionVector = this.randomPositionRule(boid);
-            Vector2 meanderVector = this.meanderingRule(boid);
+            this.centreOfMassRule(boid, rule);
+            steering.addInPlace(rule);
+
+            this.normaliseVelocityRule(boid, rule);
+            steering.addInPlace(rule.scalarMultiplyInPlace(this.nextInt(5)));
+
+            this.randomPositionRule(boid, rule);
+            steering.addInPlace(rule);
+
+            this.meanderingRule(boid, rule);
 
             //boid.setVelocity(boid.getVelocity().add(CoMVector).add(boundingVector).add(meanderVector).add(positionVector).add(velocityVector).add(obstacleAvoidanceVector).add(distanceVector));
 
-            boid.setVelocity(boid.getVelocity().add(CoMVector).add(velocityVector).add(positionVector));
+            boid.setVelocity(steering);
 
-            Vector2 distanceVector = this.maintainDistanceRule(boid);
-            boid.setVelocity(boid.getVelocity().add(distanceVector));
+            this.maintainDistanceRule(boid, rule);
+            boid.setVelocity(boid.getVelocity().getX() + rule.getX(), boid.getVelocity().getY() + rule.getY());
 
             // Only invert the CoM of the flock on 20% of occasions so that they stay together more often than not
-            if(this.rng.nextInt(100) > 80) {
-                Vector2 explodeVector = this.centreOfMassRule(boid).scalarMultiply(-1);
-                boid.setVelocity(boid.getVelocity().add(explodeVector));
+            if(this.nextInt(100) > 80) {
+                this.centreOfMassRule(boid, rule);
+                boid.setVelocity(boid.getVelocity().getX() - rule.getX(), boid.getVelocity().getY() - rule.getY());
             }
 
-            //Vector2 obstacleAvoidanceVector = this.avoidObstaclesRule(boid);
-            //boid.setVelocity(boid.getVelocity().add(obstacleAvoidanceVector));
+            this.avoidObstaclesRule(boid, rule);
+            boid.setVelocity(boid.getVelocity().getX() + rule.getX(), boid.getVelocity().getY() + rule.getY());
+
+            boid.setPosition(boid.getPosition().getX() + boid.getVelocity().getX(), boid.getPosition().getY() + boid.getVelocity().getY());
 
-            boid.setPosition(boid.getPosition().add(boid.getVelocity()));
+            this.positionSum.addInPlace(boid.getPosition());
+            this.velocitySum.addInPlace(boid.getVelocity());
 
         }
 
@@ -113,49 +254,48 @@ public class BoidFlock implements Serializable {
      * Draws the boids towards the centre of the flock so that they remain reasonably close together
      *
      * @param boid Boid to consider
-     * @return Vector2 The offset from the current velocity to allow movement towards the CoM
+     * @param result Vector2 set to the offset from the current velocity to allow movement towards the CoM
      */
 
-    private Vector2 centreOfMassRule(LivingBeing boid) {
+    private void centreOfMassRule(LivingBeing boid, Vector2 result) {
 
-        Vector2 perceivedCoM = new Vector2(0,0);
-
-        for(LivingBeing e : this.flock) {
-            if(!(e.equals(boid))) {
-                perceivedCoM = perceivedCoM.add(e.getPosition());
-            }
-        }
+        // The boid we're currently analysing has already been taken out of the sum
+        result.set(this.positionSum);
 
         // Divide by number of boids - 1 (discount the boid we're currently analysing, as we want the
         // CoM for the whole flock) to return a mean average CoM vector
-        perceivedCoM = perceivedCoM.scalarDivide(this.flock.size() - 1);
+        result.scalarDivideInPlace(this.flock.size() - 1);
 
         // We don't want to immediately jump to the CoM, so provide a vector to gradually move towards it
-        return perceivedCoM.scalarDivide(100);
+        result.scalarDivideInPlace(100);
     }
 
     /**
-     * This rule stops the boids moving too close together and overlapping each other
+     * This rule stops the boids moving too close together and overlapping each other. Only boids near
+     * to this one can be too close, so they're found using the world's spatial index.
+     *
      * @param boid Boid to consider
-     * @return Vector2 offset from the current velocity
+     * @param result Vector2 set to the offset from the current velocity
      */
 
-    private Vector2 maintainDistanceRule(LivingBeing boid) {
-        // Method will return a vector that we can use to offset the boid's current position, so initalise to 0
-        Vector2 offset = new Vector2(0, 0);
+    private void maintainDistanceRule(LivingBeing boid, Vector2 result) {
+        // The offset is built up from each boid that's too close, so start from 0
+        result.set(0, 0);
+
+        double x = boid.getPosition().getX();
+        double y = boid.getPosition().getY();
+        double minimumDistanceSquared = this.minimumBoidDistance * this.minimumBoidDistance;
 
-        for(LivingBeing e : this.flock) {
-            if(!(e.equals(boid))) {
-                double distance = e.getPosition().subtract(boid.getPosition()).getMagnitude();
+        world.getBeings().getSpatialIndex().forEachInRange(x, y, this.minimumBoidDistance, e -> {
+            if(!(e.equals(boid)) && this.isMember(e)) {
+                double distanceX = e.getPosition().getX() - x;
+                double distanceY = e.getPosition().getY() - y;
 
-                if(distance < this.minimumBoidDistance) {
-                    Vector2 currentDistance = e.getPosition().subtract(boid.getPosition());
-                    offset = offset.subtract(currentDistance);
+                if(distanceX * distanceX + distanceY * distanceY < minimumDistanceSquared) {
+                    result.set(result.getX() - distanceX, result.getY() - distanceY);
                 }
             }
-        }
-
-        return offset;
+        });
 
     }
 
@@ -164,23 +304,18 @@ public class BoidFlock implements Serializable {
      * the rest of the flock
      *
      * @param boid Boid to consider
-     * @return Vector2 velocity offset
+     * @param result Vector2 set to the velocity offset
      */
 
-    private Vector2 normaliseVelocityRule(LivingBeing boid) {
+    private void normaliseVelocityRule(LivingBeing boid, Vector2 result) {
 
-        Vector2 normalisedVelocity = new Vector2(0,0);
-
-        for(LivingBeing e : this.flock) {
-            if(!(e.equals(boid))) {
-                normalisedVelocity = normalisedVelocity.add(e.getVelocity());
-            }
-        }
+        // The boid we're currently considering has already been taken out of the sum
+        result.set(this.velocitySum);
 
         // Don't count the boid we're currently considering
-        normalisedVelocity = normalisedVelocity.scalarDivide(this.flock.size() - 1);
+        result.scalarDivideInPlace(this.flock.size() - 1);
 
-        return normalisedVelocity.subtract(boid.getVelocity()).scalarDivide(16);
+        result.subtractInPlace(boid.getVelocity()).scalarDivideInPlace(16);
     }
 
     /**
@@ -188,19 +323,21 @@ public class BoidFlock implements Serializable {
      * just bimbling about in a corner when not near food
      *
      * @param boid Boid to consider
-     * @return Vector2 a vector towards the current goal position
+     * @param result Vector2 set to a vector towards the current goal position
      */
 
-    private Vector2 randomPositionRule(LivingBeing boid) {
+    private void randomPositionRule(LivingBeing boid, Vector2 result) {
 
-        if(boid.smellFood(world.getFoodDetectionDistance()) != null) {
-            Entity meal = boid.smellFood(world.getFoodDetectionDistance());
-            this.goal = meal.getPosition();
+        Entity meal = boid.findFood(world.getFoodDetectionDistance());
+
+        if(meal != null) {
+            // Copy the position, an entity's position vector can be a live view of its state
+            this.goal = new Vector2(meal.getPosition().getX(), meal.getPosition().getY());
         }
 
         boid.setGoal(this.goal);
 
-        return boid.getGoal().subtract(boid.getPosition());
+        result.set(boid.getGoal()).subtractInPlace(boid.getPosition());
     }
 
     /**
@@ -208,33 +345,19 @@ public class BoidFlock implements Serializable {
      * to them
      *
      * @param boid Boid to consider
-     * @return Vector2 Offset of current velocity to avoid the closest detected obstacle
+     * @param result Vector2 set to the offset of current velocity to avoid the closest detected obstacle
      */
 
-    private Vector2 avoidObstaclesRule(LivingBeing boid) {
+    private void avoidObstaclesRule(LivingBeing boid, Vector2 result) {
 
-        Vector2 avoidOffset = new Vector2(0,0);
+        result.set(0, 0);
 
-        double closestDistance = Double.POSITIVE_INFINITY;
-        Obstacle closestObstacle = null;
-
-        for(Entity e : world.getEntities().values()) {
-            if(e instanceof Obstacle) {
-                if(e.getPosition().subtract(boid.getPosition()).getMagnitude() < 50) {
-                    if(e.getPosition().subtract(boid.getPosition()).getMagnitude() < closestDistance) {
-                        closestDistance = e.getPosition().subtract(boid.getPosition()).getMagnitude();
-                        closestObstacle = (Obstacle) e;
-                    }
-                }
-            }
-        }
+        Entity closestObstacle = world.findNearestObstacle(boid.getPosition().getX(), boid.getPosition().getY(), 50);
 
         if(closestObstacle != null) {
-            avoidOffset = closestObstacle.getPosition().subtract(boid.getPosition()).scalarMultiply(-1);
+            result.set(boid.getPosition()).subtractInPlace(closestObstacle.getPosition());
         }
 
-        return avoidOffset;
-
     }
 
     /**
@@ -242,35 +365,97 @@ public class BoidFlock implements Serializable {
      * the map doesn't look quite so mechanical and perfect.
      *
      * @param boid Boid to consider
-     * @return Vector2 offset of current velocity
+     * @param result Vector2 set to the offset of current velocity
      */
 
-    private Vector2 meanderingRule(LivingBeing boid) {
+    private void meanderingRule(LivingBeing boid, Vector2 result) {
 
-        Vector2 mV = new Vector2(rng.nextInt(10), rng.nextInt(10));
+        result.set(this.nextInt(10), this.nextInt(10));
 
-        int inversion = rng.nextInt(100);
+        int inversion = this.nextInt(100);
 
         if(inversion > 25 && inversion < 50) {
-            mV = new Vector2(mV.getX() * -1, mV.getY());
+            result.setX(result.getX() * -1);
         }
 
         if(inversion < 25) {
-            mV = new Vector2(mV.getX(), mV.getY() * -1);
+            result.setY(result.getY() * -1);
         }
 
         if(inversion > 50 && inversion < 75) {
-            mV = new Vector2(mV.getX() * -1, mV.getY() * -1);
+            result.scalarMultiplyInPlace(-1);
         }
 
-        try {
-            return boid.getGoal().subtract(mV);
-        } catch(NullPointerException ex) {
-            return mV;
+        if(boid.getGoal() != null) {
+            result.set(boid.getGoal().getX() - result.getX(), boid.getGoal().getY() - result.getY());
         }
     }
 
     public Vector2 getGoal() {
         return goal;
     }
+
+    /**
+     * Set the position the flock is heading for, e.g. food one of its boids has found while the flock was
+     * simulated in parallel
+     * @param goal Vector2 position
+     */
+
+    void setGoal(Vector2 goal) {
+        this.goal = goal;
+    }
+
+    /**
+     * Get the boids in the flock
+     * @return List of living beings
+     */
+
+    public List<LivingBeing> getFlock() {
+        return flock;
+    }
+
+    /**
+     * Get the world the flock exists in
+     * @return World
+     */
+
+    public World getWorld() {
+        return world;
+    }
+
+    /**
+     * Get the minimum distance kept between two boids of the flock
+     * @return double distance
+     */
+
+    public double getMinimumBoidDistance() {
+        return minimumBoidDistance;
+    }
+
+    /**
+     * Get how far towards the flock's centre of mass boids move each tick
+     * @return double factor
+     */
+
+    public double getCentreOfMassMovementFactor() {
+        return centreOfMassMovementFactor;
+    }
+
+    /**
+     * Get the tick the flock's goal was last changed on
+     * @return long tick
+     */
+
+    public long getGoalLastChanged() {
+        return goalLastChanged;
+    }
+
+    /**
+     * Get the seed for the random numbers used by the flock
+     * @return long seed
+     */
+
+    public long getSeed() {
+        return seed;
+    }
 }
@@ -0,0 +1,339 @@
+package uk.ac.reading.vv008146.project.behaviour;
+
+import uk.ac.reading.vv008146.project.Vector2;
+import uk.ac.reading.vv008146.project.World;
+import uk.ac.reading.vv008146.project.entities.Entity;
+import uk.ac.reading.vv008146.project.entities.LivingBeing;
+import uk.ac.reading.vv008146.project.simulation.RandomStreams;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Simulates flocks on several threads at once. The Boids rules are the same as in
+ * BoidFlock.simulateFlock(), but each tick is split into three phases:
+ *
+ * 1. Snapshot - every boid's position and velocity is copied into a front buffer, and the flock's goal is
+ *    frozen for the tick
+ * 2. Compute - every boid works out its new position and velocity from the front buffer, and writes them
+ *    into a back buffer. Nothing in the world changes during this phase, so boids can be computed in any
+ *    order, on any thread. Work is split across flocks, and large flocks are split again into chunks of
+ *    boids using fork/join
+ * 3. Commit - the back buffer is copied into the boids in order, on the calling thread, keeping the
+ *    world's spatial index up to date
+ *
+ * The front buffer is read from the boids again on every tick rather than carried over from the last
+ * commit, as boids can be moved, eat, die or join and leave flocks between ticks.
+ *
+ * Random numbers come from each flock's seed, the tick and the boid's UUID rather than a shared generator,
+ * the same way as in BoidFlock.simulateFlock(), so the same world gives the same results however the
+ * threads are scheduled, and boids joining or leaving a flock don't change the numbers of the others.
+ *
+ * Unlike the sequential version, a boid doesn't see the moves of boids before it in the same tick, and a
+ * flock only heads for food one of its boids has smelled from the next tick onwards.
+ */
+
+public class ParallelFlockEngine {
+
+    // Flocks smaller than this are computed on a single thread
+    private static final int BOIDS_PER_TASK = 256;
+
+    private final ForkJoinPool pool;
+
+    // Buffers are kept between ticks so they don't need to be reallocated
+    private final Map<BoidFlock, Buffers> buffers;
+
+    /**
+     * Create an engine which runs on the common fork/join pool
+     */
+
+    public ParallelFlockEngine() {
+        this(ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Create an engine which runs on the given pool
+     * @param pool ForkJoinPool to run flocks on
+     */
+
+    public ParallelFlockEngine(ForkJoinPool pool) {
+        this.pool = pool;
+        this.buffers = new IdentityHashMap<>();
+    }
+
+    /**
+     * Simulate one tick of every flock
+     *
+     * @param flocks Flocks to simulate
+     * @param tick long number of the tick being simulated, used to pick each boid's random numbers
+     */
+
+    public void simulate(Collection<BoidFlock> flocks, long tick) {
+        List<FlockTask> tasks = new ArrayList<>(flocks.size());
+
+        // Snapshot
+        for(BoidFlock flock : flocks) {
+            Buffers buffer = this.buffers.computeIfAbsent(flock, f -> new Buffers());
+
+            flock.updateGoal();
+            flock.prepareMembers();
+            buffer.snapshot(flock);
+
+            if(buffer.size > 0) {
+                tasks.add(new FlockTask(flock, buffer, tick, 0, buffer.size));
+            }
+        }
+
+        // Compute
+        this.pool.invoke(new RecursiveAction() {
+            @Override
+            protected void compute() {
+                invokeAll(tasks);
+            }
+        });
+
+        // Commit
+        for(FlockTask task : tasks) {
+            task.buffer.commit(task.flock);
+        }
+
+        // Forget flocks that no longer exist
+        if(this.buffers.size() > flocks.size()) {
+            this.buffers.keySet().retainAll(flocks);
+        }
+    }
+
+    /**
+     * Front and back buffers for a single flock
+     */
+
+    private static class Buffers {
+
+        private int size;
+
+        // Front, read during the compute phase
+        private double[] positionX = new double[0];
+        private double[] positionY = new double[0];
+        private double[] velocityX = new double[0];
+        private double[] velocityY = new double[0];
+
+        // Back, written during the compute phase
+        private double[] nextPositionX = new double[0];
+        private double[] nextPositionY = new double[0];
+        private double[] nextVelocityX = new double[0];
+        private double[] nextVelocityY = new double[0];
+
+        // Food each boid smelled, if any
+        private Entity[] meals = new Entity[0];
+
+        private double positionSumX;
+        private double positionSumY;
+        private double velocitySumX;
+        private double velocitySumY;
+
+        private double goalX;
+        private double goalY;
+
+        /**
+         * Copy the flock's current state into the front buffer
+         * @param flock BoidFlock
+         */
+
+        void snapshot(BoidFlock flock) {
+            List<LivingBeing> boids = flock.getFlock();
+
+            this.size = boids.size();
+
+            if(this.positionX.length < size) {
+                this.positionX = new double[size];
+                this.positionY = new double[size];
+                this.velocityX = new double[size];
+                this.velocityY = new double[size];
+                this.nextPositionX = new double[size];
+                this.nextPositionY = new double[size];
+                this.nextVelocityX = new double[size];
+                this.nextVelocityY = new double[size];
+                this.meals = new Entity[size];
+            }
+
+            this.positionSumX = 0;
+            this.positionSumY = 0;
+            this.velocitySumX = 0;
+            this.velocitySumY = 0;
+
+            for(int i = 0; i < size; i++) {
+                LivingBeing boid = boids.get(i);
+
+                positionX[i] = boid.getPosition().getX();
+                positionY[i] = boid.getPosition().getY();
+                velocityX[i] = boid.getVelocity().getX();
+                velocityY[i] = boid.getVelocity().getY();
+
+                positionSumX += positionX[i];
+                positionSumY += positionY[i];
+                velocitySumX += velocityX[i];
+                velocitySumY += velocityY[i];
+            }
+
+            this.goalX = flock.getGoal().getX();
+            this.goalY = flock.getGoal().getY();
+        }
+
+        /**
+         * Copy the back buffer into the flock's boids
+         * @param flock BoidFlock
+         */
+
+        void commit(BoidFlock flock) {
+            List<LivingBeing> boids = flock.getFlock();
+            Vector2 frozenGoal = flock.getGoal();
+            Entity lastMeal = null;
+
+            for(int i = 0; i < size; i++) {
+                LivingBeing boid = boids.get(i);
+
+                boid.restoreVelocity(nextVelocityX[i], nextVelocityY[i]);
+                boid.setPosition(nextPositionX[i], nextPositionY[i]);
+
+                if(meals[i] != null) {
+                    lastMeal = meals[i];
+                    boid.setGoal(new Vector2(meals[i].getPosition().getX(), meals[i].getPosition().getY()));
+                    meals[i] = null;
+                } else {
+                    boid.setGoal(frozenGoal);
+                }
+            }
+
+            // The flock heads for the food the last boid smelled, as it would in the sequential version
+            if(lastMeal != null) {
+                flock.setGoal(new Vector2(lastMeal.getPosition().getX(), lastMeal.getPosition().getY()));
+            }
+        }
+    }
+
+    /**
+     * Computes a range of boids in a flock, splitting the range in half until it's small enough
+     */
+
+    private static class FlockTask extends RecursiveAction {
+
+        // RecursiveAction is Serializable, but tasks are never saved
+        private static final long serialVersionUID = 1L;
+
+        private final BoidFlock flock;
+        private final Buffers buffer;
+        private final long tick;
+        private final int from;
+        private final int to;
+
+        FlockTask(BoidFlock flock, Buffers buffer, long tick, int from, int to) {
+            this.flock = flock;
+            this.buffer = buffer;
+            this.tick = tick;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if(to - from > BOIDS_PER_TASK) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new FlockTask(flock, buffer, tick, from, middle), new FlockTask(flock, buffer, tick, middle, to));
+                return;
+            }
+
+            // Scratch vectors belong to this task, so no two threads share them
+            Vector2 velocity = new Vector2();
+            Vector2 separation = new Vector2();
+
+            for(int i = from; i < to; i++) {
+                this.computeBoid(i, velocity, separation);
+            }
+        }
+
+        /**
+         * Work out a single boid's next position and velocity from the front buffer
+         *
+         * @param i int position of the boid in the flock
+         * @param velocity Vector2 scratch vector
+         * @param separation Vector2 scratch vector
+         */
+
+        private void computeBoid(int i, Vector2 velocity, Vector2 separation) {
+            LivingBeing boid = flock.getFlock().get(i);
+            World world = flock.getWorld();
+            Buffers b = this.buffer;
+
+            double x = b.positionX[i];
+            double y = b.positionY[i];
+            int others = b.size - 1;
+
+            long random = RandomStreams.start(flock.getSeed(), RandomStreams.FLOCKS, RandomStreams.keyOf(boid.getUuid()), tick);
+
+            // Centre of mass of the rest of the flock
+            double centreX = (b.positionSumX - x) / others / 100;
+            double centreY = (b.positionSumY - y) / others / 100;
+
+            // Match the velocity of the rest of the flock
+            random = RandomStreams.next(random);
+            int velocityFactor = RandomStreams.nextInt(random, 5);
+
+            double matchX = ((b.velocitySumX - b.velocityX[i]) / others - b.velocityX[i]) / 16 * velocityFactor;
+            double matchY = ((b.velocitySumY - b.velocityY[i]) / others - b.velocityY[i]) / 16 * velocityFactor;
+
+            // Head for food if there's any nearby, otherwise head for the flock's goal
+            Entity meal = boid.findFood(world.getFoodDetectionDistance());
+            b.meals[i] = meal;
+
+            double goalX = meal != null ? meal.getPosition().getX() : b.goalX;
+            double goalY = meal != null ? meal.getPosition().getY() : b.goalY;
+
+            boid.constrainVelocity(b.velocityX[i] + centreX + matchX + (goalX - x), b.velocityY[i] + centreY + matchY + (goalY - y), velocity);
+
+            // Keep away from boids that are too close
+            double minimumDistance = flock.getMinimumBoidDistance();
+            double minimumDistanceSquared = minimumDistance * minimumDistance;
+
+            separation.set(0, 0);
+
+            world.getBeings().getSpatialIndex().forEachInRange(x, y, minimumDistance, e -> {
+                if(e != boid && flock.isMember(e)) {
+                    double distanceX = e.getPosition().getX() - x;
+                    double distanceY = e.getPosition().getY() - y;
+
+                    if(distanceX * distanceX + distanceY * distanceY < minimumDistanceSquared) {
+                        separation.set(separation.getX() - distanceX, separation.getY() - distanceY);
+                    }
+                }
+            });
+
+            boid.constrainVelocity(velocity.getX() + separation.getX(), velocity.getY() + separation.getY(), velocity);
+
+            // Skip the three numbers the sequential version spends on meandering, so each boid draws the same
+            // number for this as it would there
+            random = RandomStreams.next(RandomStreams.next(RandomStreams.next(RandomStreams.next(random))));
+
+            // Only invert the CoM of the flock on 20% of occasions so that they stay together more often than not
+            if(RandomStreams.nextInt(random, 100) > 80) {
+                boid.constrainVelocity(velocity.getX() - centreX, velocity.getY() - centreY, velocity);
+            }
+
+            // Avoid the closest obstacle
+            Entity closestObstacle = world.findNearestObstacle(x, y, 50);
+
+            if(closestObstacle != null) {
+                boid.constrainVelocity(velocity.getX() + x - closestObstacle.getPosition().getX(), velocity.getY() + y - closestObstacle.getPosition().getY(), velocity);
+            }
+
+            b.nextVelocityX[i] = velocity.getX();
+            b.nextVelocityY[i] = velocity.getY();
+            b.nextPositionX[i] = x + velocity.getX();
+            b.nextPositionY[i] = y + velocity.getY();
+        }
+    }
+}
@@ -2,8 +2,10 @@ package uk.ac.reading.vv008146.project.entities;
 
 import uk.ac.reading.vv008146.project.Vector2;
 import uk.ac.reading.vv008146.project.World;
+import uk.ac.reading.vv008146.project.simulation.RandomStreams;
 
 import java.io.*;
+import java.util.SplittableRandom;
 import java.util.UUID;
 
 /*
@@ -19,6 +21,8 @@ import java.util.UUID;
 
 public abstract class Entity implements Serializable {
 
+    private static final long serialVersionUID = -5289739240403565573L;
+
     protected World world;
 
     protected Vector2 position;
@@ -37,6 +41,13 @@ public abstract class Entity implements Serializable {
 
     private UUID uuid;
 
+    private transient int spatialCell; // Cell in the world's spatial index, offset by one so 0 means "not indexed"
+    private transient boolean changed; // Already in the world's list of changed entities
+
+    // Set while the entity's state is held in an EntityStore rather than in its own fields
+    transient EntityStore store;
+    transient int slot;
+
     /**
      * Set the name of the sprite that will be loaded to represent this entity in the world.
      * @param name Sprite file name, without .png extension
@@ -57,18 +68,39 @@ public abstract class Entity implements Serializable {
 
     /**
      * Set a random unique ID to identify this entity. Used to lookup all of the entities in the world
-     * using a HashMap
+     * using a HashMap. Drawn from the world's seed once the entity is in one, so the same seed gives the
+     * same IDs, and so the same random numbers for each entity.
      */
 
     public void setUuid() {
-        this.uuid = UUID.randomUUID();
+        if(this.world == null) {
+            this.uuid = UUID.randomUUID();
+            return;
+        }
+
+        SplittableRandom rng = this.world.getRandom(RandomStreams.IDENTITIES);
+
+        // Marked as version 4 (random) UUIDs, same as randomUUID would give
+        long most = (rng.nextLong() & ~0xF000L) | 0x4000L;
+        long least = (rng.nextLong() & ~0xC000000000000000L) | 0x8000000000000000L;
+
+        this.uuid = new UUID(most, least);
+    }
+
+    /**
+     * Set the ID that identifies this entity, e.g. to the ID it had when it was saved
+     * @param uuid UUID
+     */
+
+    public void setUuid(UUID uuid) {
+        this.uuid = uuid;
     }
 
     /**
      * Default constructor for the Entity class. Sets a UUID, a default sprite, a default position in the
-     * world (0, 0), a default energy value (100), adds the entity to a new world, sets a max speed of 1.5,
-     * a consumption energy percentage of 0.1, an energy depletion value of 0.01 and a bounding constant
-     * of 0.5
+     * world (0, 0), a default energy value (100), sets a max speed of 1.5, a consumption energy percentage
+     * of 0.1, an energy depletion value of 0.01 and a bounding constant of 0.5. The entity isn't in a world
+     * until one is set.
      */
 
     public Entity() {
@@ -79,7 +111,6 @@ public abstract class Entity implements Serializable {
         this.setPosition(new Vector2(0, 0));
         this.energy = 100;
         this.id = 1;
-        this.world = new World();
 
         this.energyDepletionValue = 0.01d;
         this.boundingConstant = 0.5;
@@ -113,51 +144,91 @@ public abstract class Entity implements Serializable {
      */
 
     public void setVelocity(Vector2 velocity) {
+        this.setVelocity(velocity.getX(), velocity.getY());
+    }
 
-        // Bounding
-        Vector2 offset = new Vector2(0,0);
+    /**
+     * Set the entity's velocity from its components, with the same bounding, obstacle avoidance and
+     * speed limiting as setVelocity(Vector2). Doesn't create any new vectors, so it's safe to call on
+     * every tick.
+     *
+     * @param velocityX Horizontal component of velocity
+     * @param velocityY Vertical component of velocity
+     * @see Entity#setVelocity(Vector2)
+     */
 
-        if(this.getPosition().getX() < world.getMinimumPosition().getX()) {
-            offset.setX(this.boundingConstant);
-        } else if(this.getPosition().getX() > world.getMaximumPosition().getX()) {
-            offset.setX(this.boundingConstant*-1);
+    public void setVelocity(double velocityX, double velocityY) {
+        if(this.velocity == null) {
+            this.velocity = new Vector2();
         }
 
-        if(this.getPosition().getY() < world.getMinimumPosition().getY()) {
-            offset.setY(this.boundingConstant);
-        } else if(this.getPosition().getY() > world.getMaximumPosition().getY()) {
-            offset.setY(this.boundingConstant*-1);
-        }
+        // The velocity vector is a view onto the store when the entity is attached to one
+        this.constrainVelocity(velocityX, velocityY, this.velocity);
+    }
+
+    /**
+     * Work out the velocity setVelocity would give the entity, without changing the entity. Only reads
+     * the entity's position and the world's obstacles, so it's safe to call from several threads at once
+     * as long as nothing is moving.
+     *
+     * @param velocityX Horizontal component of velocity
+     * @param velocityY Vertical component of velocity
+     * @param result Vector2 set to the bounded, limited velocity
+     * @return Vector2 result
+     */
 
-        velocity = velocity.add(offset);
+    public Vector2 constrainVelocity(double velocityX, double velocityY, Vector2 result) {
 
-        // Obstacle avoidance
-        double closestDistance = Double.POSITIVE_INFINITY;
-        Obstacle closestObstacle = null;
+        double x = this.getPosition().getX();
+        double y = this.getPosition().getY();
 
-        for(Entity e : world.getEntities().values()) {
-            if(e instanceof Obstacle) {
-                if(e.getPosition().subtract(this.getPosition()).getMagnitude() < 50) {
-                    if(e.getPosition().subtract(this.getPosition()).getMagnitude() < closestDistance) {
-                        closestDistance = e.getPosition().subtract(this.getPosition()).getMagnitude();
-                        closestObstacle = (Obstacle) e;
-                    }
-                }
-            }
+        // Bounding
+        if(x < world.getMinimumPosition().getX()) {
+            velocityX += this.boundingConstant;
+        } else if(x > world.getMaximumPosition().getX()) {
+            velocityX += this.boundingConstant*-1;
         }
 
+        if(y < world.getMinimumPosition().getY()) {
+            velocityY += this.boundingConstant;
+        } else if(y > world.getMaximumPosition().getY()) {
+            velocityY += this.boundingConstant*-1;
+        }
+
+        // Obstacle avoidance, head directly away from the closest obstacle
+        Entity closestObstacle = world.findNearestObstacle(x, y, 50);
+
         if(closestObstacle != null) {
-            velocity = closestObstacle.getPosition().subtract(this.getPosition()).scalarMultiply(-1);
+            velocityX = x - closestObstacle.getPosition().getX();
+            velocityY = y - closestObstacle.getPosition().getY();
         }
 
         // Speed limiting
-        if(velocity.getMagnitude() > this.maxSpeed) {
-            Vector2 velocityUnit = velocity.scalarDivide(velocity.getMagnitude());
-            velocity = velocityUnit.scalarMultiply(this.maxSpeed);
+        double speedSquared = velocityX * velocityX + velocityY * velocityY;
+
+        if(speedSquared > this.maxSpeed * this.maxSpeed) {
+            double scale = this.maxSpeed / Math.sqrt(speedSquared);
+            velocityX *= scale;
+            velocityY *= scale;
         }
 
-        this.velocity = velocity;
+        return result.set(velocityX, velocityY);
+    }
 
+    /**
+     * Set the entity's velocity exactly as given, without any bounding, obstacle avoidance or speed
+     * limiting. Used to apply a velocity that has already been worked out with constrainVelocity.
+     *
+     * @param velocityX Horizontal component of velocity
+     * @param velocityY Vertical component of velocity
+     */
+
+    public void restoreVelocity(double velocityX, double velocityY) {
+        if(this.velocity == null) {
+            this.velocity = new Vector2(velocityX, velocityY);
+        } else {
+            this.velocity.set(velocityX, velocityY);
+        }
     }
 
     /**
@@ -203,12 +274,12 @@ public abstract class Entity implements Serializable {
 
     public Entity(String species, Vector2 position, int energy, int id, World world) {
 
-        this.setUuid();
-
         this.setPosition(position);
         this.energy = energy;
         this.id = id;
         this.world = world;
+
+        this.setUuid();
     }
 
     /**
@@ -238,7 +309,80 @@ public abstract class Entity implements Serializable {
      */
 
     public void setPosition(Vector2 position) {
-        this.position = position;
+        if(this.store != null) {
+            this.store.x[this.slot] = position.getX();
+            this.store.y[this.slot] = position.getY();
+        } else {
+            this.position = position;
+        }
+
+        if(this.world != null) {
+            this.world.entityMoved(this);
+        }
+    }
+
+    /**
+     * Set the entity's current position from its components. The entity's existing position vector is
+     * updated rather than replaced, so it's safe to call on every tick.
+     *
+     * @param x Horizontal position
+     * @param y Vertical position
+     * @see Entity#setPosition(Vector2)
+     */
+
+    public void setPosition(double x, double y) {
+        if(this.store != null) {
+            this.store.x[this.slot] = x;
+            this.store.y[this.slot] = y;
+        } else if(this.position != null) {
+            this.position.set(x, y);
+        } else {
+            this.position = new Vector2(x, y);
+        }
+
+        if(this.world != null) {
+            this.world.entityMoved(this);
+        }
+    }
+
+    /**
+     * Get the cell of the world's spatial index that this entity is currently stored in
+     * @return int cell index, or -1 if the entity isn't indexed
+     */
+
+    public int getSpatialCell() {
+        return spatialCell - 1;
+    }
+
+    /**
+     * Record which cell of the world's spatial index this entity is stored in. Should only be called
+     * by the spatial index itself.
+     *
+     * @param cell int cell index, or -1 if the entity is no longer indexed
+     */
+
+    public void setSpatialCell(int cell) {
+        this.spatialCell = cell + 1;
+    }
+
+    /**
+     * Check whether this entity is already in its world's list of changed entities
+     * @return boolean
+     */
+
+    public boolean isChanged() {
+        return changed;
+    }
+
+    /**
+     * Record whether this entity is in its world's list of changed entities. Should only be called by the
+     * world itself.
+     *
+     * @param changed boolean
+     */
+
+    public void setChanged(boolean changed) {
+        this.changed = changed;
     }
 
     /**
@@ -247,7 +391,7 @@ public abstract class Entity implements Serializable {
      */
 
     public double getEnergy() {
-        return energy;
+        return this.store != null ? this.store.energy[this.slot] : energy;
     }
 
     /**
@@ -256,7 +400,61 @@ public abstract class Entity implements Serializable {
      */
 
     public void setEnergy(double energy) {
-        this.energy = energy;
+        // Entities are only drawn while they have energy left, so the world needs to know when that changes
+        boolean wasVisible = this.getEnergy() > 0;
+
+        if(this.store != null) {
+            this.store.energy[this.slot] = energy;
+        } else {
+            this.energy = energy;
+        }
+
+        if(this.world != null && wasVisible != (energy > 0)) {
+            this.world.entityEnergyChanged(this);
+        }
+    }
+
+    /**
+     * Get the flags to hold for this entity when it's attached to an EntityStore
+     * @return byte EntityStore flags
+     */
+
+    byte storedFlags() {
+        return 0;
+    }
+
+    /**
+     * Copy the entity's state out of its EntityStore into its own fields
+     */
+
+    void copyOutOfStore() {
+        this.energy = this.store.energy[this.slot];
+    }
+
+    /**
+     * Replace the velocity vector without any bounding or speed limiting. Used when attaching to and
+     * detaching from an EntityStore.
+     *
+     * @param velocity Vector2 velocity
+     */
+
+    void setStoredVelocity(Vector2 velocity) {
+        this.velocity = velocity;
+    }
+
+    /**
+     * Make sure state held in an EntityStore is saved with the entity
+     *
+     * @param out Stream the entity is being written to
+     * @throws IOException If the entity can't be written
+     */
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        if(this.store != null) {
+            this.copyOutOfStore();
+        }
+
+        out.defaultWriteObject();
     }
 
     /**
@@ -303,7 +501,7 @@ public abstract class Entity implements Serializable {
         return "Entity{" +
                 ", x=" + getPosition().getX() +
                 ", y=" + getPosition().getY() +
-                ", energy=" + energy +
+                ", energy=" + getEnergy() +
                 ", id=" + id +
                 '}';
     }
@@ -386,4 +584,22 @@ public abstract class Entity implements Serializable {
     public void setMaxSpeed(double maxSpeed) {
         this.maxSpeed = maxSpeed;
     }
+
+    /**
+     * Get how quickly the entity returns inside the bounds of the world after travelling outside
+     * @return double bounding constant
+     */
+
+    public double getBoundingConstant() {
+        return boundingConstant;
+    }
+
+    /**
+     * Set how quickly the entity returns inside the bounds of the world after travelling outside
+     * @param boundingConstant double bounding constant
+     */
+
+    public void setBoundingConstant(double boundingConstant) {
+        this.boundingConstant = boundingConstant;
+    }
 }
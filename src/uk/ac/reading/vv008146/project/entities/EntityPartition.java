@@ -0,0 +1,144 @@
+package uk.ac.reading.vv008146.project.entities;
+
+import uk.ac.reading.vv008146.project.spatial.SpatialHashGrid;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Holds every entity of a single kind (food, obstacles, etc.) in a dense array, alongside a spatial index
+ * of just those entities. Queries that only care about one kind of entity can walk its partition without
+ * having to skip over everything else in the world.
+ *
+ * @param <T> Kind of entity held in the partition
+ */
+
+public class EntityPartition<T extends Entity> implements Iterable<T> {
+
+    private Entity[] entities;
+    private int size;
+
+    private final SpatialHashGrid spatialIndex;
+
+    /**
+     * Create an empty partition for a world of the given size
+     *
+     * @param width Width of the world
+     * @param height Height of the world
+     * @param cellSize Size of each cell in the partition's spatial index
+     */
+
+    public EntityPartition(double width, double height, double cellSize) {
+        this.entities = new Entity[16];
+        this.spatialIndex = new SpatialHashGrid(width, height, cellSize);
+    }
+
+    /**
+     * Add an entity to the partition
+     * @param e Entity to add
+     */
+
+    public void add(T e) {
+        if(size == entities.length) {
+            entities = Arrays.copyOf(entities, size * 2);
+        }
+
+        entities[size++] = e;
+        spatialIndex.insert(e);
+    }
+
+    /**
+     * Remove an entity from the partition. The last entity in the partition is moved into the gap, so
+     * the order of the partition isn't preserved. Entities are rarely removed, so this searches for the
+     * entity rather than tracking where each one is stored.
+     *
+     * @param e Entity to remove
+     * @return Boolean whether the entity was in the partition
+     */
+
+    public boolean remove(Entity e) {
+        for(int i = size - 1; i >= 0; i--) {
+            if(entities[i] == e) {
+                entities[i] = entities[--size];
+                entities[size] = null;
+                spatialIndex.remove(e);
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Get the entity at the given position in the partition
+     * @param index int position, between 0 and size() - 1
+     * @return Entity
+     */
+
+    @SuppressWarnings("unchecked")
+    public T get(int index) {
+        return (T) entities[index];
+    }
+
+    /**
+     * Get the number of entities in the partition
+     * @return int size
+     */
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Get the spatial index holding just the entities in this partition
+     * @return SpatialHashGrid
+     */
+
+    public SpatialHashGrid getSpatialIndex() {
+        return spatialIndex;
+    }
+
+    /**
+     * Copy the partition into a list
+     * @return List of entities in the partition
+     */
+
+    public List<T> toList() {
+        List<T> list = new ArrayList<>(size);
+
+        for(int i = 0; i < size; i++) {
+            list.add(this.get(i));
+        }
+
+        return list;
+    }
+
+    /**
+     * Iterate over the partition. Hot paths should prefer indexing with get(int), which doesn't allocate.
+     * @return Iterator
+     */
+
+    @Override
+    public Iterator<T> iterator() {
+        return new Iterator<T>() {
+            private int next = 0;
+
+            @Override
+            public boolean hasNext() {
+                return next < size;
+            }
+
+            @Override
+            public T next() {
+                if(next >= size) {
+                    throw new NoSuchElementException();
+                }
+
+                return get(next++);
+            }
+        };
+    }
+}
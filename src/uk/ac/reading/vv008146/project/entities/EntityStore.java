@@ -0,0 +1,264 @@
+package uk.ac.reading.vv008146.project.entities;
+
+import uk.ac.reading.vv008146.project.Vector2;
+
+import java.util.Arrays;
+
+/**
+ * Structure-of-arrays storage for the state that changes on every tick. Rather than each entity holding
+ * its own position and velocity objects scattered around the heap, entities attached to a store keep
+ * their state in primitive arrays indexed by a compact slot number, and act as thin views over it.
+ *
+ * This lets the hottest parts of a tick (starvation checks and moving beings along their velocities)
+ * run as tight loops over contiguous memory.
+ */
+
+public class EntityStore {
+
+    // Flags held for each slot
+    public static final byte LIVING = 1;
+    public static final byte DEAD = 1 << 1;
+    public static final byte FLOCK = 1 << 2;
+    public static final byte CARNIVORE = 1 << 3;
+
+    double[] x;
+    double[] y;
+    double[] vx;
+    double[] vy;
+    double[] energy;
+    byte[] flags;
+
+    private Entity[] owners;
+    private int size;
+
+    /**
+     * Create an empty store
+     * @param capacity int number of entities to make room for up front
+     */
+
+    public EntityStore(int capacity) {
+        this.resize(Math.max(16, capacity));
+    }
+
+    private void resize(int capacity) {
+        this.x = Arrays.copyOf(x == null ? new double[0] : x, capacity);
+        this.y = Arrays.copyOf(y == null ? new double[0] : y, capacity);
+        this.vx = Arrays.copyOf(vx == null ? new double[0] : vx, capacity);
+        this.vy = Arrays.copyOf(vy == null ? new double[0] : vy, capacity);
+        this.energy = Arrays.copyOf(energy == null ? new double[0] : energy, capacity);
+        this.flags = Arrays.copyOf(flags == null ? new byte[0] : flags, capacity);
+        this.owners = Arrays.copyOf(owners == null ? new Entity[0] : owners, capacity);
+    }
+
+    /**
+     * Move an entity's state into the store. From now on the entity reads and writes its position,
+     * velocity, energy and flags through the store.
+     *
+     * @param e Entity to attach
+     */
+
+    public void attach(Entity e) {
+        if(e.store != null) {
+            return;
+        }
+
+        if(size == owners.length) {
+            this.resize(size * 2);
+        }
+
+        int slot = size++;
+
+        x[slot] = e.position.getX();
+        y[slot] = e.position.getY();
+
+        Vector2 velocity = e.getVelocity();
+        vx[slot] = velocity == null ? 0 : velocity.getX();
+        vy[slot] = velocity == null ? 0 : velocity.getY();
+
+        energy[slot] = e.energy;
+        flags[slot] = e.storedFlags();
+        owners[slot] = e;
+
+        e.store = this;
+        e.slot = slot;
+        e.position = new StoredVector(e, false);
+        e.setStoredVelocity(new StoredVector(e, true));
+    }
+
+    /**
+     * Copy an entity's state back out of the store and stop it using the store. The last entity in the
+     * store is moved into the freed slot so the arrays stay dense.
+     *
+     * @param e Entity to detach
+     */
+
+    public void detach(Entity e) {
+        if(e.store != this) {
+            return;
+        }
+
+        int slot = e.slot;
+
+        e.copyOutOfStore();
+        e.position = new Vector2(x[slot], y[slot]);
+        e.setStoredVelocity(new Vector2(vx[slot], vy[slot]));
+        e.store = null;
+        e.slot = -1;
+
+        int last = --size;
+
+        if(slot != last) {
+            x[slot] = x[last];
+            y[slot] = y[last];
+            vx[slot] = vx[last];
+            vy[slot] = vy[last];
+            energy[slot] = energy[last];
+            flags[slot] = flags[last];
+            owners[slot] = owners[last];
+            owners[slot].slot = slot;
+        }
+
+        owners[last] = null;
+    }
+
+    /**
+     * Mark every living being that has run out of energy as dead
+     */
+
+    public void markStarved() {
+        for(int i = 0; i < size; i++) {
+            if((flags[i] & LIVING) != 0 && energy[i] <= 0) {
+                flags[i] |= DEAD;
+            }
+        }
+    }
+
+    /**
+     * Move every living being that isn't dead or part of a flock along its velocity. Flocks move
+     * themselves.
+     *
+     * @return int number of beings that moved
+     */
+
+    public int integrate() {
+        int moved = 0;
+
+        for(int i = 0; i < size; i++) {
+            if(this.isFreeMoving(i)) {
+                x[i] += vx[i];
+                y[i] += vy[i];
+                moved++;
+            }
+        }
+
+        return moved;
+    }
+
+    /**
+     * Check whether the entity in a slot is a living being that moves under its own steam, i.e. it isn't
+     * dead and isn't moved by a flock
+     *
+     * @param slot int slot
+     * @return Boolean
+     */
+
+    public boolean isFreeMoving(int slot) {
+        return (flags[slot] & (LIVING | DEAD | FLOCK)) == LIVING;
+    }
+
+    /**
+     * Get the entity stored in the given slot
+     * @param slot int slot
+     * @return Entity
+     */
+
+    public Entity getOwner(int slot) {
+        return owners[slot];
+    }
+
+    /**
+     * Check whether the entity in a slot has all of the given flags
+     *
+     * @param slot int slot
+     * @param flag byte flags to check
+     * @return Boolean
+     */
+
+    public boolean hasFlags(int slot, byte flag) {
+        return (flags[slot] & flag) == flag;
+    }
+
+    void setFlag(int slot, byte flag, boolean set) {
+        if(set) {
+            flags[slot] |= flag;
+        } else {
+            flags[slot] &= ~flag;
+        }
+    }
+
+    /**
+     * Get the number of entities in the store
+     * @return int size
+     */
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * A vector that reads and writes one of an entity's stored vectors. The entity's slot is looked up on
+     * every access, as it can change when other entities are detached.
+     */
+
+    private static class StoredVector extends Vector2 {
+
+        // Never written itself, see writeReplace, but Vector2 is Serializable
+        private static final long serialVersionUID = 1L;
+
+        private final Entity owner;
+        private final boolean velocity;
+
+        StoredVector(Entity owner, boolean velocity) {
+            this.owner = owner;
+            this.velocity = velocity;
+        }
+
+        @Override
+        public double getX() {
+            return velocity ? owner.store.vx[owner.slot] : owner.store.x[owner.slot];
+        }
+
+        @Override
+        public void setX(double x) {
+            if(velocity) {
+                owner.store.vx[owner.slot] = x;
+            } else {
+                owner.store.x[owner.slot] = x;
+            }
+        }
+
+        @Override
+        public double getY() {
+            return velocity ? owner.store.vy[owner.slot] : owner.store.y[owner.slot];
+        }
+
+        @Override
+        public void setY(double y) {
+            if(velocity) {
+                owner.store.vy[owner.slot] = y;
+            } else {
+                owner.store.y[owner.slot] = y;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return new Vector2(getX(), getY()).toString();
+        }
+
+        // Save a plain copy, the store itself isn't saved
+        private Object writeReplace() {
+            return new Vector2(getX(), getY());
+        }
+    }
+}
@@ -1,13 +1,11 @@
 package uk.ac.reading.vv008146.project.entities;
 
-import javafx.scene.image.Image;
 import uk.ac.reading.vv008146.project.Vector2;
 import uk.ac.reading.vv008146.project.World;
 
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
-import java.util.Random;
 
 /**
  * The food entity represents plants/vegetation that living beings can eat to sustain
@@ -16,6 +14,8 @@ import java.util.Random;
  */
 public class Food extends Entity {
 
+    private static final long serialVersionUID = 5658029911807528469L;
+
     // Poisonous food will reduce an entity's energy, rather than increasing it.
     // Trophic levels don't apply to poisonous foods.
     protected boolean poisonous;
@@ -31,14 +31,14 @@ public class Food extends Entity {
 
     public Food(Vector2 position, int energy, World world) {
 
-        this.setUuid();
-
         this.setSpriteName("food/candy");
 
         this.setPosition(position);
         this.energy = energy;
         this.world = world;
 
+        this.setUuid();
+
         this.setVelocity(new Vector2(0,0));
     }
 
@@ -54,12 +54,12 @@ public class Food extends Entity {
 
     public Food(String spriteName, Vector2 position, int energy, World world) {
 
-        this.setUuid();
-
         this.setSpriteName(spriteName);
         this.setPosition(position);
         this.energy = energy;
         this.world = world;
+
+        this.setUuid();
     }
 
     /**
@@ -102,8 +102,8 @@ public class Food extends Entity {
 
             if(loadedObject instanceof Food) {
                 Food food = (Food) loadedObject;
-                food.setUuid();
                 food.world = world;
+                food.setUuid();
                 return food;
             }
 
@@ -18,13 +18,13 @@ public class GraveMarker extends Entity {
 
     public GraveMarker(Vector2 position, World world) {
 
-        this.setUuid();
-
         this.setSpriteName("objects/crossbones");
         this.setPosition(position);
         this.energy = 0;
         this.world = world;
 
+        this.setUuid();
+
         this.setVelocity(new Vector2(0,0));
     }
 }
@@ -1,14 +1,17 @@
 package uk.ac.reading.vv008146.project.entities;
 
-import javafx.scene.image.Image;
 import uk.ac.reading.vv008146.project.Direction;
 import uk.ac.reading.vv008146.project.Vector2;
 import uk.ac.reading.vv008146.project.World;
+import uk.ac.reading.vv008146.project.simulation.RandomStreams;
+import uk.ac.reading.vv008146.project.simulation.SimulationClock;
+import uk.ac.reading.vv008146.project.spatial.FlowField;
+import uk.ac.reading.vv008146.project.spatial.OccupancyBitmap;
+import uk.ac.reading.vv008146.project.spatial.ScentField;
 
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
-import java.util.Random;
 
 /**
  * LivingBeing class represents an entity that moves about and eats within a world
@@ -16,7 +19,19 @@ import java.util.Random;
 
 public class LivingBeing extends Entity {
 
-    private long lastRandomMovement; // When was the last random movement made?
+    private static final long serialVersionUID = 7334899604719851559L;
+
+    // How often a being looks for closer food than the food it's already heading for
+    public static final long FOOD_SEARCH_TICKS = SimulationClock.secondsToTicks(0.25);
+
+    // Scent weaker than this is too faint to follow, see steerByScent
+    public static final float MINIMUM_SCENT = 0.05f;
+
+    // Turns tried, in order, when the way is blocked: 45 degrees either way, then 90
+    private static final double[] TURN_COS = { Math.cos(Math.PI / 4), Math.cos(-Math.PI / 4), 0, 0 };
+    private static final double[] TURN_SIN = { Math.sin(Math.PI / 4), Math.sin(-Math.PI / 4), 1, -1 };
+
+    private long lastRandomMovement; // Which tick was the last random movement made on?
 
     protected String species; // What species is this being?
 
@@ -28,6 +43,13 @@ public class LivingBeing extends Entity {
 
     private double attackValue; // How strongly can this being attack?
 
+    private transient Vector2 step; // Scratch vector reused when steering towards food
+
+    private transient Entity target; // Food the being is heading for, kept between ticks
+    private transient long lastFoodSearch; // Which tick was the target found on?
+
+    private transient double[] flowStep; // Scratch point reused when following the flow field
+
     /**
      * Get the position that the being is aiming to reach
      * @return Vector2 goal position
@@ -58,15 +80,16 @@ public class LivingBeing extends Entity {
 
     public LivingBeing(String spriteName, Vector2 position, World world) {
 
-        this.setUuid();
-
         this.spriteName = spriteName;
         this.setPosition(position);
         this.energy = 10;
         this.world = world;
+
+        this.setUuid();
         this.dead = false;
+        this.setVelocity(new Vector2(0,0));
 
-        this.lastRandomMovement = System.currentTimeMillis();
+        this.lastRandomMovement = world.getTick();
     }
 
     /**
@@ -121,6 +144,10 @@ public class LivingBeing extends Entity {
 
     public void setFlock(boolean flock) {
         this.flock = flock;
+
+        if(this.store != null) {
+            this.store.setFlag(this.slot, EntityStore.FLOCK, flock);
+        }
     }
 
     /**
@@ -129,7 +156,7 @@ public class LivingBeing extends Entity {
      */
 
     public boolean isDead() {
-        return dead;
+        return this.store != null ? this.store.hasFlags(this.slot, EntityStore.DEAD) : dead;
     }
 
     /**
@@ -138,12 +165,16 @@ public class LivingBeing extends Entity {
      */
 
     public void setDead(boolean dead) {
-        this.dead = dead;
+        if(this.store != null) {
+            this.store.setFlag(this.slot, EntityStore.DEAD, dead);
+        } else {
+            this.dead = dead;
+        }
     }
 
     /**
      * Get when the last random movement was made
-     * @return long Last random movenemt time in ms
+     * @return long Tick the last random movement was made on
      */
 
     public long getLastRandomMovement() {
@@ -152,7 +183,7 @@ public class LivingBeing extends Entity {
 
     /**
      * set when the last random movement was made
-     * @param lastRandomMovement long Time in ms
+     * @param lastRandomMovement long Tick the movement was made on
      */
 
     public void setLastRandomMovement(long lastRandomMovement) {
@@ -170,121 +201,261 @@ public class LivingBeing extends Entity {
 
     public Entity smellFood(int range) {
 
-        Entity closestFood = null;
-        double shortestDistance = Double.POSITIVE_INFINITY;
+        double x = this.getPosition().getX();
+        double y = this.getPosition().getY();
+
+        if(!this.isCarnivore()) {
+            return world.getFood().getSpatialIndex().findNearest(x, y, range, e -> e.getEnergy() > 0);
+        } else {
+            return world.getBeings().getSpatialIndex().findNearest(x, y, range, e -> !(e.equals(this)) && e.getEnergy() > 0);
+        }
+    }
+
+    /**
+     * Find food to head for. The food found is remembered, and kept as long as it's still there to be eaten
+     * and still in range, which is much cheaper to check than searching again. A new search is only made
+     * when the food is lost, or every FOOD_SEARCH_TICKS ticks in case something closer has turned up.
+     *
+     * @param range Distance to search
+     * @return Food or null if nothing in range
+     * @see LivingBeing#smellFood(int)
+     */
+
+    public Entity findFood(int range) {
+        long tick = world.getTick();
+        long sinceLastSearch = tick - this.lastFoodSearch;
+
+        if(this.target != null && sinceLastSearch >= 0 && sinceLastSearch < FOOD_SEARCH_TICKS && this.canStillEat(this.target, range)) {
+            return this.target;
+        }
 
-        for(Entity e : world.getEntities().values()) {
+        this.target = this.smellFood(range);
+        this.lastFoodSearch = tick;
 
-            if(!this.isCarnivore()) {
-                if(e instanceof Food) {
+        return this.target;
+    }
 
-                    Food food = (Food) e;
+    private boolean canStillEat(Entity food, int range) {
+        // Eaten, dead, or taken out of the world
+        if(food.getEnergy() <= 0 || food.getSpatialCell() < 0) {
+            return false;
+        }
 
-                    if(food.getEnergy() <= 0) {
-                        continue;
-                    }
+        double dx = food.getPosition().getX() - this.getPosition().getX();
+        double dy = food.getPosition().getY() - this.getPosition().getY();
 
-                    double distance = this.calculateDistance(this, food);
+        return dx * dx + dy * dy <= (double) range * range;
+    }
 
-                    if (distance < shortestDistance) {
-                        closestFood = food;
-                        shortestDistance = distance;
-                    }
-                }
-            } else {
-                if(e instanceof LivingBeing && !(e.equals(this)) ) {
+    /**
+     * Get the food the being was last heading for
+     * @return Entity, or null if the being hasn't found any
+     */
+
+    public Entity getTarget() {
+        return target;
+    }
+
+    /**
+     * Calculates a vector from this entity towards the given entity. This is used to aim the entity
+     * towards food it wants to eat.
+     *
+     * @param food Entity which will be eaten
+     * @return Vector2 offset of current vector to navigate towards food
+     */
+
+    public Vector2 calculateVectorToFood(Entity food) {
+        Vector2 velocityVector = new Vector2(0,0);
+
+        this.calculateStepTowards(food.getPosition().getX(), food.getPosition().getY(), velocityVector);
 
-                    LivingBeing meal = (LivingBeing) e;
+        return velocityVector.addInPlace(this.getVelocity());
+    }
+
+    /**
+     * Steer towards the given food, adding the result of calculateVectorToFood(Entity) to the being's
+     * velocity. Used on every tick, so it reuses a scratch vector instead of creating new ones.
+     *
+     * @param food Entity which will be eaten
+     * @see LivingBeing#calculateVectorToFood(Entity)
+     */
+
+    public void steerTowardsFood(Entity food) {
+        this.steerTowards(food.getPosition().getX(), food.getPosition().getY());
+    }
 
-                    if(meal.getEnergy() <= 0) {
-                        continue;
-                    }
+    /**
+     * Steer the way the food or prey scent around the being is strongest. Once the being is in the cell
+     * with the strongest scent, the food itself is close by, so it looks for it as usual and heads
+     * straight for it.
+     *
+     * @param scent ScentField to follow
+     * @return boolean false if there's too little scent to follow, or no food where it's strongest
+     */
+
+    public boolean steerByScent(ScentField scent) {
+        int channel = this.isCarnivore() ? ScentField.PREY : ScentField.FOOD;
 
-                    double distance = this.calculateDistance(this, meal);
+        int column = scent.columnOf(this.getPosition().getX());
+        int row = scent.rowOf(this.getPosition().getY());
 
-                    if (distance < shortestDistance) {
-                        closestFood = meal;
-                        shortestDistance = distance;
-                    }
+        int bestColumn = column;
+        int bestRow = row;
+        float best = scent.get(channel, column, row);
+
+        // Check the cells around this one for a stronger scent
+        for(int r = Math.max(0, row - 1); r <= Math.min(scent.getRows() - 1, row + 1); r++) {
+            for(int c = Math.max(0, column - 1); c <= Math.min(scent.getColumns() - 1, column + 1); c++) {
+                float here = scent.get(channel, c, r);
+
+                if(here > best) {
+                    best = here;
+                    bestColumn = c;
+                    bestRow = r;
                 }
             }
         }
 
+        if(best < MINIMUM_SCENT) {
+            return false;
+        }
 
-        if(shortestDistance <= range) {
-            return closestFood;
-        } else {
-            return null;
+        if(bestColumn == column && bestRow == row) {
+            // Far enough to reach anything in this cell or the ones next to it
+            Entity meal = this.findFood((int) Math.ceil(scent.getCellSize() * 2));
+
+            if(meal == null) {
+                // The scent is left over from food that's since been eaten
+                return false;
+            }
+
+            this.steerTowardsFood(meal);
+            return true;
         }
+
+        // Head for the middle of the cell with the strongest scent
+        this.steerTowards((bestColumn + 0.5) * scent.getCellSize(), (bestRow + 0.5) * scent.getCellSize());
+
+        return true;
     }
 
     /**
-     * Calculate the distance between two entities, as the crow flies. This method is used to determine whether
-     * food is close enough to aim towards it.
+     * Steer towards a point, adding a step towards it to the being's velocity
      *
-     * @param e1 Entity first entity
-     * @param e2 Entity second entity
-     * @return Distance between e1 and e2, as the crow flies
+     * @param targetX X coordinate to steer towards
+     * @param targetY Y coordinate to steer towards
      */
 
-    private double calculateDistance(Entity e1, Entity e2) {
-        // Get being's x/y coordinates:
-        double beingX = e1.getPosition().getX();
-        double beingY = e1.getPosition().getY();
+    private void steerTowards(double targetX, double targetY) {
+        if(this.step == null) {
+            this.step = new Vector2();
+        }
 
-        // Get food's x/y coordinates
-        double foodX = e2.getPosition().getX();
-        double foodY = e2.getPosition().getY();
+        this.calculateStepTowards(targetX, targetY, this.step);
 
-        // a^2 + b^2 = c^2
+        // velocity + calculateVectorToFood(food), without the intermediate vectors
+        this.setVelocity(2 * this.getVelocity().getX() + this.step.getX(), 2 * this.getVelocity().getY() + this.step.getY());
+    }
 
-        // Get length of horizontal side
-        double horizLength = Math.abs(beingX - foodX);
-        // Get length of vertical side
-        double vertLength = Math.abs(beingY - foodY);
+    /**
+     * Work out the single step to take towards a point, e.g. where some food is. Normally a unit vector
+     * pointing at the point. If the way is blocked, a way around is found with the world's flow field if it has
+     * one, otherwise a random nudge is used instead.
+     *
+     * @param targetX X coordinate to step towards
+     * @param targetY Y coordinate to step towards
+     * @param step Vector2 set to the step to take
+     */
+
+    private void calculateStepTowards(double targetX, double targetY, Vector2 step) {
+        double x = this.getPosition().getX();
+        double y = this.getPosition().getY();
 
-        // Work out the length of the hypotenuse, this is also the
-        // distance between the being and the food, as the crow flies
+        // Magnitude of the line between the food and the entity
+        // a^2 + b^2 = c^2
+        double directionX = targetX - x;
+        double directionY = targetY - y;
+        double magnitude = Math.sqrt(directionX * directionX + directionY * directionY);
 
-        // sqrt(a^2 + b^2) = c
-        return Math.sqrt(Math.pow(horizLength, 2) + Math.pow(vertLength, 2));
+        double unitX = directionX / magnitude;
+        double unitY = directionY / magnitude;
 
+        if (!(world.getBlockedPositions().isSet(x + unitX, y + unitY))) {
+            step.set(unitX, unitY);
+            this.setEnergy(this.getEnergy() - this.getEnergyDepletionValue());
+        } else if(world.getFlowField() != null && this.findWayAround(world.getFlowField(), unitX, unitY, step)) {
+            this.setEnergy(this.getEnergy() - this.getEnergyDepletionValue());
+        } else {
+            long random = world.random(RandomStreams.STEPPING, this);
+            step.set(RandomStreams.nextInt(random, 5), RandomStreams.nextInt(RandomStreams.next(random), 5));
+        }
     }
 
     /**
-     * Calculates a vector from this entity towards the given entity. This is used to aim the entity
-     * towards food it wants to eat.
+     * Find a step around whatever is blocking the way. The flow field is followed if the being isn't
+     * already in a food patch, otherwise the being turns a little either way until it finds a step that
+     * isn't blocked.
      *
-     * @param food Entity which will be eaten
-     * @return Vector2 offset of current vector to navigate towards food
+     * @param field FlowField to follow
+     * @param unitX X component of the unit vector the being wanted to step along
+     * @param unitY Y component of the unit vector the being wanted to step along
+     * @param step Vector2 set to the step to take
+     * @return boolean false if every way is blocked
      */
 
-    public Vector2 calculateVectorToFood(Entity food) {
-        Vector2 velocityVector = new Vector2(0,0);
-        // Total length
-        // a^2 + b^2 = c^2
-        double a = Math.abs(food.getPosition().getX() - this.getPosition().getX());
-        double b = Math.abs(food.getPosition().getY() - this.getPosition().getY());
+    private boolean findWayAround(FlowField field, double unitX, double unitY, Vector2 step) {
+        double x = this.getPosition().getX();
+        double y = this.getPosition().getY();
 
-        // Magnitude of the line between the food and the entity
-        // magnitude = c (in the above equation)
-        double magnitude = Math.sqrt(Math.pow(a, 2) + Math.pow(b, 2));
+        if(this.flowStep == null) {
+            this.flowStep = new double[2];
+        }
 
-        Vector2 directionVector = food.getPosition().subtract(this.getPosition());
-        Vector2 directionUnitVector = directionVector.scalarDivide(magnitude);
+        OccupancyBitmap blocked = world.getBlockedPositions();
 
-        double proposedX = (this.getPosition().getX() + directionUnitVector.getX());
-        double proposedY = (this.getPosition().getY() + directionUnitVector.getY());
+        if(field.findStep(x, y, this.flowStep)) {
+            double directionX = this.flowStep[0] - x;
+            double directionY = this.flowStep[1] - y;
+            double magnitude = Math.sqrt(directionX * directionX + directionY * directionY);
 
-        if (!(world.blocked(proposedX, proposedY))) {
-            velocityVector = this.getVelocity().add(directionUnitVector);
-            this.setEnergy(this.getEnergy() - this.getEnergyDepletionValue());
-        } else {
-            Random rng = new Random();
-            velocityVector = this.getVelocity().add(new Vector2(rng.nextInt(5), rng.nextInt(5)));
+            if(magnitude > 0 && !blocked.isSet(x + directionX / magnitude, y + directionY / magnitude)) {
+                step.set(directionX / magnitude, directionY / magnitude);
+                return true;
+            }
+        }
+
+        for(int i = 0; i < TURN_COS.length; i++) {
+            double turnedX = unitX * TURN_COS[i] - unitY * TURN_SIN[i];
+            double turnedY = unitX * TURN_SIN[i] + unitY * TURN_COS[i];
+
+            if(!blocked.isSet(x + turnedX, y + turnedY)) {
+                step.set(turnedX, turnedY);
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Head for the nearest food patch, following the world's flow field
+     *
+     * @param field FlowField to follow
+     * @return boolean false if the being is already in a patch, or can't get to one
+     */
+
+    public boolean steerByFlowField(FlowField field) {
+        if(this.flowStep == null) {
+            this.flowStep = new double[2];
+        }
+
+        if(!field.findStep(this.getPosition().getX(), this.getPosition().getY(), this.flowStep)) {
+            return false;
         }
 
-        return velocityVector;
+        this.steerTowards(this.flowStep[0], this.flowStep[1]);
+
+        return true;
     }
 
     /**
@@ -331,5 +502,43 @@ public class LivingBeing extends Entity {
 
     public void setCarnivore(boolean carnivore) {
         this.carnivore = carnivore;
+
+        if(this.store != null) {
+            this.store.setFlag(this.slot, EntityStore.CARNIVORE, carnivore);
+        }
+    }
+
+    /**
+     * Get the flags to hold for this being when it's attached to an EntityStore
+     * @return byte EntityStore flags
+     */
+
+    @Override
+    byte storedFlags() {
+        byte flags = EntityStore.LIVING;
+
+        if(dead) {
+            flags |= EntityStore.DEAD;
+        }
+
+        if(flock) {
+            flags |= EntityStore.FLOCK;
+        }
+
+        if(carnivore) {
+            flags |= EntityStore.CARNIVORE;
+        }
+
+        return flags;
+    }
+
+    /**
+     * Copy the being's state out of its EntityStore into its own fields
+     */
+
+    @Override
+    void copyOutOfStore() {
+        super.copyOutOfStore();
+        this.dead = this.store.hasFlags(this.slot, EntityStore.DEAD);
     }
 }
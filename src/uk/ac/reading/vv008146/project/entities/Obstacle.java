@@ -1,6 +1,5 @@
 package uk.ac.reading.vv008146.project.entities;
 
-import javafx.scene.image.Image;
 import uk.ac.reading.vv008146.project.Vector2;
 import uk.ac.reading.vv008146.project.World;
 
@@ -9,6 +8,8 @@ import uk.ac.reading.vv008146.project.World;
  */
 public class Obstacle extends Entity {
 
+    private static final long serialVersionUID = 3616450987391123495L;
+
     /**
      * Create an obstacle that living beings can't pass through
      *
@@ -18,13 +19,13 @@ public class Obstacle extends Entity {
 
     public Obstacle(Vector2 position, World world) {
 
-        this.setUuid();
-
         this.setSpriteName("objects/tree-christmas");
         this.setPosition(position);
         this.energy = 5;
         this.world = world;
 
+        this.setUuid();
+
         this.setVelocity(new Vector2(0,0));
     }
 }
@@ -0,0 +1,324 @@
+package uk.ac.reading.vv008146.project.persistence;
+
+import uk.ac.reading.vv008146.project.World;
+import uk.ac.reading.vv008146.project.entities.Entity;
+import uk.ac.reading.vv008146.project.entities.LivingBeing;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Checkpoints a world into a directory every so many ticks, so a long simulation can be picked up again
+ * from close to where it stopped. Most checkpoints are WorldDeltas, holding only the entities that have
+ * changed since the checkpoint before, so they cost about as much as the world is busy rather than as
+ * much as it is big. Every so often a full WorldSnapshot is written instead as a new base, and the
+ * checkpoints before it are deleted once it's safely written.
+ *
+ * Changes are found by comparing every entity with how it was at the last checkpoint, which catches
+ * every way an entity can change without the world having to record them. If entities have been added
+ * or removed since the base, deltas can't describe that, so a new base is written instead.
+ *
+ * Checkpoints are taken on whichever thread is simulating the world, between ticks, and written to disk
+ * on a thread of their own, one after another in the order they were taken.
+ *
+ * Files in the directory are named after the tick they were taken on:
+ *
+ *   checkpoint-TICK.world   Base snapshot, see SnapshotFile
+ *   checkpoint-TICK.delta   Changes since the checkpoint before, back to the base
+ */
+
+public class CheckpointWriter {
+
+    private static final String PREFIX = "checkpoint-";
+    private static final String BASE_EXTENSION = ".world";
+    private static final String DELTA_EXTENSION = ".delta";
+
+    private final Path directory;
+    private final long interval;
+    private final int deltasPerBase;
+
+    private final ExecutorService executor;
+
+    // Set by the writing thread if a checkpoint couldn't be written, so the next one starts again from a base
+    private volatile boolean failed;
+
+    // Base whose deltas stopped being written after one failed, as later ones would skip over its changes.
+    // Only used by the writing thread
+    private long brokenBase = -1;
+
+    // The world and population the base was taken from
+    private World world;
+    private int populationVersion;
+
+    private long baseTick;
+    private long lastTick;
+    private int deltas;
+
+    // Every entity in the world, and how it was at the last checkpoint
+    private Entity[] entities;
+    private double[] x;
+    private double[] y;
+    private double[] velocityX;
+    private double[] velocityY;
+    private double[] energy;
+    private boolean[] dead;
+
+    /**
+     * Create a writer for a directory, creating the directory if it doesn't exist
+     *
+     * @param directory String path of the directory to write checkpoints into
+     * @param interval long ticks between checkpoints
+     * @param deltasPerBase int deltas written after each base before the next base
+     * @throws IOException If the directory can't be created
+     */
+
+    public CheckpointWriter(String directory, long interval, int deltasPerBase) throws IOException {
+        this.directory = Files.createDirectories(Paths.get(directory));
+        this.interval = Math.max(1, interval);
+        this.deltasPerBase = Math.max(0, deltasPerBase);
+
+        this.executor = Executors.newSingleThreadExecutor(task -> {
+            Thread thread = new Thread(task, "checkpoint");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Take a checkpoint if enough ticks have gone by since the last one. Called after every tick.
+     * @param world World being simulated
+     */
+
+    public void tick(World world) {
+        if(this.world != world || world.getTick() - this.lastTick >= this.interval) {
+            this.checkpoint(world);
+        }
+    }
+
+    /**
+     * Take a checkpoint now. Must be called from whichever thread is simulating the world, between ticks.
+     * @param world World being simulated
+     */
+
+    public void checkpoint(World world) {
+        long tick = world.getTick();
+
+        boolean base = this.failed || this.world != world || world.getPopulationVersion() != this.populationVersion
+                || this.deltas >= this.deltasPerBase;
+
+        if(base) {
+            this.failed = false;
+            this.takeBase(world);
+        } else {
+            this.takeDelta(tick);
+        }
+
+        this.lastTick = tick;
+    }
+
+    private void takeBase(World world) {
+        WorldSnapshot snapshot = WorldSnapshot.capture(world);
+
+        this.world = world;
+        this.populationVersion = world.getPopulationVersion();
+        this.baseTick = snapshot.getTick();
+        this.deltas = 0;
+
+        int size = world.getEntities().size();
+
+        this.entities = world.getEntities().values().toArray(new Entity[size]);
+        this.x = new double[size];
+        this.y = new double[size];
+        this.velocityX = new double[size];
+        this.velocityY = new double[size];
+        this.energy = new double[size];
+        this.dead = new boolean[size];
+
+        for(int i = 0; i < size; i++) {
+            this.remember(i, this.entities[i]);
+        }
+
+        long baseTick = this.baseTick;
+
+        this.executor.execute(() -> {
+            try {
+                SnapshotFile.write(snapshot, this.pathOf(baseTick, BASE_EXTENSION).toString(), null);
+
+                // Everything before the new base is no longer needed to restore the world
+                for(Path path : this.list()) {
+                    if(tickOf(path) < baseTick) {
+                        Files.deleteIfExists(path);
+                    }
+                }
+            } catch(IOException e) {
+                e.printStackTrace();
+                this.failed = true;
+            }
+        });
+    }
+
+    private void takeDelta(long tick) {
+        WorldDelta delta = new WorldDelta(this.baseTick, tick, 0);
+
+        for(int i = 0; i < this.entities.length; i++) {
+            if(this.hasChanged(i, this.entities[i])) {
+                delta.add(this.entities[i]);
+                this.remember(i, this.entities[i]);
+            }
+        }
+
+        this.deltas++;
+
+        this.executor.execute(() -> {
+            if(delta.getBaseTick() == this.brokenBase) {
+                return;
+            }
+
+            try {
+                SnapshotFile.writeDelta(delta, this.pathOf(tick, DELTA_EXTENSION).toString());
+            } catch(IOException e) {
+                e.printStackTrace();
+                this.brokenBase = delta.getBaseTick();
+                this.failed = true;
+            }
+        });
+    }
+
+    private void remember(int i, Entity e) {
+        this.x[i] = e.getPosition().getX();
+        this.y[i] = e.getPosition().getY();
+        this.velocityX[i] = e.getVelocity() != null ? e.getVelocity().getX() : Double.NaN;
+        this.velocityY[i] = e.getVelocity() != null ? e.getVelocity().getY() : Double.NaN;
+        this.energy[i] = e.getEnergy();
+        this.dead[i] = e instanceof LivingBeing && ((LivingBeing) e).isDead();
+    }
+
+    private boolean hasChanged(int i, Entity e) {
+        double velocityX = e.getVelocity() != null ? e.getVelocity().getX() : Double.NaN;
+        double velocityY = e.getVelocity() != null ? e.getVelocity().getY() : Double.NaN;
+
+        // Compared bit for bit, so NaNs match
+        return Double.doubleToLongBits(this.x[i]) != Double.doubleToLongBits(e.getPosition().getX())
+                || Double.doubleToLongBits(this.y[i]) != Double.doubleToLongBits(e.getPosition().getY())
+                || Double.doubleToLongBits(this.velocityX[i]) != Double.doubleToLongBits(velocityX)
+                || Double.doubleToLongBits(this.velocityY[i]) != Double.doubleToLongBits(velocityY)
+                || Double.doubleToLongBits(this.energy[i]) != Double.doubleToLongBits(e.getEnergy())
+                || this.dead[i] != (e instanceof LivingBeing && ((LivingBeing) e).isDead());
+    }
+
+    /**
+     * Wait for every checkpoint taken so far to be written, then stop the writing thread. No more
+     * checkpoints can be taken afterwards.
+     */
+
+    public void close() {
+        this.executor.shutdown();
+
+        try {
+            this.executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private Path pathOf(long tick, String extension) {
+        // Padded so the files sort by tick
+        return this.directory.resolve(String.format("%s%019d%s", PREFIX, tick, extension));
+    }
+
+    private List<Path> list() throws IOException {
+        return list(this.directory);
+    }
+
+    /**
+     * Restore a world from the newest checkpoint in a directory: the newest base snapshot, brought up to
+     * date with every delta taken after it.
+     *
+     * @param directory String path of the directory
+     * @return World
+     * @throws IOException If there's no base in the directory, or a checkpoint can't be read
+     */
+
+    public static World restore(String directory) throws IOException {
+        List<Path> paths = list(Paths.get(directory));
+        Path base = newestBase(paths);
+
+        if(base == null) {
+            throw new IOException("No checkpoint to restore in " + directory);
+        }
+
+        World world = SnapshotFile.read(base.toString()).restore();
+        long baseTick = tickOf(base);
+
+        for(Path path : paths) {
+            if(!path.toString().endsWith(DELTA_EXTENSION) || tickOf(path) <= baseTick) {
+                continue;
+            }
+
+            WorldDelta delta = SnapshotFile.readDelta(path.toString());
+
+            // Left over from a base that was never finished
+            if(delta.getBaseTick() != baseTick) {
+                continue;
+            }
+
+            delta.apply(world);
+        }
+
+        return world;
+    }
+
+    private static Path newestBase(List<Path> paths) {
+        Path newest = null;
+
+        for(Path path : paths) {
+            if(path.toString().endsWith(BASE_EXTENSION)) {
+                newest = path;
+            }
+        }
+
+        return newest;
+    }
+
+    /**
+     * List every checkpoint in a directory, oldest first
+     *
+     * @param directory Path of the directory
+     * @return List of checkpoint files
+     * @throws IOException If the directory can't be read
+     */
+
+    private static List<Path> list(Path directory) throws IOException {
+        List<Path> paths = new ArrayList<>();
+
+        try(DirectoryStream<Path> stream = Files.newDirectoryStream(directory, PREFIX + "*")) {
+            for(Path path : stream) {
+                String name = path.getFileName().toString();
+
+                if(name.endsWith(BASE_EXTENSION) || name.endsWith(DELTA_EXTENSION)) {
+                    paths.add(path);
+                }
+            }
+        }
+
+        // Ticks are padded to the same length, so sorting by name sorts by tick
+        Collections.sort(paths, (a, b) -> a.getFileName().toString().compareTo(b.getFileName().toString()));
+
+        return paths;
+    }
+
+    private static long tickOf(Path path) {
+        String name = path.getFileName().toString();
+
+        return Long.parseLong(name.substring(PREFIX.length(), name.lastIndexOf('.')));
+    }
+}
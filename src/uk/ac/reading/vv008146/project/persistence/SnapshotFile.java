@@ -0,0 +1,857 @@
+package uk.ac.reading.vv008146.project.persistence;
+
+import uk.ac.reading.vv008146.project.simulation.RandomStreams;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.function.DoubleConsumer;
+
+/**
+ * Reads and writes WorldSnapshots in a compact binary format. Every column of the snapshot is written
+ * straight from its array through a large buffer, so a file is little more than the arrays themselves,
+ * one after another.
+ *
+ * Layout, all little endian:
+ *
+ *   Header         MAGIC, VERSION, then the world's settings and how many of each kind of entity and flock
+ *                  there are
+ *   String table   Number of strings, then each string's length in bytes and its UTF-8 bytes
+ *   Entities       Each column shared by every entity, then the food columns, then the living being columns
+ *   Flocks         Each flock column, then the members of every flock
+ *   Noise          Width and height, then the noise map as floats, column by column. Both 0 if there's none
+ *
+ * WorldDeltas are written the same way, as DELTA_MAGIC, VERSION, the base snapshot's tick, the delta's
+ * tick and the number of entities, then each of the delta's columns.
+ *
+ * Each column starts with a byte saying whether every element has the same value, which is then written
+ * just once.
+ *
+ * The version is bumped whenever the layout changes. Files from older versions are still read, but files
+ * with a version this class doesn't know are refused rather than misread.
+ */
+
+public class SnapshotFile {
+
+    // "LIFE" in ASCII, as the first four bytes of the file
+    public static final int MAGIC = 0x4546494C;
+
+    // "DLTA" in ASCII, as the first four bytes of a delta
+    public static final int DELTA_MAGIC = 0x41544C44;
+
+    // Version 2 added the world's random seed
+    public static final int VERSION = 2;
+
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    // Most of a file mapped at once while reading it. A single mapping can't be more than 2 GB
+    private static final long REGION_SIZE = 1L << 30;
+
+    private static final ByteOrder ORDER = ByteOrder.LITTLE_ENDIAN;
+
+    // Whether a column holds one value for every element, or every element's value
+    private static final byte CONSTANT = 1;
+    private static final byte FULL = 0;
+
+    /**
+     * Check whether a file starts like a snapshot, rather than e.g. a world saved with Java serialization
+     *
+     * @param path Path to the file
+     * @return boolean
+     */
+
+    public static boolean isSnapshot(String path) {
+        return magicOf(path) == MAGIC;
+    }
+
+    /**
+     * Check whether a file starts like a delta
+     *
+     * @param path Path to the file
+     * @return boolean
+     */
+
+    public static boolean isDelta(String path) {
+        return magicOf(path) == DELTA_MAGIC;
+    }
+
+    private static int magicOf(String path) {
+        try(FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+            ByteBuffer magic = ByteBuffer.allocate(4).order(ORDER);
+
+            while(magic.hasRemaining()) {
+                if(channel.read(magic) < 0) {
+                    return 0;
+                }
+            }
+
+            magic.flip();
+
+            return magic.getInt();
+        } catch(IOException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Write a snapshot to a file, replacing the file if it exists. The file is written alongside and moved
+     * into place once it's complete, so a failed write never leaves half a world behind.
+     *
+     * @param snapshot WorldSnapshot to write
+     * @param path Path to write to
+     * @param progress Given how much of the snapshot has been written, from 0 to 1, or null
+     * @throws IOException If the file can't be written
+     */
+
+    public static void write(WorldSnapshot snapshot, String path, DoubleConsumer progress) throws IOException {
+        writeWhole(path, estimateSize(snapshot), progress, out -> {
+            writeHeader(snapshot, out);
+            writeStrings(snapshot, out);
+            writeEntities(snapshot, out);
+            writeFlocks(snapshot, out);
+            writeNoise(snapshot, out);
+        });
+    }
+
+    /**
+     * Write a delta to a file, replacing the file if it exists. Like snapshots, the file is only moved
+     * into place once it's complete.
+     *
+     * @param delta WorldDelta to write
+     * @param path Path to write to
+     * @throws IOException If the file can't be written
+     */
+
+    public static void writeDelta(WorldDelta delta, String path) throws IOException {
+        writeWhole(path, 32 + (long) delta.count * (2 * 8 + 5 * 8 + 1), null, out -> {
+            out.putInt(DELTA_MAGIC);
+            out.putInt(VERSION);
+            out.putLong(delta.baseTick);
+            out.putLong(delta.tick);
+            out.putInt(delta.count);
+
+            out.put(delta.uuidMost, delta.count);
+            out.put(delta.uuidLeast, delta.count);
+            out.put(delta.x, delta.count);
+            out.put(delta.y, delta.count);
+            out.put(delta.velocityX, delta.count);
+            out.put(delta.velocityY, delta.count);
+            out.put(delta.energy, delta.count);
+            out.put(delta.dead, delta.count);
+        });
+    }
+
+    /**
+     * Write a file alongside the one asked for, then move it into place once it's complete
+     *
+     * @param path Path to write to
+     * @param expectedSize long roughly how many bytes will be written, for reporting progress
+     * @param progress Given how much of the file has been written, from 0 to 1, or null
+     * @param contents Writes everything in the file
+     * @throws IOException If the file can't be written
+     */
+
+    private static void writeWhole(String path, long expectedSize, DoubleConsumer progress, Contents contents) throws IOException {
+        Path target = Paths.get(path).toAbsolutePath();
+        Path partial = target.resolveSibling(target.getFileName() + ".partial");
+
+        try(Output out = new Output(FileChannel.open(partial, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING), expectedSize, progress)) {
+            contents.write(out);
+        } catch(IOException e) {
+            Files.deleteIfExists(partial);
+            throw e;
+        }
+
+        Files.move(partial, target, StandardCopyOption.REPLACE_EXISTING);
+
+        if(progress != null) {
+            progress.accept(1);
+        }
+    }
+
+    /**
+     * Read a snapshot from a file. The file is mapped into memory and read a region at a time, so columns
+     * are copied straight out of the operating system's page cache. The noise map isn't read at all: the
+     * snapshot keeps it mapped, and it's only paged in if the restored world asks for its noise.
+     *
+     * @param path Path to read from
+     * @return WorldSnapshot
+     * @throws IOException If the file can't be read, or isn't a snapshot this version understands
+     */
+
+    public static WorldSnapshot read(String path) throws IOException {
+        try(Input in = new Input(FileChannel.open(Paths.get(path), StandardOpenOption.READ))) {
+            WorldSnapshot snapshot = new WorldSnapshot();
+
+            readHeader(snapshot, in);
+            readStrings(snapshot, in);
+            readEntities(snapshot, in);
+            readFlocks(snapshot, in);
+            readNoise(snapshot, in);
+
+            return snapshot;
+        }
+    }
+
+    /**
+     * Read a delta from a file
+     *
+     * @param path Path to read from
+     * @return WorldDelta
+     * @throws IOException If the file can't be read, or isn't a delta this version understands
+     */
+
+    public static WorldDelta readDelta(String path) throws IOException {
+        try(Input in = new Input(FileChannel.open(Paths.get(path), StandardOpenOption.READ))) {
+            if(in.getInt() != DELTA_MAGIC) {
+                throw new IOException("Not a world delta");
+            }
+
+            int version = in.getInt();
+
+            if(version < 1 || version > VERSION) {
+                throw new IOException("Unsupported world delta version " + version);
+            }
+
+            long baseTick = in.getLong();
+            long tick = in.getLong();
+            int count = in.getInt();
+
+            WorldDelta delta = new WorldDelta(baseTick, tick, count);
+            delta.count = count;
+
+            in.get(delta.uuidMost, count);
+            in.get(delta.uuidLeast, count);
+            in.get(delta.x, count);
+            in.get(delta.y, count);
+            in.get(delta.velocityX, count);
+            in.get(delta.velocityY, count);
+            in.get(delta.energy, count);
+            in.get(delta.dead, count);
+
+            return delta;
+        }
+    }
+
+    private static long estimateSize(WorldSnapshot s) {
+        long entities = (long) s.size() * (2 * 8 + 11 * 8 + 2 * 4) + s.foodCount + (long) s.beingCount * (4 + 1 + 3 * 8 + 8);
+        long flocks = (long) s.flockCount * (4 + 5 * 8 + 2 * 8 + 4) + (long) s.members.length * 4;
+        long noise = s.noise != null ? (long) s.noise.length * 4 : 0;
+
+        return 128 + (long) s.strings.size() * 32 + entities + flocks + noise;
+    }
+
+    private static void writeHeader(WorldSnapshot s, Output out) throws IOException {
+        out.putInt(MAGIC);
+        out.putInt(VERSION);
+
+        out.putInt(s.width);
+        out.putInt(s.height);
+        out.putInt(s.populationLimit);
+        out.putInt(s.foodDetectionDistance);
+        out.putLong(s.tick);
+        out.putLong(s.randomSeed);
+        out.putByte((byte) ((s.useEntityStore ? 1 : 0) | (s.parallelFlocks ? 2 : 0) | (s.flowFields ? 4 : 0)));
+        out.putByte(s.foodDetection);
+        out.putDouble(s.minimumX);
+        out.putDouble(s.minimumY);
+        out.putDouble(s.maximumX);
+        out.putDouble(s.maximumY);
+
+        out.putInt(s.foodCount);
+        out.putInt(s.obstacleCount);
+        out.putInt(s.beingCount);
+        out.putInt(s.graveMarkerCount);
+        out.putInt(s.flockCount);
+        out.putInt(s.members.length);
+    }
+
+    private static void readHeader(WorldSnapshot s, Input in) throws IOException {
+        if(in.getInt() != MAGIC) {
+            throw new IOException("Not a world snapshot");
+        }
+
+        int version = in.getInt();
+
+        if(version < 1 || version > VERSION) {
+            throw new IOException("Unsupported world snapshot version " + version);
+        }
+
+        s.width = in.getInt();
+        s.height = in.getInt();
+        s.populationLimit = in.getInt();
+        s.foodDetectionDistance = in.getInt();
+        s.tick = in.getLong();
+
+        // Worlds saved before they had a seed keep the one they're restored with
+        s.randomSeed = version >= 2 ? in.getLong() : RandomStreams.newSeed();
+
+        byte flags = in.getByte();
+        s.useEntityStore = (flags & 1) != 0;
+        s.parallelFlocks = (flags & 2) != 0;
+        s.flowFields = (flags & 4) != 0;
+
+        s.foodDetection = in.getByte();
+        s.minimumX = in.getDouble();
+        s.minimumY = in.getDouble();
+        s.maximumX = in.getDouble();
+        s.maximumY = in.getDouble();
+
+        s.foodCount = in.getInt();
+        s.obstacleCount = in.getInt();
+        s.beingCount = in.getInt();
+        s.graveMarkerCount = in.getInt();
+        s.allocateEntities();
+
+        int flockCount = in.getInt();
+        s.allocateFlocks(flockCount, in.getInt());
+    }
+
+    private static void writeStrings(WorldSnapshot s, Output out) throws IOException {
+        out.putInt(s.strings.size());
+
+        for(String string : s.strings) {
+            byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+            out.putInt(bytes.length);
+            out.putBytes(bytes);
+        }
+    }
+
+    private static void readStrings(WorldSnapshot s, Input in) throws IOException {
+        int count = in.getInt();
+
+        for(int i = 0; i < count; i++) {
+            byte[] bytes = new byte[in.getInt()];
+            in.getBytes(bytes);
+            s.strings.add(new String(bytes, StandardCharsets.UTF_8));
+        }
+    }
+
+    private static void writeEntities(WorldSnapshot s, Output out) throws IOException {
+        int size = s.size();
+
+        out.put(s.uuidMost, size);
+        out.put(s.uuidLeast, size);
+        out.put(s.x, size);
+        out.put(s.y, size);
+        out.put(s.velocityX, size);
+        out.put(s.velocityY, size);
+        out.put(s.energy, size);
+        out.put(s.energyDepletion, size);
+        out.put(s.consumptionEfficiency, size);
+        out.put(s.maxSpeed, size);
+        out.put(s.boundingConstant, size);
+        out.put(s.id, size);
+        out.put(s.sprite, size);
+
+        out.put(s.poisonous, s.foodCount);
+
+        out.put(s.species, s.beingCount);
+        out.put(s.beingFlags, s.beingCount);
+        out.put(s.goalX, s.beingCount);
+        out.put(s.goalY, s.beingCount);
+        out.put(s.attackValue, s.beingCount);
+        out.put(s.lastRandomMovement, s.beingCount);
+    }
+
+    private static void readEntities(WorldSnapshot s, Input in) throws IOException {
+        int size = s.size();
+
+        in.get(s.uuidMost, size);
+        in.get(s.uuidLeast, size);
+        in.get(s.x, size);
+        in.get(s.y, size);
+        in.get(s.velocityX, size);
+        in.get(s.velocityY, size);
+        in.get(s.energy, size);
+        in.get(s.energyDepletion, size);
+        in.get(s.consumptionEfficiency, size);
+        in.get(s.maxSpeed, size);
+        in.get(s.boundingConstant, size);
+        in.get(s.id, size);
+        in.get(s.sprite, size);
+
+        in.get(s.poisonous, s.foodCount);
+
+        in.get(s.species, s.beingCount);
+        in.get(s.beingFlags, s.beingCount);
+        in.get(s.goalX, s.beingCount);
+        in.get(s.goalY, s.beingCount);
+        in.get(s.attackValue, s.beingCount);
+        in.get(s.lastRandomMovement, s.beingCount);
+    }
+
+    private static void writeFlocks(WorldSnapshot s, Output out) throws IOException {
+        out.put(s.flockSpecies, s.flockCount);
+        out.put(s.flockCentreOfMass, s.flockCount);
+        out.put(s.flockMinimumDistance, s.flockCount);
+        out.put(s.flockGoalX, s.flockCount);
+        out.put(s.flockGoalY, s.flockCount);
+        out.put(s.flockGoalLastChanged, s.flockCount);
+        out.put(s.flockSeed, s.flockCount);
+        out.put(s.memberStart, s.flockCount + 1);
+        out.put(s.members, s.members.length);
+    }
+
+    private static void readFlocks(WorldSnapshot s, Input in) throws IOException {
+        in.get(s.flockSpecies, s.flockCount);
+        in.get(s.flockCentreOfMass, s.flockCount);
+        in.get(s.flockMinimumDistance, s.flockCount);
+        in.get(s.flockGoalX, s.flockCount);
+        in.get(s.flockGoalY, s.flockCount);
+        in.get(s.flockGoalLastChanged, s.flockCount);
+        in.get(s.flockSeed, s.flockCount);
+        in.get(s.memberStart, s.flockCount + 1);
+        in.get(s.members, s.members.length);
+    }
+
+    private static void writeNoise(WorldSnapshot s, Output out) throws IOException {
+        if(s.noise == null) {
+            out.putInt(0);
+            out.putInt(0);
+            return;
+        }
+
+        out.putInt(s.noiseWidth);
+        out.putInt(s.noiseHeight);
+        out.put(s.noise, s.noise.length);
+    }
+
+    private static void readNoise(WorldSnapshot s, Input in) throws IOException {
+        s.noiseWidth = in.getInt();
+        s.noiseHeight = in.getInt();
+
+        if(s.noiseWidth <= 0 || s.noiseHeight <= 0) {
+            return;
+        }
+
+        long length = (long) s.noiseWidth * s.noiseHeight;
+
+        // Noise that's all the same, or too big to map in one go, is read now
+        if(in.peekByte() == CONSTANT || length * 4 > Integer.MAX_VALUE) {
+            s.noise = new float[(int) length];
+            in.get(s.noise, s.noise.length);
+        } else {
+            in.getByte();
+            s.noiseView = in.map(length * 4).asFloatBuffer();
+        }
+    }
+
+    /**
+     * Everything written to a file by writeWhole
+     */
+
+    private interface Contents {
+        void write(Output out) throws IOException;
+    }
+
+    /**
+     * Buffers writes to a channel, writing the buffer out whenever it fills
+     */
+
+    private static class Output implements AutoCloseable {
+
+        private final FileChannel channel;
+        private final ByteBuffer buffer;
+        private final long expectedSize;
+        private final DoubleConsumer progress;
+
+        private long written;
+
+        Output(FileChannel channel, long expectedSize, DoubleConsumer progress) {
+            this.channel = channel;
+            this.buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ORDER);
+            this.expectedSize = Math.max(1, expectedSize);
+            this.progress = progress;
+        }
+
+        private void ensure(int bytes) throws IOException {
+            if(this.buffer.remaining() < bytes) {
+                this.flush();
+            }
+        }
+
+        private void flush() throws IOException {
+            this.buffer.flip();
+
+            while(this.buffer.hasRemaining()) {
+                this.written += this.channel.write(this.buffer);
+            }
+
+            this.buffer.clear();
+
+            if(this.progress != null) {
+                this.progress.accept(Math.min(1, (double) this.written / this.expectedSize));
+            }
+        }
+
+        void putBytes(byte[] values) throws IOException {
+            this.putRaw(values, values.length);
+        }
+
+        void putByte(byte value) throws IOException {
+            this.ensure(1);
+            this.buffer.put(value);
+        }
+
+        void putInt(int value) throws IOException {
+            this.ensure(4);
+            this.buffer.putInt(value);
+        }
+
+        void putLong(long value) throws IOException {
+            this.ensure(8);
+            this.buffer.putLong(value);
+        }
+
+        void putDouble(double value) throws IOException {
+            this.ensure(8);
+            this.buffer.putDouble(value);
+        }
+
+        // Columns start with whether every value is the same, in which case only the one value is written.
+        // Lots of columns are, e.g. the velocity of food and obstacles, which never move
+
+        void put(byte[] values, int length) throws IOException {
+            boolean constant = length > 0;
+
+            for(int i = 1; i < length && constant; i++) {
+                constant = values[i] == values[0];
+            }
+
+            this.putByte(constant ? CONSTANT : FULL);
+
+            if(constant) {
+                this.putRaw(values, 1);
+            } else {
+                this.putRaw(values, length);
+            }
+        }
+
+        void put(int[] values, int length) throws IOException {
+            boolean constant = length > 0;
+
+            for(int i = 1; i < length && constant; i++) {
+                constant = values[i] == values[0];
+            }
+
+            this.putByte(constant ? CONSTANT : FULL);
+
+            if(constant) {
+                this.putRaw(values, 1);
+            } else {
+                this.putRaw(values, length);
+            }
+        }
+
+        void put(long[] values, int length) throws IOException {
+            boolean constant = length > 0;
+
+            for(int i = 1; i < length && constant; i++) {
+                constant = values[i] == values[0];
+            }
+
+            this.putByte(constant ? CONSTANT : FULL);
+
+            if(constant) {
+                this.putRaw(values, 1);
+            } else {
+                this.putRaw(values, length);
+            }
+        }
+
+        void put(float[] values, int length) throws IOException {
+            boolean constant = length > 0;
+
+            for(int i = 1; i < length && constant; i++) {
+                constant = Float.floatToIntBits(values[i]) == Float.floatToIntBits(values[0]);
+            }
+
+            this.putByte(constant ? CONSTANT : FULL);
+
+            if(constant) {
+                this.putRaw(values, 1);
+            } else {
+                this.putRaw(values, length);
+            }
+        }
+
+        void put(double[] values, int length) throws IOException {
+            boolean constant = length > 0;
+
+            for(int i = 1; i < length && constant; i++) {
+                // Compares the bits, so that NaN, used for missing values, counts as the same as itself
+                constant = Double.doubleToLongBits(values[i]) == Double.doubleToLongBits(values[0]);
+            }
+
+            this.putByte(constant ? CONSTANT : FULL);
+
+            if(constant) {
+                this.putRaw(values, 1);
+            } else {
+                this.putRaw(values, length);
+            }
+        }
+
+        // Arrays are copied in as many pieces as it takes to fit them into the buffer
+
+        private void putRaw(byte[] values, int length) throws IOException {
+            for(int done = 0; done < length; ) {
+                this.ensure(1);
+                int count = Math.min(length - done, this.buffer.remaining());
+                this.buffer.put(values, done, count);
+                done += count;
+            }
+        }
+
+        private void putRaw(int[] values, int length) throws IOException {
+            for(int done = 0; done < length; ) {
+                this.ensure(4);
+                int count = Math.min(length - done, this.buffer.remaining() / 4);
+                this.buffer.asIntBuffer().put(values, done, count);
+                this.buffer.position(this.buffer.position() + count * 4);
+                done += count;
+            }
+        }
+
+        private void putRaw(long[] values, int length) throws IOException {
+            for(int done = 0; done < length; ) {
+                this.ensure(8);
+                int count = Math.min(length - done, this.buffer.remaining() / 8);
+                this.buffer.asLongBuffer().put(values, done, count);
+                this.buffer.position(this.buffer.position() + count * 8);
+                done += count;
+            }
+        }
+
+        private void putRaw(float[] values, int length) throws IOException {
+            for(int done = 0; done < length; ) {
+                this.ensure(4);
+                int count = Math.min(length - done, this.buffer.remaining() / 4);
+                this.buffer.asFloatBuffer().put(values, done, count);
+                this.buffer.position(this.buffer.position() + count * 4);
+                done += count;
+            }
+        }
+
+        private void putRaw(double[] values, int length) throws IOException {
+            for(int done = 0; done < length; ) {
+                this.ensure(8);
+                int count = Math.min(length - done, this.buffer.remaining() / 8);
+                this.buffer.asDoubleBuffer().put(values, done, count);
+                this.buffer.position(this.buffer.position() + count * 8);
+                done += count;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                this.flush();
+            } finally {
+                this.channel.close();
+            }
+        }
+    }
+
+    /**
+     * Reads through a channel's file by mapping a region of it at a time, mapping the next region
+     * whenever the current one runs out. Mappings stay valid after the channel is closed, and are let go
+     * once nothing refers to them.
+     */
+
+    private static class Input implements AutoCloseable {
+
+        private final FileChannel channel;
+        private final long size;
+
+        // Where in the file the current region starts
+        private long regionStart;
+        private ByteBuffer buffer;
+
+        Input(FileChannel channel) throws IOException {
+            this.channel = channel;
+            this.size = channel.size();
+            this.buffer = ByteBuffer.allocate(0);
+        }
+
+        private long offset() {
+            return this.regionStart + this.buffer.position();
+        }
+
+        private void ensure(int bytes) throws IOException {
+            if(this.buffer.remaining() >= bytes) {
+                return;
+            }
+
+            long start = this.offset();
+
+            if(this.size - start < bytes) {
+                throw new IOException("World file ends early");
+            }
+
+            this.regionStart = start;
+            this.buffer = this.channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(REGION_SIZE, this.size - start)).order(ORDER);
+        }
+
+        /**
+         * Map the next part of the file on its own, and skip over it
+         * @param length long number of bytes
+         * @return ByteBuffer mapping the bytes
+         * @throws IOException If the file ends first
+         */
+
+        ByteBuffer map(long length) throws IOException {
+            long start = this.offset();
+
+            if(this.size - start < length) {
+                throw new IOException("World file ends early");
+            }
+
+            ByteBuffer mapped = this.channel.map(FileChannel.MapMode.READ_ONLY, start, length).order(ORDER);
+
+            // Carry on after the bytes just mapped
+            this.regionStart = start + length;
+            this.buffer = ByteBuffer.allocate(0);
+
+            return mapped;
+        }
+
+        byte peekByte() throws IOException {
+            this.ensure(1);
+            return this.buffer.get(this.buffer.position());
+        }
+
+        void getBytes(byte[] values) throws IOException {
+            this.getRaw(values, values.length);
+        }
+
+        byte getByte() throws IOException {
+            this.ensure(1);
+            return this.buffer.get();
+        }
+
+        int getInt() throws IOException {
+            this.ensure(4);
+            return this.buffer.getInt();
+        }
+
+        long getLong() throws IOException {
+            this.ensure(8);
+            return this.buffer.getLong();
+        }
+
+        double getDouble() throws IOException {
+            this.ensure(8);
+            return this.buffer.getDouble();
+        }
+
+        void get(byte[] values, int length) throws IOException {
+            if(this.getByte() == CONSTANT) {
+                this.getRaw(values, 1);
+                Arrays.fill(values, 0, length, values[0]);
+            } else {
+                this.getRaw(values, length);
+            }
+        }
+
+        void get(int[] values, int length) throws IOException {
+            if(this.getByte() == CONSTANT) {
+                this.getRaw(values, 1);
+                Arrays.fill(values, 0, length, values[0]);
+            } else {
+                this.getRaw(values, length);
+            }
+        }
+
+        void get(long[] values, int length) throws IOException {
+            if(this.getByte() == CONSTANT) {
+                this.getRaw(values, 1);
+                Arrays.fill(values, 0, length, values[0]);
+            } else {
+                this.getRaw(values, length);
+            }
+        }
+
+        void get(float[] values, int length) throws IOException {
+            if(this.getByte() == CONSTANT) {
+                this.getRaw(values, 1);
+                Arrays.fill(values, 0, length, values[0]);
+            } else {
+                this.getRaw(values, length);
+            }
+        }
+
+        void get(double[] values, int length) throws IOException {
+            if(this.getByte() == CONSTANT) {
+                this.getRaw(values, 1);
+                Arrays.fill(values, 0, length, values[0]);
+            } else {
+                this.getRaw(values, length);
+            }
+        }
+
+        private void getRaw(byte[] values, int length) throws IOException {
+            for(int done = 0; done < length; ) {
+                this.ensure(1);
+                int count = Math.min(length - done, this.buffer.remaining());
+                this.buffer.get(values, done, count);
+                done += count;
+            }
+        }
+
+        private void getRaw(int[] values, int length) throws IOException {
+            for(int done = 0; done < length; ) {
+                this.ensure(4);
+                int count = Math.min(length - done, this.buffer.remaining() / 4);
+                this.buffer.asIntBuffer().get(values, done, count);
+                this.buffer.position(this.buffer.position() + count * 4);
+                done += count;
+            }
+        }
+
+        private void getRaw(long[] values, int length) throws IOException {
+            for(int done = 0; done < length; ) {
+                this.ensure(8);
+                int count = Math.min(length - done, this.buffer.remaining() / 8);
+                this.buffer.asLongBuffer().get(values, done, count);
+                this.buffer.position(this.buffer.position() + count * 8);
+                done += count;
+            }
+        }
+
+        private void getRaw(float[] values, int length) throws IOException {
+            for(int done = 0; done < length; ) {
+                this.ensure(4);
+                int count = Math.min(length - done, this.buffer.remaining() / 4);
+                this.buffer.asFloatBuffer().get(values, done, count);
+                this.buffer.position(this.buffer.position() + count * 4);
+                done += count;
+            }
+        }
+
+        private void getRaw(double[] values, int length) throws IOException {
+            for(int done = 0; done < length; ) {
+                this.ensure(8);
+                int count = Math.min(length - done, this.buffer.remaining() / 8);
+                this.buffer.asDoubleBuffer().get(values, done, count);
+                this.buffer.position(this.buffer.position() + count * 8);
+                done += count;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.channel.close();
+        }
+    }
+}
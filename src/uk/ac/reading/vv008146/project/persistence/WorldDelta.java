@@ -0,0 +1,164 @@
+package uk.ac.reading.vv008146.project.persistence;
+
+import uk.ac.reading.vv008146.project.World;
+import uk.ac.reading.vv008146.project.entities.Entity;
+import uk.ac.reading.vv008146.project.entities.LivingBeing;
+
+import java.util.Arrays;
+import java.util.UUID;
+
+/**
+ * The entities that have changed in a world since an earlier checkpoint, held as one primitive array per
+ * field like a WorldSnapshot. Only what changes from tick to tick is kept: each entity's position,
+ * velocity, energy and whether it's dead. Applying a delta to the world restored from its base snapshot,
+ * after every delta before it, brings the world up to the tick the delta was taken on.
+ *
+ * Entities are found by their UUID, so a delta can only be applied to a world with the same entities as
+ * its base. Anything else about an entity, e.g. a being's goal, is left as the base snapshot had it.
+ *
+ * @see CheckpointWriter
+ */
+
+public class WorldDelta {
+
+    // Tick of the base snapshot the delta follows on from, and the tick the delta was taken on
+    long baseTick;
+    long tick;
+
+    int count;
+
+    // One element per changed entity
+    long[] uuidMost;
+    long[] uuidLeast;
+    double[] x;
+    double[] y;
+    double[] velocityX;
+    double[] velocityY;
+    double[] energy;
+    byte[] dead;
+
+    /**
+     * Create an empty delta
+     *
+     * @param baseTick long tick of the base snapshot
+     * @param tick long tick the delta is taken on
+     * @param capacity int number of entities there's room for before the columns have to grow
+     */
+
+    WorldDelta(long baseTick, long tick, int capacity) {
+        this.baseTick = baseTick;
+        this.tick = tick;
+        this.allocate(capacity);
+    }
+
+    /**
+     * Create the columns, throwing away anything already in them
+     * @param capacity int number of entities
+     */
+
+    void allocate(int capacity) {
+        this.uuidMost = new long[capacity];
+        this.uuidLeast = new long[capacity];
+        this.x = new double[capacity];
+        this.y = new double[capacity];
+        this.velocityX = new double[capacity];
+        this.velocityY = new double[capacity];
+        this.energy = new double[capacity];
+        this.dead = new byte[capacity];
+    }
+
+    /**
+     * Add an entity's current state to the delta
+     * @param e Entity which has changed
+     */
+
+    void add(Entity e) {
+        if(this.count == this.x.length) {
+            this.grow();
+        }
+
+        int i = this.count++;
+
+        this.uuidMost[i] = e.getUuid().getMostSignificantBits();
+        this.uuidLeast[i] = e.getUuid().getLeastSignificantBits();
+        this.x[i] = e.getPosition().getX();
+        this.y[i] = e.getPosition().getY();
+        this.velocityX[i] = e.getVelocity() != null ? e.getVelocity().getX() : Double.NaN;
+        this.velocityY[i] = e.getVelocity() != null ? e.getVelocity().getY() : Double.NaN;
+        this.energy[i] = e.getEnergy();
+        this.dead[i] = (byte) (e instanceof LivingBeing && ((LivingBeing) e).isDead() ? 1 : 0);
+    }
+
+    private void grow() {
+        int capacity = Math.max(16, this.x.length * 2);
+
+        this.uuidMost = Arrays.copyOf(this.uuidMost, capacity);
+        this.uuidLeast = Arrays.copyOf(this.uuidLeast, capacity);
+        this.x = Arrays.copyOf(this.x, capacity);
+        this.y = Arrays.copyOf(this.y, capacity);
+        this.velocityX = Arrays.copyOf(this.velocityX, capacity);
+        this.velocityY = Arrays.copyOf(this.velocityY, capacity);
+        this.energy = Arrays.copyOf(this.energy, capacity);
+        this.dead = Arrays.copyOf(this.dead, capacity);
+    }
+
+    /**
+     * Bring a world up to the tick the delta was taken on. Must be called from whichever thread is
+     * simulating the world, between ticks.
+     *
+     * @param world World restored from the delta's base snapshot, with every earlier delta applied
+     * @throws IllegalArgumentException If the world is missing an entity in the delta
+     */
+
+    public void apply(World world) {
+        for(int i = 0; i < this.count; i++) {
+            UUID uuid = new UUID(this.uuidMost[i], this.uuidLeast[i]);
+            Entity e = world.getEntities().get(uuid);
+
+            if(e == null) {
+                throw new IllegalArgumentException("Delta for tick " + this.tick + " has an entity the world doesn't: " + uuid);
+            }
+
+            e.setPosition(this.x[i], this.y[i]);
+
+            if(!Double.isNaN(this.velocityX[i])) {
+                e.restoreVelocity(this.velocityX[i], this.velocityY[i]);
+            }
+
+            e.setEnergy(this.energy[i]);
+
+            if(e instanceof LivingBeing) {
+                ((LivingBeing) e).setDead(this.dead[i] != 0);
+            }
+        }
+
+        world.setTick(this.tick);
+    }
+
+    /**
+     * Get the number of entities in the delta
+     * @return int
+     */
+
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Get the tick of the base snapshot the delta follows on from
+     * @return long tick
+     */
+
+    public long getBaseTick() {
+        return baseTick;
+    }
+
+    /**
+     * Get the tick the delta was taken on
+     * @return long tick
+     */
+
+    public long getTick() {
+        return tick;
+    }
+}
@@ -0,0 +1,459 @@
+package uk.ac.reading.vv008146.project.persistence;
+
+import uk.ac.reading.vv008146.project.FoodDetection;
+import uk.ac.reading.vv008146.project.Vector2;
+import uk.ac.reading.vv008146.project.World;
+import uk.ac.reading.vv008146.project.behaviour.BoidFlock;
+import uk.ac.reading.vv008146.project.entities.*;
+
+import java.nio.FloatBuffer;
+import java.util.*;
+
+/**
+ * A copy of everything needed to restore a world, held as one primitive array per field rather than as
+ * objects. Taking a snapshot is a single pass over the world, so it's quick enough to do between ticks,
+ * and the snapshot can then be written to disk by SnapshotFile on any thread while the world carries on.
+ *
+ * Entities are held in the order of the world's partitions: food, then obstacles, then living beings,
+ * then grave markers. Columns shared by every entity have one element per entity, while columns only
+ * some kinds have, e.g. whether food is poisonous, have one element per entity of that kind. Strings,
+ * which are mostly the same few sprite and species names over and over, are held once each in a table
+ * and referred to by their index in it.
+ */
+
+public class WorldSnapshot {
+
+    // Flags for each living being
+    static final byte CARNIVORE = 1;
+    static final byte DEAD = 2;
+    static final byte FLOCK = 4;
+
+    // World settings
+    int width;
+    int height;
+    int populationLimit;
+    int foodDetectionDistance;
+    long tick;
+    long randomSeed;
+    boolean useEntityStore;
+    boolean parallelFlocks;
+    boolean flowFields;
+    byte foodDetection;
+    double minimumX;
+    double minimumY;
+    double maximumX;
+    double maximumY;
+
+    List<String> strings;
+
+    int foodCount;
+    int obstacleCount;
+    int beingCount;
+    int graveMarkerCount;
+
+    // One element per entity
+    long[] uuidMost;
+    long[] uuidLeast;
+    double[] x;
+    double[] y;
+    double[] velocityX;
+    double[] velocityY;
+    double[] energy;
+    double[] energyDepletion;
+    double[] consumptionEfficiency;
+    double[] maxSpeed;
+    double[] boundingConstant;
+    int[] id;
+    int[] sprite;
+
+    // One element per item of food
+    byte[] poisonous;
+
+    // One element per living being
+    int[] species;
+    byte[] beingFlags;
+    double[] goalX;
+    double[] goalY;
+    double[] attackValue;
+    long[] lastRandomMovement;
+
+    // One element per flock. Members of flock f are living beings memberStart[f] to memberStart[f + 1] - 1
+    // of members, which holds each being's index among the living beings
+    int flockCount;
+    int[] flockSpecies;
+    double[] flockCentreOfMass;
+    double[] flockMinimumDistance;
+    double[] flockGoalX;
+    double[] flockGoalY;
+    long[] flockGoalLastChanged;
+    long[] flockSeed;
+    int[] memberStart;
+    int[] members;
+
+    // Noise map, column by column, or null if the world has none
+    int noiseWidth;
+    int noiseHeight;
+    float[] noise;
+
+    // Noise map left in a file read by SnapshotFile, in place of the array
+    FloatBuffer noiseView;
+
+    private Map<String, Integer> stringIndexes;
+
+    /**
+     * Create an empty snapshot, to be filled in by capture or by reading a file
+     */
+
+    WorldSnapshot() {
+        this.strings = new ArrayList<>();
+    }
+
+    /**
+     * Take a snapshot of a world. Must be called from whichever thread is simulating the world, between
+     * ticks, so that nothing changes while it's being copied.
+     *
+     * @param world World to take a snapshot of
+     * @return WorldSnapshot
+     */
+
+    public static WorldSnapshot capture(World world) {
+        WorldSnapshot snapshot = new WorldSnapshot();
+        snapshot.stringIndexes = new HashMap<>();
+
+        snapshot.width = world.getWidth();
+        snapshot.height = world.getHeight();
+        snapshot.populationLimit = world.getPopulationLimit();
+        snapshot.foodDetectionDistance = world.getFoodDetectionDistance();
+        snapshot.tick = world.getTick();
+        snapshot.randomSeed = world.getRandomSeed();
+        snapshot.useEntityStore = world.isUseEntityStore();
+        snapshot.parallelFlocks = world.isParallelFlocks();
+        snapshot.flowFields = world.isFlowFields();
+        snapshot.foodDetection = (byte) world.getFoodDetection().ordinal();
+        snapshot.minimumX = world.getMinimumPosition().getX();
+        snapshot.minimumY = world.getMinimumPosition().getY();
+        snapshot.maximumX = world.getMaximumPosition().getX();
+        snapshot.maximumY = world.getMaximumPosition().getY();
+
+        snapshot.foodCount = world.getFood().size();
+        snapshot.obstacleCount = world.getObstacles().size();
+        snapshot.beingCount = world.getBeings().size();
+        snapshot.graveMarkerCount = world.getGraveMarkers().size();
+
+        snapshot.allocateEntities();
+
+        int index = 0;
+
+        for(int i = 0; i < snapshot.foodCount; i++) {
+            Food food = world.getFood().get(i);
+            snapshot.poisonous[i] = (byte) (food.isPoisonous() ? 1 : 0);
+            snapshot.captureEntity(index++, food);
+        }
+
+        for(int i = 0; i < snapshot.obstacleCount; i++) {
+            snapshot.captureEntity(index++, world.getObstacles().get(i));
+        }
+
+        // Flocks refer to their members by where they are among the beings
+        Map<LivingBeing, Integer> beingIndexes = new IdentityHashMap<>(snapshot.beingCount);
+
+        for(int i = 0; i < snapshot.beingCount; i++) {
+            LivingBeing being = world.getBeings().get(i);
+            beingIndexes.put(being, i);
+
+            snapshot.species[i] = snapshot.stringIndex(being.getSpecies());
+            snapshot.beingFlags[i] = (byte) ((being.isCarnivore() ? CARNIVORE : 0) | (being.isDead() ? DEAD : 0) | (being.isFlock() ? FLOCK : 0));
+            snapshot.goalX[i] = being.getGoal() != null ? being.getGoal().getX() : Double.NaN;
+            snapshot.goalY[i] = being.getGoal() != null ? being.getGoal().getY() : Double.NaN;
+            snapshot.attackValue[i] = being.getAttackValue();
+            snapshot.lastRandomMovement[i] = being.getLastRandomMovement();
+
+            snapshot.captureEntity(index++, being);
+        }
+
+        for(int i = 0; i < snapshot.graveMarkerCount; i++) {
+            snapshot.captureEntity(index++, world.getGraveMarkers().get(i));
+        }
+
+        snapshot.captureFlocks(world, beingIndexes);
+        snapshot.captureNoise(world.getNoise());
+
+        return snapshot;
+    }
+
+    /**
+     * Create the entity columns, once the number of each kind of entity is known
+     */
+
+    void allocateEntities() {
+        int size = this.size();
+
+        this.uuidMost = new long[size];
+        this.uuidLeast = new long[size];
+        this.x = new double[size];
+        this.y = new double[size];
+        this.velocityX = new double[size];
+        this.velocityY = new double[size];
+        this.energy = new double[size];
+        this.energyDepletion = new double[size];
+        this.consumptionEfficiency = new double[size];
+        this.maxSpeed = new double[size];
+        this.boundingConstant = new double[size];
+        this.id = new int[size];
+        this.sprite = new int[size];
+
+        this.poisonous = new byte[this.foodCount];
+
+        this.species = new int[this.beingCount];
+        this.beingFlags = new byte[this.beingCount];
+        this.goalX = new double[this.beingCount];
+        this.goalY = new double[this.beingCount];
+        this.attackValue = new double[this.beingCount];
+        this.lastRandomMovement = new long[this.beingCount];
+    }
+
+    /**
+     * Create the flock columns, once the number of flocks and members is known
+     *
+     * @param flockCount int number of flocks
+     * @param memberCount int number of members of every flock
+     */
+
+    void allocateFlocks(int flockCount, int memberCount) {
+        this.flockCount = flockCount;
+        this.flockSpecies = new int[flockCount];
+        this.flockCentreOfMass = new double[flockCount];
+        this.flockMinimumDistance = new double[flockCount];
+        this.flockGoalX = new double[flockCount];
+        this.flockGoalY = new double[flockCount];
+        this.flockGoalLastChanged = new long[flockCount];
+        this.flockSeed = new long[flockCount];
+        this.memberStart = new int[flockCount + 1];
+        this.members = new int[memberCount];
+    }
+
+    // The int ID is deprecated in favour of the UUID, but is still kept so worlds come back exactly as saved
+    @SuppressWarnings("deprecation")
+    private void captureEntity(int index, Entity e) {
+        this.uuidMost[index] = e.getUuid().getMostSignificantBits();
+        this.uuidLeast[index] = e.getUuid().getLeastSignificantBits();
+        this.x[index] = e.getPosition().getX();
+        this.y[index] = e.getPosition().getY();
+        this.velocityX[index] = e.getVelocity() != null ? e.getVelocity().getX() : Double.NaN;
+        this.velocityY[index] = e.getVelocity() != null ? e.getVelocity().getY() : Double.NaN;
+        this.energy[index] = e.getEnergy();
+        this.energyDepletion[index] = e.getEnergyDepletionValue();
+        this.consumptionEfficiency[index] = e.getConsumptionEfficiencyPercentage();
+        this.maxSpeed[index] = e.getMaxSpeed();
+        this.boundingConstant[index] = e.getBoundingConstant();
+        this.id[index] = e.getId();
+        this.sprite[index] = this.stringIndex(e.getSpriteName());
+    }
+
+    private void captureFlocks(World world, Map<LivingBeing, Integer> beingIndexes) {
+        int memberCount = 0;
+
+        for(BoidFlock flock : world.getFlocks().values()) {
+            memberCount += flock.getFlock().size();
+        }
+
+        this.allocateFlocks(world.getFlocks().size(), memberCount);
+
+        int f = 0;
+        int member = 0;
+
+        for(Map.Entry<String, BoidFlock> entry : world.getFlocks().entrySet()) {
+            BoidFlock flock = entry.getValue();
+
+            this.flockSpecies[f] = this.stringIndex(entry.getKey());
+            this.flockCentreOfMass[f] = flock.getCentreOfMassMovementFactor();
+            this.flockMinimumDistance[f] = flock.getMinimumBoidDistance();
+            this.flockGoalX[f] = flock.getGoal() != null ? flock.getGoal().getX() : Double.NaN;
+            this.flockGoalY[f] = flock.getGoal() != null ? flock.getGoal().getY() : Double.NaN;
+            this.flockGoalLastChanged[f] = flock.getGoalLastChanged();
+            this.flockSeed[f] = flock.getSeed();
+            this.memberStart[f] = member;
+
+            for(LivingBeing being : flock.getFlock()) {
+                Integer index = beingIndexes.get(being);
+
+                // Members that have been taken out of the world can't be restored
+                if(index != null) {
+                    this.members[member++] = index;
+                }
+            }
+
+            f++;
+        }
+
+        this.memberStart[f] = member;
+
+        if(member < this.members.length) {
+            this.members = Arrays.copyOf(this.members, member);
+        }
+    }
+
+    private void captureNoise(double[][] noise) {
+        if(noise == null || noise.length == 0) {
+            return;
+        }
+
+        this.noiseWidth = noise.length;
+        this.noiseHeight = noise[0].length;
+        this.noise = new float[this.noiseWidth * this.noiseHeight];
+
+        for(int x = 0; x < this.noiseWidth; x++) {
+            for(int y = 0; y < this.noiseHeight; y++) {
+                this.noise[x * this.noiseHeight + y] = (float) noise[x][y];
+            }
+        }
+    }
+
+    private int stringIndex(String s) {
+        if(s == null) {
+            return -1;
+        }
+
+        Integer index = this.stringIndexes.get(s);
+
+        if(index == null) {
+            index = this.strings.size();
+            this.strings.add(s);
+            this.stringIndexes.put(s, index);
+        }
+
+        return index;
+    }
+
+    private String string(int index) {
+        return index < 0 ? null : this.strings.get(index);
+    }
+
+    /**
+     * Build a new world from the snapshot
+     * @return World
+     */
+
+    public World restore() {
+        World world = new World(this.width, this.height, this.populationLimit);
+        world.setRandomSeed(this.randomSeed);
+
+        world.setMinimumPosition(new Vector2(this.minimumX, this.minimumY));
+        world.setMaximumPosition(new Vector2(this.maximumX, this.maximumY));
+        world.setFoodDetectionDistance(this.foodDetectionDistance);
+        world.setTick(this.tick);
+
+        if(this.noise != null) {
+            world.setNoise(this.copyNoise(FloatBuffer.wrap(this.noise)));
+        } else if(this.noiseView != null) {
+            // Nothing is read from the file until the world first needs its noise
+            FloatBuffer view = this.noiseView;
+            world.setNoiseLoader(() -> this.copyNoise(view));
+        }
+
+        int index = 0;
+
+        for(int i = 0; i < this.foodCount; i++, index++) {
+            Food food = new Food(this.string(this.sprite[index]), new Vector2(this.x[index], this.y[index]), 0, world);
+            food.setPoisonous(this.poisonous[i] != 0);
+
+            this.restoreEntity(index, food, world);
+        }
+
+        for(int i = 0; i < this.obstacleCount; i++, index++) {
+            this.restoreEntity(index, new Obstacle(new Vector2(this.x[index], this.y[index]), world), world);
+        }
+
+        LivingBeing[] beings = new LivingBeing[this.beingCount];
+
+        for(int i = 0; i < this.beingCount; i++, index++) {
+            LivingBeing being = new LivingBeing(this.string(this.sprite[index]), new Vector2(this.x[index], this.y[index]), world);
+
+            being.setSpecies(this.string(this.species[i]));
+            being.setCarnivore((this.beingFlags[i] & CARNIVORE) != 0);
+            being.setDead((this.beingFlags[i] & DEAD) != 0);
+            being.setFlock((this.beingFlags[i] & FLOCK) != 0);
+            being.setGoal(Double.isNaN(this.goalX[i]) ? null : new Vector2(this.goalX[i], this.goalY[i]));
+            being.setAttackValue(this.attackValue[i]);
+            being.setLastRandomMovement(this.lastRandomMovement[i]);
+
+            this.restoreEntity(index, being, world);
+            beings[i] = being;
+        }
+
+        for(int i = 0; i < this.graveMarkerCount; i++, index++) {
+            this.restoreEntity(index, new GraveMarker(new Vector2(this.x[index], this.y[index]), world), world);
+        }
+
+        for(int f = 0; f < this.flockCount; f++) {
+            List<LivingBeing> flock = new ArrayList<>(this.memberStart[f + 1] - this.memberStart[f]);
+
+            for(int member = this.memberStart[f]; member < this.memberStart[f + 1]; member++) {
+                flock.add(beings[this.members[member]]);
+            }
+
+            Vector2 goal = Double.isNaN(this.flockGoalX[f]) ? null : new Vector2(this.flockGoalX[f], this.flockGoalY[f]);
+
+            world.getFlocks().put(this.string(this.flockSpecies[f]), new BoidFlock(flock, world, this.flockCentreOfMass[f],
+                    this.flockMinimumDistance[f], goal, this.flockGoalLastChanged[f], this.flockSeed[f]));
+        }
+
+        world.setUseEntityStore(this.useEntityStore);
+        world.setParallelFlocks(this.parallelFlocks);
+        world.setFlowFields(this.flowFields);
+        world.setFoodDetection(FoodDetection.values()[this.foodDetection]);
+
+        return world;
+    }
+
+    private double[][] copyNoise(FloatBuffer from) {
+        double[][] noise = new double[this.noiseWidth][this.noiseHeight];
+
+        for(int x = 0; x < this.noiseWidth; x++) {
+            for(int y = 0; y < this.noiseHeight; y++) {
+                noise[x][y] = from.get(x * this.noiseHeight + y);
+            }
+        }
+
+        return noise;
+    }
+
+    // See captureEntity for why the deprecated int ID is still restored
+    @SuppressWarnings("deprecation")
+    private void restoreEntity(int index, Entity e, World world) {
+        e.setUuid(new UUID(this.uuidMost[index], this.uuidLeast[index]));
+        e.setSpriteName(this.string(this.sprite[index]));
+
+        // Entities saved without a velocity keep whatever their constructor gave them
+        if(!Double.isNaN(this.velocityX[index])) {
+            e.restoreVelocity(this.velocityX[index], this.velocityY[index]);
+        }
+
+        e.setEnergy(this.energy[index]);
+        e.setEnergyDepletionValue(this.energyDepletion[index]);
+        e.setConsumptionEfficiencyPercentage(this.consumptionEfficiency[index]);
+        e.setMaxSpeed(this.maxSpeed[index]);
+        e.setBoundingConstant(this.boundingConstant[index]);
+        e.setId(this.id[index]);
+
+        world.addEntity(e);
+    }
+
+    /**
+     * Get the number of entities in the snapshot
+     * @return int
+     */
+
+    public int size() {
+        return this.foodCount + this.obstacleCount + this.beingCount + this.graveMarkerCount;
+    }
+
+    /**
+     * Get the tick the snapshot was taken on
+     * @return long tick
+     */
+
+    public long getTick() {
+        return tick;
+    }
+}
@@ -0,0 +1,206 @@
+package uk.ac.reading.vv008146.project.simulation;
+
+import uk.ac.reading.vv008146.project.FoodDetection;
+import uk.ac.reading.vv008146.project.World;
+import uk.ac.reading.vv008146.project.persistence.CheckpointWriter;
+
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Command line entry point for running simulations without a GUI, e.g. batch experiments on servers
+ * without a display. JavaFX doesn't need to be on the classpath.
+ *
+ * Usage: HeadlessSimulation [seed] [options]
+ *
+ * The seed uses the same format as World.fromText(String), e.g. "800 600 1 1 cow 20", and must be quoted.
+ *
+ * Options:
+ *   --ticks N            Number of ticks to run (default 1000)
+ *   --rate N             Target ticks per second (default 0, as fast as possible)
+ *   --report N           Print the tick rate every N ticks (default 0, only at the end)
+ *   --load PATH          Load a saved world, or the newest checkpoint in a directory, instead of generating
+ *                        one from a seed
+ *   --food "A B"         Generate the world from .food and .entity templates, as the GUI does
+ *   --random-seed N      Seed for every random number in a generated world, so a run can be repeated exactly
+ *   --max-entities N     Maximum number of entities when generating from templates (default 100)
+ *   --detection N        Food detection distance when generating from templates (default 100)
+ *   --store              Keep living beings in an EntityStore
+ *   --parallel-flocks    Simulate flocks on several threads at once
+ *   --scent              Find food by following a scent field instead of searching for the nearest
+ *   --flow-fields        Lead beings that haven't found food towards food patches, around obstacles
+ *   --checkpoint DIR     Checkpoint the world into a directory as it's simulated
+ *   --checkpoint-every N Ticks between checkpoints (default 100)
+ *   --deltas-per-base N  Checkpoints holding only changes between each full snapshot (default 10)
+ */
+
+public class HeadlessSimulation {
+
+    /**
+     * Run a simulation from the command line
+     * @param args Command line arguments, see the class description
+     */
+
+    public static void main(String[] args) {
+        String seed = null;
+        String loadPath = null;
+        List<String> food = null;
+        long randomSeed = RandomStreams.newSeed();
+
+        long ticks = 1000;
+        long reportInterval = 0;
+        double rate = 0;
+        int maxEntities = 100;
+        int detectionDistance = 100;
+        boolean useEntityStore = false;
+        boolean parallelFlocks = false;
+        boolean scent = false;
+        boolean flowFields = false;
+        String checkpointPath = null;
+        long checkpointInterval = 100;
+        int deltasPerBase = 10;
+
+        try {
+            for(int i = 0; i < args.length; i++) {
+                switch(args[i]) {
+                    case "--ticks":
+                        ticks = Long.parseLong(args[++i]);
+                        break;
+                    case "--rate":
+                        rate = Double.parseDouble(args[++i]);
+                        break;
+                    case "--report":
+                        reportInterval = Long.parseLong(args[++i]);
+                        break;
+                    case "--load":
+                        loadPath = args[++i];
+                        break;
+                    case "--food":
+                        food = new ArrayList<>(Arrays.asList(args[++i].split(" ")));
+                        break;
+                    case "--random-seed":
+                        randomSeed = Long.parseLong(args[++i]);
+                        break;
+                    case "--max-entities":
+                        maxEntities = Integer.parseInt(args[++i]);
+                        break;
+                    case "--detection":
+                        detectionDistance = Integer.parseInt(args[++i]);
+                        break;
+                    case "--store":
+                        useEntityStore = true;
+                        break;
+                    case "--parallel-flocks":
+                        parallelFlocks = true;
+                        break;
+                    case "--scent":
+                        scent = true;
+                        break;
+                    case "--flow-fields":
+                        flowFields = true;
+                        break;
+                    case "--checkpoint":
+                        checkpointPath = args[++i];
+                        break;
+                    case "--checkpoint-every":
+                        checkpointInterval = Long.parseLong(args[++i]);
+                        break;
+                    case "--deltas-per-base":
+                        deltasPerBase = Integer.parseInt(args[++i]);
+                        break;
+                    default:
+                        if(args[i].startsWith("--") || seed != null) {
+                            throw new IllegalArgumentException("Unknown argument " + args[i]);
+                        }
+
+                        seed = args[i];
+                }
+            }
+        } catch(ArrayIndexOutOfBoundsException e) {
+            System.err.println("Missing value for " + args[args.length - 1]);
+            printUsage();
+            System.exit(1);
+            return;
+        } catch(IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            printUsage();
+            System.exit(1);
+            return;
+        }
+
+        if((seed == null) == (loadPath == null)) {
+            System.err.println("Give either a seed or a world to --load");
+            printUsage();
+            System.exit(1);
+            return;
+        }
+
+        World world;
+
+        if(loadPath != null) {
+            world = World.load(loadPath);
+        } else if(food != null) {
+            world = World.fromText(seed, maxEntities, detectionDistance, food, randomSeed);
+        } else {
+            world = World.fromText(seed, randomSeed);
+        }
+
+        if(world == null) {
+            System.err.println("Couldn't load the world");
+            System.exit(1);
+            return;
+        }
+
+        world.setUseEntityStore(useEntityStore);
+        world.setParallelFlocks(parallelFlocks);
+
+        if(scent) {
+            world.setFoodDetection(FoodDetection.SCENT);
+        }
+
+        world.setFlowFields(flowFields);
+
+        SimulationRunner runner = new SimulationRunner(world);
+        runner.setTargetTicksPerSecond(rate);
+
+        if(checkpointPath != null) {
+            try {
+                runner.setCheckpointWriter(new CheckpointWriter(checkpointPath, checkpointInterval, deltasPerBase));
+            } catch(IOException e) {
+                System.err.println("Couldn't checkpoint into " + checkpointPath + ": " + e.getMessage());
+                System.exit(1);
+                return;
+            }
+        }
+
+        System.out.println("Simulating " + world.getEntities().size() + " entities for " + ticks + " ticks");
+
+        // Run in chunks so progress can be reported along the way
+        long chunk = reportInterval > 0 ? reportInterval : ticks;
+
+        while(runner.getTicksRun() < ticks) {
+            runner.run(Math.min(chunk, ticks - runner.getTicksRun()));
+
+            if(reportInterval > 0) {
+                System.out.printf("Tick %d: %.1f ticks/sec%n", runner.getTicksRun(), runner.getTicksPerSecond());
+            }
+        }
+
+        System.out.printf("Simulated %d ticks in %.3f s (%.1f ticks/sec)%n", runner.getTicksRun(), runner.getElapsedNanos() / 1e9, runner.getTicksPerSecond());
+
+        if(runner.getCheckpointWriter() != null) {
+            // Checkpoint where the run finished, and wait for it to be written before exiting
+            runner.getCheckpointWriter().checkpoint(world);
+            runner.getCheckpointWriter().close();
+        }
+    }
+
+    private static void printUsage() {
+        System.err.println("Usage: HeadlessSimulation [seed] [--ticks N] [--rate N] [--report N] [--load PATH] "
+                + "[--random-seed N] [--food \"A B\"] [--max-entities N] [--detection N] [--store] [--parallel-flocks] [--scent] [--flow-fields] "
+                + "[--checkpoint DIR] [--checkpoint-every N] [--deltas-per-base N]");
+    }
+}
@@ -0,0 +1,126 @@
+package uk.ac.reading.vv008146.project.simulation;
+
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Random numbers for the simulation, all worked out from a single seed per world, so the same seed and
+ * settings always give the same run. Each part of the simulation has a stream of its own, so e.g.
+ * placing one more obstacle doesn't change which way every being wanders.
+ *
+ * Numbers drawn while a world is being built, e.g. where entities are placed and their IDs, come from
+ * one SplittableRandom per stream, see World#getRandom. These aren't saved, so a world that's loaded
+ * again starts them over from the seed, and anything added to it afterwards is placed differently than
+ * it would have been.
+ *
+ * Numbers drawn on every tick are counter based instead: the seed, the stream, the entity and the tick
+ * are scrambled together into a starting number, and each number after it is got by scrambling the one
+ * before. Nothing is shared between entities or kept from tick to tick, so entities can be simulated in
+ * any order, on any thread, without creating any objects, and a world that's saved and loaded again
+ * draws the same numbers on each tick as it would have anyway. That doesn't always make the run the
+ * same as if it had never been saved: state that isn't saved, e.g. the food a being is heading for, is
+ * worked out again after loading and can send it somewhere else.
+ */
+
+public final class RandomStreams {
+
+    // Streams drawn from while the world is built
+    public static final int PLACEMENT = 0;
+    public static final int IDENTITIES = 1;
+    public static final int NOISE = 2;
+    public static final int FLOCKS = 3;
+
+    // Streams drawn from on every tick
+    public static final int WANDERING = 4;
+    public static final int FOOD_GROWTH = 5;
+    public static final int STEPPING = 6;
+
+    public static final int STREAMS = 7;
+
+    // The golden ratio as a 64 bit fraction, which spreads consecutive counters far apart before scrambling
+    private static final long GOLDEN_GAMMA = 0x9E3779B97F4A7C15L;
+
+    private RandomStreams() {
+    }
+
+    /**
+     * Pick a seed for a world that hasn't been given one
+     * @return long seed
+     */
+
+    public static long newSeed() {
+        return ThreadLocalRandom.current().nextLong();
+    }
+
+    /**
+     * Work out the seed of one of a world's streams, for building a SplittableRandom from
+     *
+     * @param seed long world seed
+     * @param stream int stream, e.g. PLACEMENT
+     * @return long seed for the stream
+     */
+
+    public static long seedOf(long seed, int stream) {
+        return mix(seed ^ mix((stream + 1) * GOLDEN_GAMMA));
+    }
+
+    /**
+     * Get the first random number for an entity on a tick
+     *
+     * @param seed long world seed
+     * @param stream int stream, e.g. WANDERING
+     * @param key long number identifying the entity, see keyOf
+     * @param tick long tick being simulated
+     * @return long random number, pass it to next for the one after
+     */
+
+    public static long start(long seed, int stream, long key, long tick) {
+        return mix(seedOf(seed, stream) ^ mix(mix(key) + tick * GOLDEN_GAMMA));
+    }
+
+    /**
+     * Get the random number after this one
+     * @param random long random number
+     * @return long random number
+     */
+
+    public static long next(long random) {
+        return mix(random);
+    }
+
+    /**
+     * Turn a random number into an int between 0 (inclusive) and bound (exclusive)
+     *
+     * @param random long random number
+     * @param bound int upper bound
+     * @return int
+     */
+
+    public static int nextInt(long random, int bound) {
+        return (int) ((random >>> 33) % bound);
+    }
+
+    /**
+     * Get a number identifying an entity, for drawing its random numbers
+     * @param uuid UUID of the entity
+     * @return long key
+     */
+
+    public static long keyOf(UUID uuid) {
+        return uuid.getMostSignificantBits() ^ uuid.getLeastSignificantBits();
+    }
+
+    /**
+     * Scramble the bits of a number (the SplitMix64 finaliser), giving a well spread random number from
+     * a seed without any shared state
+     *
+     * @param z long seed
+     * @return long random number
+     */
+
+    public static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+}
@@ -0,0 +1,567 @@
+package uk.ac.reading.vv008146.project.simulation;
+
+import uk.ac.reading.vv008146.project.World;
+import uk.ac.reading.vv008146.project.entities.Entity;
+import uk.ac.reading.vv008146.project.entities.EntityPartition;
+import uk.ac.reading.vv008146.project.entities.LivingBeing;
+import uk.ac.reading.vv008146.project.spatial.SpatialHashGrid;
+
+import java.util.Arrays;
+
+/**
+ * A copy of everything needed to draw a world at the end of a tick, made by the simulation thread so the
+ * GUI can draw from it without touching the world while it's being simulated.
+ *
+ * Living beings move every tick, so every living being that's drawn (i.e. has energy left) is copied
+ * into every snapshot. They're sorted by the cell of the world's spatial grid they're in, so drawing the
+ * part of the world the camera can see only needs to look at the cells it covers.
+ *
+ * Food, obstacles and grave markers hardly ever change, so they're kept in a SceneryLayer shared between
+ * snapshots. Each snapshot only copies whether each one is drawn, and lists the ones that have changed
+ * since the snapshot before, so renderers can redraw just those. Snapshots are numbered, so a renderer
+ * that misses one knows its list of changes is incomplete.
+ *
+ * Snapshots are reused rather than thrown away (see SimulationThread), so a snapshot must only be read by
+ * whichever thread currently holds it.
+ */
+
+public class RenderSnapshot {
+
+    public static final byte FOOD = 0;
+    public static final byte OBSTACLE = 1;
+    public static final byte GRAVE_MARKER = 2;
+
+    private long tick;
+    private long sequence;
+    private long publishedNanos;
+    private volatile boolean fresh;
+
+    private int width;
+    private int height;
+
+    private double cellSize;
+    private int columns;
+    private int rows;
+
+    private SceneryLayer scenery;
+
+    // Whether each entity in the scenery layer is drawn
+    private boolean[] sceneryVisible;
+
+    // Scenery that has changed since the snapshot before, by index in the layer
+    private int[] changedScenery;
+    private int changedSceneryCount;
+
+    private int size;
+
+    // One element per living being, sorted by cell
+    private Entity[] entities;
+    private double[] x;
+    private double[] y;
+    private double[] previousX;
+    private double[] previousY;
+    private String[] spriteNames;
+    private String[] species;
+
+    // Living beings in cell c are at indexes cellStart[c] to cellStart[c + 1] - 1
+    private int[] cellStart;
+
+    // How many food items and living beings are drawn in each cell, for drawing the heatmap
+    private int[] foodCounts;
+    private int[] beingCounts;
+
+    // Where each living being was before the tick, by its index in the beings partition
+    private LivingBeing[] rememberedBeings;
+    private double[] rememberedX;
+    private double[] rememberedY;
+
+    // Unsorted copy made while counting living beings per cell
+    private LivingBeing[] unsorted;
+    private int[] unsortedCells;
+    private int[] unsortedBeingIndexes;
+
+    /**
+     * Create an empty snapshot
+     */
+
+    public RenderSnapshot() {
+        this.entities = new Entity[0];
+        this.x = new double[0];
+        this.y = new double[0];
+        this.previousX = new double[0];
+        this.previousY = new double[0];
+        this.spriteNames = new String[0];
+        this.species = new String[0];
+        this.cellStart = new int[1];
+        this.foodCounts = new int[0];
+        this.beingCounts = new int[0];
+        this.sceneryVisible = new boolean[0];
+        this.changedScenery = new int[0];
+        this.rememberedBeings = new LivingBeing[0];
+        this.rememberedX = new double[0];
+        this.rememberedY = new double[0];
+        this.unsorted = new LivingBeing[0];
+        this.unsortedCells = new int[0];
+        this.unsortedBeingIndexes = new int[0];
+    }
+
+    /**
+     * Remember where every living being is before a tick, so the next capture can say where each being
+     * moved from
+     *
+     * @param world World about to be ticked
+     */
+
+    public void rememberPositions(World world) {
+        EntityPartition<LivingBeing> beings = world.getBeings();
+
+        if(this.rememberedBeings.length < beings.size()) {
+            int length = beings.size() + beings.size() / 2;
+
+            this.rememberedBeings = new LivingBeing[length];
+            this.rememberedX = new double[length];
+            this.rememberedY = new double[length];
+        }
+
+        for(int i = 0; i < beings.size(); i++) {
+            LivingBeing being = beings.get(i);
+
+            this.rememberedBeings[i] = being;
+            this.rememberedX[i] = being.getPosition().getX();
+            this.rememberedY[i] = being.getPosition().getY();
+        }
+
+        // Beings past the end are from an earlier tick
+        Arrays.fill(this.rememberedBeings, beings.size(), this.rememberedBeings.length, null);
+    }
+
+    /**
+     * Copy the world into the snapshot. Living beings remembered by rememberPositions keep where they
+     * were, and any others are treated as not having moved.
+     *
+     * @param world World to copy
+     * @param tracker SceneryTracker kept up to date with the world
+     */
+
+    public void capture(World world, SceneryTracker tracker) {
+        SpatialHashGrid grid = world.getBeings().getSpatialIndex();
+
+        this.tick = world.getTick();
+        this.width = world.getWidth();
+        this.height = world.getHeight();
+        this.cellSize = grid.getCellSize();
+        this.columns = grid.getColumns();
+        this.rows = grid.getRows();
+
+        tracker.copyInto(this);
+
+        int cells = this.columns * this.rows;
+
+        if(this.cellStart.length != cells + 1) {
+            this.cellStart = new int[cells + 1];
+            this.beingCounts = new int[cells];
+        } else {
+            Arrays.fill(this.cellStart, 0);
+            Arrays.fill(this.beingCounts, 0);
+        }
+
+        EntityPartition<LivingBeing> beings = world.getBeings();
+        this.ensureCapacity(beings.size());
+
+        // Copy beings that are drawn, counting how many are in each cell
+        this.size = 0;
+
+        for(int i = 0; i < beings.size(); i++) {
+            LivingBeing being = beings.get(i);
+
+            // Dead and eaten beings aren't drawn
+            if(being.getEnergy() <= 0) {
+                continue;
+            }
+
+            int cell = grid.rowOf(being.getPosition().getY()) * this.columns + grid.columnOf(being.getPosition().getX());
+
+            this.unsorted[this.size] = being;
+            this.unsortedCells[this.size] = cell;
+            this.unsortedBeingIndexes[this.size] = i;
+            this.cellStart[cell]++;
+            this.beingCounts[cell]++;
+            this.size++;
+        }
+
+        // Turn the counts into where each cell starts
+        int start = 0;
+
+        for(int cell = 0; cell < cells; cell++) {
+            int count = this.cellStart[cell];
+            this.cellStart[cell] = start;
+            start += count;
+        }
+
+        this.cellStart[cells] = start;
+
+        // Then place each being in its cell. Each cell's start is moved along as it fills, leaving it where
+        // the next cell starts
+        for(int i = 0; i < this.size; i++) {
+            this.place(this.cellStart[this.unsortedCells[i]]++, i);
+        }
+
+        // So move every start back by one cell
+        for(int cell = cells; cell > 0; cell--) {
+            this.cellStart[cell] = this.cellStart[cell - 1];
+        }
+
+        this.cellStart[0] = 0;
+
+        // Don't hold on to beings that have gone from the world
+        Arrays.fill(this.unsorted, this.size, this.unsorted.length, null);
+        Arrays.fill(this.entities, this.size, this.entities.length, null);
+    }
+
+    private void place(int index, int unsortedIndex) {
+        LivingBeing being = this.unsorted[unsortedIndex];
+        int beingIndex = this.unsortedBeingIndexes[unsortedIndex];
+
+        this.entities[index] = being;
+        this.x[index] = being.getPosition().getX();
+        this.y[index] = being.getPosition().getY();
+        this.spriteNames[index] = being.getSpriteName();
+        this.species[index] = being.getSpecies();
+
+        // Beings are remembered by their index, which only still matches if the same being is there
+        if(beingIndex < this.rememberedBeings.length && this.rememberedBeings[beingIndex] == being) {
+            this.previousX[index] = this.rememberedX[beingIndex];
+            this.previousY[index] = this.rememberedY[beingIndex];
+        } else {
+            this.previousX[index] = this.x[index];
+            this.previousY[index] = this.y[index];
+        }
+    }
+
+    /**
+     * Copy the scenery into the snapshot. Called by SceneryTracker.
+     *
+     * @param scenery SceneryLayer shared between snapshots
+     * @param visible boolean[] whether each entity in the layer is drawn
+     * @param foodCounts int[] how many food items are drawn in each cell
+     * @param changed int[] scenery changed since the last snapshot
+     * @param changedCount int how many entries of changed are used
+     * @param sequence long number of this snapshot
+     */
+
+    void setScenery(SceneryLayer scenery, boolean[] visible, int[] foodCounts, int[] changed, int changedCount, long sequence) {
+        this.scenery = scenery;
+        this.sequence = sequence;
+
+        if(this.sceneryVisible.length != visible.length) {
+            this.sceneryVisible = new boolean[visible.length];
+        }
+
+        if(this.foodCounts.length != foodCounts.length) {
+            this.foodCounts = new int[foodCounts.length];
+        }
+
+        if(this.changedScenery.length < changedCount) {
+            this.changedScenery = new int[changed.length];
+        }
+
+        System.arraycopy(visible, 0, this.sceneryVisible, 0, visible.length);
+        System.arraycopy(foodCounts, 0, this.foodCounts, 0, foodCounts.length);
+        System.arraycopy(changed, 0, this.changedScenery, 0, changedCount);
+        this.changedSceneryCount = changedCount;
+    }
+
+    private void ensureCapacity(int total) {
+        if(this.entities.length >= total) {
+            return;
+        }
+
+        // Leave room for the world to grow without reallocating every time
+        int length = total + total / 2;
+
+        this.entities = new Entity[length];
+        this.x = new double[length];
+        this.y = new double[length];
+        this.previousX = new double[length];
+        this.previousY = new double[length];
+        this.spriteNames = new String[length];
+        this.species = new String[length];
+        this.unsorted = new LivingBeing[length];
+        this.unsortedCells = new int[length];
+        this.unsortedBeingIndexes = new int[length];
+    }
+
+    /**
+     * Get the column a horizontal position falls into, clamped to the grid
+     * @param x X coordinate
+     * @return int column
+     */
+
+    public int columnOf(double x) {
+        return Math.max(0, Math.min(this.columns - 1, (int) Math.floor(x / this.cellSize)));
+    }
+
+    /**
+     * Get the row a vertical position falls into, clamped to the grid
+     * @param y Y coordinate
+     * @return int row
+     */
+
+    public int rowOf(double y) {
+        return Math.max(0, Math.min(this.rows - 1, (int) Math.floor(y / this.cellSize)));
+    }
+
+    /**
+     * Get the index of the first living being in a cell
+     * @param column int column
+     * @param row int row
+     * @return int index
+     */
+
+    public int getCellStart(int column, int row) {
+        return this.cellStart[row * this.columns + column];
+    }
+
+    /**
+     * Get the index after the last living being in a cell
+     * @param column int column
+     * @param row int row
+     * @return int index
+     */
+
+    public int getCellEnd(int column, int row) {
+        return this.cellStart[row * this.columns + column + 1];
+    }
+
+    /**
+     * Get how many food items are in a cell
+     * @param column int column
+     * @param row int row
+     * @return int count
+     */
+
+    public int getFoodCount(int column, int row) {
+        return this.foodCounts[row * this.columns + column];
+    }
+
+    /**
+     * Get how many living beings are in a cell
+     * @param column int column
+     * @param row int row
+     * @return int count
+     */
+
+    public int getBeingCount(int column, int row) {
+        return this.beingCounts[row * this.columns + column];
+    }
+
+    /**
+     * Get the living being at an index. Only to be used to tell entities apart, as the entity itself may be
+     * changing on the simulation thread.
+     *
+     * @param index int index
+     * @return Entity
+     */
+
+    public Entity getEntity(int index) {
+        return entities[index];
+    }
+
+    /**
+     * Get the X position of the living being at an index
+     * @param index int index
+     * @return double X position
+     */
+
+    public double getX(int index) {
+        return x[index];
+    }
+
+    /**
+     * Get the Y position of the living being at an index
+     * @param index int index
+     * @return double Y position
+     */
+
+    public double getY(int index) {
+        return y[index];
+    }
+
+    /**
+     * Get the X position of the living being at an index before the tick
+     * @param index int index
+     * @return double X position
+     */
+
+    public double getPreviousX(int index) {
+        return previousX[index];
+    }
+
+    /**
+     * Get the Y position of the living being at an index before the tick
+     * @param index int index
+     * @return double Y position
+     */
+
+    public double getPreviousY(int index) {
+        return previousY[index];
+    }
+
+    /**
+     * Get the sprite of the living being at an index
+     * @param index int index
+     * @return String sprite name
+     */
+
+    public String getSpriteName(int index) {
+        return spriteNames[index];
+    }
+
+    /**
+     * Get the species of the living being at an index
+     * @param index int index
+     * @return String species, or null if the being has no species
+     */
+
+    public String getSpecies(int index) {
+        return species[index];
+    }
+
+    /**
+     * Get how many living beings are in the snapshot
+     * @return int
+     */
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Get the food, obstacles and grave markers
+     * @return SceneryLayer
+     */
+
+    public SceneryLayer getScenery() {
+        return scenery;
+    }
+
+    /**
+     * Check whether an entity in the scenery layer is drawn, i.e. hasn't been eaten
+     * @param index int index in the scenery layer
+     * @return boolean
+     */
+
+    public boolean isSceneryVisible(int index) {
+        return sceneryVisible[index];
+    }
+
+    /**
+     * Get how many entities in the scenery layer have changed since the snapshot before
+     * @return int
+     */
+
+    public int getChangedSceneryCount() {
+        return changedSceneryCount;
+    }
+
+    /**
+     * Get an entity in the scenery layer that has changed since the snapshot before
+     * @param i int between 0 and getChangedSceneryCount
+     * @return int index in the scenery layer
+     */
+
+    public int getChangedScenery(int i) {
+        return changedScenery[i];
+    }
+
+    /**
+     * Get the number of this snapshot. Each snapshot is numbered one higher than the one before, so
+     * renderers can tell when they've missed one and need to redraw everything.
+     *
+     * @return long sequence number
+     */
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * Get the tick the snapshot was taken after
+     * @return long tick
+     */
+
+    public long getTick() {
+        return tick;
+    }
+
+    /**
+     * Get the width of the world
+     * @return int width
+     */
+
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * Get the height of the world
+     * @return int height
+     */
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Get the width and height of each cell
+     * @return double cell size
+     */
+
+    public double getCellSize() {
+        return cellSize;
+    }
+
+    /**
+     * Get the number of columns of cells
+     * @return int columns
+     */
+
+    public int getColumns() {
+        return columns;
+    }
+
+    /**
+     * Get the number of rows of cells
+     * @return int rows
+     */
+
+    public int getRows() {
+        return rows;
+    }
+
+    /**
+     * Get when the snapshot was published, from System.nanoTime
+     * @return long nanoseconds
+     */
+
+    public long getPublishedNanos() {
+        return publishedNanos;
+    }
+
+    void setPublishedNanos(long publishedNanos) {
+        this.publishedNanos = publishedNanos;
+    }
+
+    /**
+     * Check whether the snapshot has been published but not yet picked up for drawing
+     * @return boolean
+     */
+
+    boolean isFresh() {
+        return fresh;
+    }
+
+    void setFresh(boolean fresh) {
+        this.fresh = fresh;
+    }
+}
@@ -0,0 +1,258 @@
+package uk.ac.reading.vv008146.project.simulation;
+
+import uk.ac.reading.vv008146.project.World;
+import uk.ac.reading.vv008146.project.entities.Entity;
+import uk.ac.reading.vv008146.project.entities.EntityPartition;
+import uk.ac.reading.vv008146.project.spatial.SpatialHashGrid;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Every food item, obstacle and grave marker in a world, sorted by the cell of the world's spatial grid
+ * they're in. These never move, so a layer is built once and shared by every RenderSnapshot until an
+ * entity is added to or removed from the world. Whether each one is drawn (i.e. has energy left) is kept
+ * by the snapshots themselves, as food is eaten and grows back all the time.
+ *
+ * A layer isn't changed once it's built, so it can be read from any thread.
+ */
+
+public class SceneryLayer {
+
+    private final int populationVersion;
+
+    private final double cellSize;
+    private final int columns;
+    private final int rows;
+
+    private final int size;
+
+    // One element per entity, sorted by cell. Within a cell, food comes first, then obstacles, then grave
+    // markers
+    private final Entity[] entities;
+    private final double[] x;
+    private final double[] y;
+    private final byte[] kinds;
+    private final String[] spriteNames;
+
+    // Entities in cell c are at indexes cellStart[c] to cellStart[c + 1] - 1
+    private final int[] cellStart;
+
+    private final Map<Entity, Integer> indexes;
+
+    /**
+     * Build a layer from the scenery in a world
+     * @param world World to build from
+     */
+
+    public SceneryLayer(World world) {
+        SpatialHashGrid grid = world.getBeings().getSpatialIndex();
+
+        this.populationVersion = world.getPopulationVersion();
+        this.cellSize = grid.getCellSize();
+        this.columns = grid.getColumns();
+        this.rows = grid.getRows();
+        this.size = world.getFood().size() + world.getObstacles().size() + world.getGraveMarkers().size();
+
+        this.entities = new Entity[this.size];
+        this.x = new double[this.size];
+        this.y = new double[this.size];
+        this.kinds = new byte[this.size];
+        this.spriteNames = new String[this.size];
+        this.cellStart = new int[this.columns * this.rows + 1];
+        this.indexes = new IdentityHashMap<>(this.size);
+
+        // Count how many entities are in each cell, then turn the counts into where each cell starts
+        this.count(world.getFood(), grid);
+        this.count(world.getObstacles(), grid);
+        this.count(world.getGraveMarkers(), grid);
+
+        int start = 0;
+
+        for(int cell = 0; cell < this.columns * this.rows; cell++) {
+            int count = this.cellStart[cell];
+            this.cellStart[cell] = start;
+            start += count;
+        }
+
+        this.cellStart[this.columns * this.rows] = start;
+
+        // Each cell's start is moved along as it fills, leaving it where the next cell starts
+        this.place(world.getFood(), RenderSnapshot.FOOD, grid);
+        this.place(world.getObstacles(), RenderSnapshot.OBSTACLE, grid);
+        this.place(world.getGraveMarkers(), RenderSnapshot.GRAVE_MARKER, grid);
+
+        // So move every start back by one cell
+        for(int cell = this.columns * this.rows; cell > 0; cell--) {
+            this.cellStart[cell] = this.cellStart[cell - 1];
+        }
+
+        this.cellStart[0] = 0;
+    }
+
+    private int cellOf(Entity e, SpatialHashGrid grid) {
+        return grid.rowOf(e.getPosition().getY()) * this.columns + grid.columnOf(e.getPosition().getX());
+    }
+
+    private void count(EntityPartition<? extends Entity> partition, SpatialHashGrid grid) {
+        for(int i = 0; i < partition.size(); i++) {
+            this.cellStart[this.cellOf(partition.get(i), grid)]++;
+        }
+    }
+
+    private void place(EntityPartition<? extends Entity> partition, byte kind, SpatialHashGrid grid) {
+        for(int i = 0; i < partition.size(); i++) {
+            Entity e = partition.get(i);
+            int index = this.cellStart[this.cellOf(e, grid)]++;
+
+            this.entities[index] = e;
+            this.x[index] = e.getPosition().getX();
+            this.y[index] = e.getPosition().getY();
+            this.kinds[index] = kind;
+            this.spriteNames[index] = e.getSpriteName();
+            this.indexes.put(e, index);
+        }
+    }
+
+    /**
+     * Get where an entity is in the layer
+     * @param e Entity to find
+     * @return int index, or -1 if the entity isn't in the layer
+     */
+
+    public int indexOf(Entity e) {
+        Integer index = this.indexes.get(e);
+        return index == null ? -1 : index;
+    }
+
+    /**
+     * Get the cell an entity is in
+     * @param index int index
+     * @return int cell, row * columns + column
+     */
+
+    public int cellOf(int index) {
+        int column = Math.max(0, Math.min(this.columns - 1, (int) Math.floor(this.x[index] / this.cellSize)));
+        int row = Math.max(0, Math.min(this.rows - 1, (int) Math.floor(this.y[index] / this.cellSize)));
+
+        return row * this.columns + column;
+    }
+
+    /**
+     * Get the population version of the world when the layer was built
+     * @return int version
+     * @see World#getPopulationVersion()
+     */
+
+    public int getPopulationVersion() {
+        return populationVersion;
+    }
+
+    /**
+     * Get the index of the first entity in a cell
+     * @param cell int cell, row * columns + column
+     * @return int index
+     */
+
+    public int getCellStart(int cell) {
+        return cellStart[cell];
+    }
+
+    /**
+     * Get the index after the last entity in a cell
+     * @param cell int cell, row * columns + column
+     * @return int index
+     */
+
+    public int getCellEnd(int cell) {
+        return cellStart[cell + 1];
+    }
+
+    /**
+     * Get the entity at an index. Only to be used to tell entities apart, as the entity itself may be
+     * changing on the simulation thread.
+     *
+     * @param index int index
+     * @return Entity
+     */
+
+    public Entity getEntity(int index) {
+        return entities[index];
+    }
+
+    /**
+     * Get the X position of the entity at an index
+     * @param index int index
+     * @return double X position
+     */
+
+    public double getX(int index) {
+        return x[index];
+    }
+
+    /**
+     * Get the Y position of the entity at an index
+     * @param index int index
+     * @return double Y position
+     */
+
+    public double getY(int index) {
+        return y[index];
+    }
+
+    /**
+     * Get what kind of entity is at an index, e.g. RenderSnapshot.FOOD
+     * @param index int index
+     * @return byte kind
+     */
+
+    public byte getKind(int index) {
+        return kinds[index];
+    }
+
+    /**
+     * Get the sprite of the entity at an index
+     * @param index int index
+     * @return String sprite name
+     */
+
+    public String getSpriteName(int index) {
+        return spriteNames[index];
+    }
+
+    /**
+     * Get how many entities are in the layer
+     * @return int
+     */
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Get the width and height of each cell
+     * @return double cell size
+     */
+
+    public double getCellSize() {
+        return cellSize;
+    }
+
+    /**
+     * Get the number of columns of cells
+     * @return int columns
+     */
+
+    public int getColumns() {
+        return columns;
+    }
+
+    /**
+     * Get the number of rows of cells
+     * @return int rows
+     */
+
+    public int getRows() {
+        return rows;
+    }
+}
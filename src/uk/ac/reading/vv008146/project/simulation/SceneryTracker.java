@@ -0,0 +1,140 @@
+package uk.ac.reading.vv008146.project.simulation;
+
+import uk.ac.reading.vv008146.project.World;
+import uk.ac.reading.vv008146.project.entities.Entity;
+
+import java.util.function.Consumer;
+
+/**
+ * Keeps a SceneryLayer up to date with a world, using the world's list of changed entities rather than
+ * looking at every food item, obstacle and grave marker each tick. Keeps track of which scenery has been
+ * eaten or grown back since the last RenderSnapshot, so renderers only need to redraw that.
+ *
+ * Only to be used by the thread simulating the world.
+ */
+
+public class SceneryTracker {
+
+    private SceneryLayer layer;
+
+    // Whether each entity in the layer is drawn, and how many food items are drawn in each cell
+    private boolean[] visible;
+    private int[] foodCounts;
+
+    // Entities that have changed since the last snapshot, by index in the layer
+    private int[] changed;
+    private int changedCount;
+    private boolean[] pending;
+
+    // Scenery has moved, so the layer is out of date
+    private boolean rebuildNeeded;
+
+    // Goes up with every snapshot, so renderers can tell if they've missed one
+    private long sequence;
+
+    private final Consumer<Entity> changeAction;
+
+    /**
+     * Create a tracker for a world. Starts recording the world's changes.
+     * @param world World to track
+     */
+
+    public SceneryTracker(World world) {
+        this.changeAction = this::apply;
+
+        // Anything changed before now is already in the layer
+        world.setTrackChanges(true);
+        world.takeChanges(e -> {});
+        this.rebuild(world);
+    }
+
+    /**
+     * Catch up with everything that has changed in the world since the last update. Called after ticks,
+     * before a snapshot is taken.
+     *
+     * @param world World being tracked
+     */
+
+    public void update(World world) {
+        world.takeChanges(this.changeAction);
+
+        if(this.rebuildNeeded || this.layer.getPopulationVersion() != world.getPopulationVersion()) {
+            this.rebuild(world);
+        }
+    }
+
+    private void apply(Entity e) {
+        int index = this.layer.indexOf(e);
+
+        // Living beings move all the time, so they're copied into every snapshot anyway. Entities added
+        // since the layer was built will be picked up when it's rebuilt
+        if(index < 0 || this.rebuildNeeded) {
+            return;
+        }
+
+        if(e.getPosition().getX() != this.layer.getX(index) || e.getPosition().getY() != this.layer.getY(index)) {
+            this.rebuildNeeded = true;
+            return;
+        }
+
+        boolean nowVisible = e.getEnergy() > 0;
+
+        if(nowVisible == this.visible[index]) {
+            return;
+        }
+
+        this.visible[index] = nowVisible;
+
+        if(this.layer.getKind(index) == RenderSnapshot.FOOD) {
+            this.foodCounts[this.layer.cellOf(index)] += nowVisible ? 1 : -1;
+        }
+
+        if(!this.pending[index]) {
+            this.pending[index] = true;
+            this.changed[this.changedCount++] = index;
+        }
+    }
+
+    private void rebuild(World world) {
+        this.layer = new SceneryLayer(world);
+        this.visible = new boolean[this.layer.size()];
+        this.foodCounts = new int[this.layer.getColumns() * this.layer.getRows()];
+        this.changed = new int[this.layer.size()];
+        this.pending = new boolean[this.layer.size()];
+        this.changedCount = 0;
+        this.rebuildNeeded = false;
+
+        for(int i = 0; i < this.layer.size(); i++) {
+            this.visible[i] = this.layer.getEntity(i).getEnergy() > 0;
+
+            if(this.visible[i] && this.layer.getKind(i) == RenderSnapshot.FOOD) {
+                this.foodCounts[this.layer.cellOf(i)]++;
+            }
+        }
+    }
+
+    /**
+     * Copy the scenery into a snapshot, along with everything that's changed since the last snapshot
+     * @param snapshot RenderSnapshot being filled
+     */
+
+    public void copyInto(RenderSnapshot snapshot) {
+        this.sequence++;
+        snapshot.setScenery(this.layer, this.visible, this.foodCounts, this.changed, this.changedCount, this.sequence);
+
+        for(int i = 0; i < this.changedCount; i++) {
+            this.pending[this.changed[i]] = false;
+        }
+
+        this.changedCount = 0;
+    }
+
+    /**
+     * Get the layer as it was last built
+     * @return SceneryLayer
+     */
+
+    public SceneryLayer getLayer() {
+        return layer;
+    }
+}
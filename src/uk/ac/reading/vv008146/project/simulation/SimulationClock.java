@@ -0,0 +1,148 @@
+package uk.ac.reading.vv008146.project.simulation;
+
+/**
+ * Fixed timestep clock. The simulation always moves forward in ticks of the same length, however often
+ * frames are drawn. Time passed between frames is added to an accumulator, and a tick is run for each
+ * whole tick's worth of time in it, so a frame can run zero, one or several ticks.
+ *
+ * Whatever is left over in the accumulator says how far the world is between its last tick and the next
+ * one, which the GUI uses to smooth out sprite movement.
+ *
+ * Ticks are the only measure of time inside the simulation, so a world gives the same results however
+ * fast the machine is, or however fast it's being run.
+ */
+
+public class SimulationClock {
+
+    // Simulated ticks in one second of simulated time
+    public static final int TICKS_PER_SECOND = 60;
+
+    // Length of a tick in real time, at normal speed
+    public static final long NANOS_PER_TICK = 1_000_000_000L / TICKS_PER_SECOND;
+
+    // How many times faster than real time to run
+    private double speed;
+
+    // Stops the simulation trying to catch up forever if ticks take longer to run than they represent
+    private int maxTicksPerFrame;
+
+    private long accumulator;
+    private long lastFrameTime;
+
+    /**
+     * Create a clock running in real time
+     */
+
+    public SimulationClock() {
+        this.speed = 1;
+        this.maxTicksPerFrame = 200;
+        this.reset();
+    }
+
+    /**
+     * Convert a number of seconds of simulated time into ticks
+     * @param seconds double seconds
+     * @return long ticks
+     */
+
+    public static long secondsToTicks(double seconds) {
+        return Math.round(seconds * TICKS_PER_SECOND);
+    }
+
+    /**
+     * Forget about time that's already passed, e.g. after the simulation has been paused, so the next
+     * frame doesn't try to catch up on it
+     */
+
+    public void reset() {
+        this.accumulator = 0;
+        this.lastFrameTime = -1;
+    }
+
+    /**
+     * Tell the clock a new frame has started, and find out how many ticks to run for it
+     *
+     * @param now long frame time in nanoseconds, e.g. from an AnimationTimer
+     * @return int number of ticks to run
+     */
+
+    public int advance(long now) {
+        if(this.lastFrameTime < 0) {
+            this.lastFrameTime = now;
+            return 0;
+        }
+
+        this.accumulator += (long) ((now - this.lastFrameTime) * this.speed);
+        this.lastFrameTime = now;
+
+        long ticks = this.accumulator / NANOS_PER_TICK;
+
+        if(ticks > this.maxTicksPerFrame) {
+            // Too far behind to catch up, so drop the time we can't make up
+            this.accumulator = 0;
+            return this.maxTicksPerFrame;
+        }
+
+        this.accumulator -= ticks * NANOS_PER_TICK;
+
+        return (int) ticks;
+    }
+
+    /**
+     * Get how long until the next tick will be due, at the current speed
+     * @return long nanoseconds
+     */
+
+    public long nanosUntilNextTick() {
+        if(this.speed <= 0) {
+            return NANOS_PER_TICK;
+        }
+
+        return (long) ((NANOS_PER_TICK - this.accumulator) / this.speed);
+    }
+
+    /**
+     * Get how far the world is between its last tick and the next one
+     * @return double between 0 and 1
+     */
+
+    public double getAlpha() {
+        return (double) this.accumulator / NANOS_PER_TICK;
+    }
+
+    /**
+     * Get how many times faster than real time the clock runs
+     * @return double speed
+     */
+
+    public double getSpeed() {
+        return speed;
+    }
+
+    /**
+     * Set how many times faster than real time the clock runs, e.g. 10 to fast-forward at 10x
+     * @param speed double speed
+     */
+
+    public void setSpeed(double speed) {
+        this.speed = Math.max(0, speed);
+    }
+
+    /**
+     * Get the most ticks that will be run for a single frame
+     * @return int ticks
+     */
+
+    public int getMaxTicksPerFrame() {
+        return maxTicksPerFrame;
+    }
+
+    /**
+     * Set the most ticks that will be run for a single frame
+     * @param maxTicksPerFrame int ticks
+     */
+
+    public void setMaxTicksPerFrame(int maxTicksPerFrame) {
+        this.maxTicksPerFrame = Math.max(1, maxTicksPerFrame);
+    }
+}
@@ -0,0 +1,140 @@
+package uk.ac.reading.vv008146.project.simulation;
+
+import uk.ac.reading.vv008146.project.World;
+import uk.ac.reading.vv008146.project.persistence.CheckpointWriter;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Advances a world without a GUI. Ticks are run either as fast as possible, or paced to a target tick
+ * rate. Nothing in here depends on JavaFX, so worlds can be simulated on machines without a display.
+ */
+
+public class SimulationRunner {
+
+    private final World world;
+
+    // 0 means run as fast as possible
+    private double targetTicksPerSecond;
+
+    // Checkpoints the world as it goes, or null
+    private CheckpointWriter checkpointWriter;
+
+    private long ticksRun;
+    private long elapsedNanos;
+
+    /**
+     * Create a runner for the given world
+     * @param world World to simulate
+     */
+
+    public SimulationRunner(World world) {
+        this.world = world;
+    }
+
+    /**
+     * Run the given number of ticks. If a target tick rate has been set, ticks are spaced out to match it,
+     * otherwise they're run back to back. Can be called several times, the totals carry on from where the
+     * last run finished.
+     *
+     * @param ticks long number of ticks to run
+     */
+
+    public void run(long ticks) {
+        long start = System.nanoTime();
+        long period = this.targetTicksPerSecond > 0 ? (long) (1_000_000_000 / this.targetTicksPerSecond) : 0;
+
+        for(long i = 0; i < ticks; i++) {
+            world.simulateOutsideOfGrid();
+
+            if(this.checkpointWriter != null) {
+                this.checkpointWriter.tick(world);
+            }
+
+            // Work out when the next tick is due from the start of the run, so waiting doesn't drift
+            if(period > 0) {
+                long due = start + (i + 1) * period;
+                long wait;
+
+                while((wait = due - System.nanoTime()) > 0) {
+                    LockSupport.parkNanos(wait);
+                }
+            }
+        }
+
+        this.elapsedNanos += System.nanoTime() - start;
+        this.ticksRun += ticks;
+    }
+
+    /**
+     * Get the world being simulated
+     * @return World
+     */
+
+    public World getWorld() {
+        return world;
+    }
+
+    /**
+     * Get the tick rate the runner is aiming for
+     * @return double ticks per second, 0 if running as fast as possible
+     */
+
+    public double getTargetTicksPerSecond() {
+        return targetTicksPerSecond;
+    }
+
+    /**
+     * Set the tick rate the runner should aim for
+     * @param targetTicksPerSecond double ticks per second, 0 to run as fast as possible
+     */
+
+    public void setTargetTicksPerSecond(double targetTicksPerSecond) {
+        this.targetTicksPerSecond = Math.max(0, targetTicksPerSecond);
+    }
+
+    /**
+     * Get the writer checkpointing the world as it's simulated
+     * @return CheckpointWriter, or null if the world isn't checkpointed
+     */
+
+    public CheckpointWriter getCheckpointWriter() {
+        return checkpointWriter;
+    }
+
+    /**
+     * Checkpoint the world as it's simulated, after every tick
+     * @param checkpointWriter CheckpointWriter, or null to stop checkpointing
+     */
+
+    public void setCheckpointWriter(CheckpointWriter checkpointWriter) {
+        this.checkpointWriter = checkpointWriter;
+    }
+
+    /**
+     * Get the number of ticks run so far
+     * @return long ticks
+     */
+
+    public long getTicksRun() {
+        return ticksRun;
+    }
+
+    /**
+     * Get the time spent running ticks so far
+     * @return long nanoseconds
+     */
+
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    /**
+     * Get the average tick rate achieved so far
+     * @return double ticks per second
+     */
+
+    public double getTicksPerSecond() {
+        return this.elapsedNanos == 0 ? 0 : this.ticksRun / (this.elapsedNanos / 1e9);
+    }
+}
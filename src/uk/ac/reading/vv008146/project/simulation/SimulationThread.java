@@ -0,0 +1,335 @@
+package uk.ac.reading.vv008146.project.simulation;
+
+import uk.ac.reading.vv008146.project.World;
+
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+
+/**
+ * Simulates a world on its own thread, so a slow tick can't hold up the GUI, and the GUI and the
+ * simulation can run on separate cores.
+ *
+ * After a tick, the thread copies the world into a RenderSnapshot for the GUI to draw, along with what
+ * has changed since the last snapshot. Snapshots are
+ * triple buffered: the simulation thread fills one, the GUI draws another, and the third holds the
+ * newest finished snapshot. Handing them over is a single atomic swap, so neither thread ever waits for
+ * the other. Snapshots are only taken when the GUI has asked for one since the last, so fast-forwarding
+ * doesn't waste time copying the world after every tick.
+ *
+ * Once the thread has started, the world must only be touched from it, through runBetweenTicks.
+ */
+
+public class SimulationThread {
+
+    // How long to sleep for while paused, if nothing wakes the thread up first
+    private static final long PAUSED_SLEEP_NANOS = 50_000_000L;
+
+    private final World world;
+    private final SimulationClock clock;
+    private final Thread thread;
+
+    // Keeps track of which food, obstacles and grave markers change, so snapshots don't copy them all
+    private final SceneryTracker scenery;
+
+    // Jobs waiting to be run on the simulation thread
+    private final Queue<Runnable> tasks;
+
+    // Newest finished snapshot
+    private final AtomicReference<RenderSnapshot> published;
+
+    // Snapshot being filled, only touched by the simulation thread
+    private RenderSnapshot back;
+
+    // Snapshot being drawn, only touched by the thread calling getSnapshot
+    private RenderSnapshot front;
+
+    private final AtomicBoolean snapshotWanted;
+
+    private volatile boolean running;
+    private volatile boolean stopped;
+    private volatile double speed;
+
+    /**
+     * Create a thread to simulate a world. The world isn't simulated until start is called and the
+     * thread is set running.
+     *
+     * @param world World to simulate
+     */
+
+    public SimulationThread(World world) {
+        this.world = world;
+        this.clock = new SimulationClock();
+        this.tasks = new ConcurrentLinkedQueue<>();
+        this.back = new RenderSnapshot();
+        this.front = new RenderSnapshot();
+        this.snapshotWanted = new AtomicBoolean(false);
+        this.speed = 1;
+        this.scenery = new SceneryTracker(world);
+
+        // Take the first snapshot now, so there's something to draw straight away
+        RenderSnapshot first = new RenderSnapshot();
+        first.capture(world, this.scenery);
+        first.setPublishedNanos(System.nanoTime());
+        first.setFresh(true);
+        this.published = new AtomicReference<>(first);
+
+        this.thread = new Thread(this::run, "simulation");
+
+        // Don't keep the application open once the GUI has closed
+        this.thread.setDaemon(true);
+    }
+
+    /**
+     * Start the thread. The world stays paused until setRunning is called.
+     */
+
+    public void start() {
+        this.thread.start();
+    }
+
+    /**
+     * Stop the thread, waiting for the tick it's running to finish. The thread can't be started again.
+     */
+
+    public void stop() {
+        this.stopped = true;
+        LockSupport.unpark(this.thread);
+
+        try {
+            this.thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        // Nothing is drawing the world any more, so it needn't keep a list of what changes
+        this.world.setTrackChanges(false);
+    }
+
+    /**
+     * Run or pause the simulation
+     * @param running boolean true to run
+     */
+
+    public void setRunning(boolean running) {
+        this.running = running;
+        LockSupport.unpark(this.thread);
+    }
+
+    /**
+     * Check whether the simulation is running
+     * @return boolean
+     */
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Set how many times faster than real time to run
+     * @param speed double speed
+     */
+
+    public void setSpeed(double speed) {
+        this.speed = speed;
+    }
+
+    /**
+     * Get how many times faster than real time the simulation runs
+     * @return double speed
+     */
+
+    public double getSpeed() {
+        return speed;
+    }
+
+    /**
+     * Get the world being simulated. Only to be changed through runBetweenTicks once the thread has
+     * started.
+     *
+     * @return World
+     */
+
+    public World getWorld() {
+        return world;
+    }
+
+    /**
+     * Run a job on the simulation thread between two ticks, e.g. to save the world or add to it. A
+     * snapshot is taken after the job, so changes show up even while paused.
+     *
+     * @param task Runnable job
+     * @return CompletableFuture completed once the job has run
+     */
+
+    public CompletableFuture<Void> runBetweenTicks(Runnable task) {
+        return this.callBetweenTicks(() -> {
+            task.run();
+            return null;
+        });
+    }
+
+    /**
+     * Work something out on the simulation thread between two ticks, e.g. a snapshot of the world to save.
+     * If the thread has been stopped, the job won't ever run, and the future fails with an
+     * IllegalStateException instead.
+     *
+     * @param task Supplier job
+     * @param <T> Type of the result
+     * @return CompletableFuture completed with the job's result once it has run
+     */
+
+    public <T> CompletableFuture<T> callBetweenTicks(Supplier<T> task) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+
+        Runnable job = () -> {
+            try {
+                future.complete(task.get());
+            } catch (Throwable t) {
+                future.completeExceptionally(t);
+            }
+        };
+
+        this.tasks.add(job);
+
+        // The thread runs whatever is queued one last time once it sees it's been stopped. If it's been
+        // stopped already, that may have happened before the job was queued, so take it back out. If it
+        // isn't there any more, the thread has taken it and will run it
+        if(this.stopped && this.tasks.remove(job)) {
+            future.completeExceptionally(new IllegalStateException("Simulation thread has stopped"));
+        }
+
+        LockSupport.unpark(this.thread);
+
+        return future;
+    }
+
+    /**
+     * Get the newest snapshot of the world to draw, and ask for another. The snapshot returned is only
+     * valid until the next call, and must only be used by the thread calling this, e.g. the FX thread.
+     *
+     * @return RenderSnapshot
+     */
+
+    public RenderSnapshot getSnapshot() {
+        if(this.published.get().isFresh()) {
+            this.front = this.published.getAndSet(this.front);
+            this.front.setFresh(false);
+        }
+
+        this.snapshotWanted.set(true);
+
+        return this.front;
+    }
+
+    /**
+     * Get how far the world has got between a snapshot's tick and the next, going by how long ago the
+     * snapshot was published. Used to draw living beings part of the way between where a snapshot says
+     * they were and where they are.
+     *
+     * @param snapshot RenderSnapshot being drawn
+     * @param now long current time, from System.nanoTime
+     * @return double between 0 and 1
+     */
+
+    public double getAlpha(RenderSnapshot snapshot, long now) {
+        if(!this.running) {
+            return 1;
+        }
+
+        double alpha = (now - snapshot.getPublishedNanos()) * this.speed / SimulationClock.NANOS_PER_TICK;
+
+        return Math.max(0, Math.min(1, alpha));
+    }
+
+    private void run() {
+        boolean wasRunning = false;
+
+        while(!this.stopped) {
+            if(this.runTasks()) {
+                this.publish(false);
+            }
+
+            if(!this.running) {
+                wasRunning = false;
+                LockSupport.parkNanos(PAUSED_SLEEP_NANOS);
+                continue;
+            }
+
+            if(!wasRunning) {
+                // Don't try to catch up on the time spent paused
+                this.clock.reset();
+                wasRunning = true;
+            }
+
+            this.clock.setSpeed(this.speed);
+
+            int ticks = this.clock.advance(System.nanoTime());
+
+            if(ticks == 0) {
+                LockSupport.parkNanos(Math.max(1, this.clock.nanosUntilNextTick()));
+                continue;
+            }
+
+            for(int i = 0; i < ticks && this.running && !this.stopped; i++) {
+                // Only captured if the GUI has drawn the last snapshot, which happens at most once per frame
+                // however many ticks are run
+                boolean capture = this.snapshotWanted.getAndSet(false);
+
+                if(capture) {
+                    this.back.rememberPositions(this.world);
+                }
+
+                try {
+                    this.world.simulateOutsideOfGrid();
+                } catch (RuntimeException e) {
+                    // Stop rather than fail the same way every tick
+                    e.printStackTrace();
+                    this.running = false;
+                }
+
+                if(capture) {
+                    this.publish(true);
+                }
+            }
+        }
+
+        // Jobs queued just before stopping, e.g. a save, are still run, as whoever queued them may be waiting
+        this.runTasks();
+    }
+
+    private boolean runTasks() {
+        boolean ran = false;
+        Runnable task;
+
+        while((task = this.tasks.poll()) != null) {
+            task.run();
+            ran = true;
+        }
+
+        return ran;
+    }
+
+    /**
+     * Fill the back snapshot from the world and swap it for the published one
+     * @param remembered boolean whether positions were remembered before the last tick
+     */
+
+    private void publish(boolean remembered) {
+        if(!remembered) {
+            // Nothing has moved since, so beings are drawn where they are
+            this.back.rememberPositions(this.world);
+        }
+
+        this.scenery.update(this.world);
+        this.back.capture(this.world, this.scenery);
+        this.back.setPublishedNanos(System.nanoTime());
+        this.back.setFresh(true);
+
+        this.back = this.published.getAndSet(this.back);
+    }
+}
@@ -0,0 +1,374 @@
+package uk.ac.reading.vv008146.project.spatial;
+
+import java.util.Arrays;
+
+/**
+ * A grid of distances from every cell of the world to the nearest food patch, going around obstacles.
+ * A being anywhere in the world can find its way to food by stepping into whichever cell next to it is
+ * closest, without searching or path finding of its own.
+ *
+ * Patches are the cells marked with setPatch, normally where the world's noise is high enough for food
+ * to grow. A patch only counts while it has food left in it. Cells with at least half of their pixels
+ * blocked can't be walked through.
+ *
+ * When food grows back in an empty patch, only the cells it's now closest to are updated. When a patch
+ * runs out of food, distances can only get longer, which can't be worked out cell by cell, so the whole
+ * field is worked out again. Patches are eaten out all the time, so that's put off until rebuild is next
+ * called, and the field is a little out of date until then.
+ */
+
+public class FlowField {
+
+    // Distance of cells that can't reach a patch
+    public static final int UNREACHABLE = Integer.MAX_VALUE;
+
+    private final double cellSize;
+    private final int columns;
+    private final int rows;
+
+    // Pixels in the world that each cell covers
+    private final int[] pixels;
+
+    // Blocked pixels in each cell
+    private final int[] blocked;
+
+    private final boolean[] patch;
+
+    // Food with energy left in each cell
+    private final int[] food;
+
+    // Steps from each cell to the nearest patch with food
+    private final int[] distance;
+
+    // Cells waiting to have their neighbours' distances updated
+    private final int[] queue;
+
+    private boolean dirty;
+
+    /**
+     * Create a field with no patches, no food and nothing blocked. Call rebuild once it's been filled in.
+     *
+     * @param width Width of the world
+     * @param height Height of the world
+     * @param cellSize Width and height of each cell
+     */
+
+    public FlowField(int width, int height, double cellSize) {
+        this.cellSize = cellSize;
+        this.columns = Math.max(1, (int) Math.ceil(width / cellSize));
+        this.rows = Math.max(1, (int) Math.ceil(height / cellSize));
+
+        int cells = this.columns * this.rows;
+
+        this.pixels = new int[cells];
+        this.blocked = new int[cells];
+        this.patch = new boolean[cells];
+        this.food = new int[cells];
+        this.distance = new int[cells];
+        this.queue = new int[cells];
+
+        // Cells along the right and bottom edges can hang off the end of the world
+        for(int row = 0; row < this.rows; row++) {
+            int cellHeight = (int) Math.min(cellSize, height - row * cellSize);
+
+            for(int column = 0; column < this.columns; column++) {
+                int cellWidth = (int) Math.min(cellSize, width - column * cellSize);
+                this.pixels[row * this.columns + column] = Math.max(1, cellWidth * cellHeight);
+            }
+        }
+
+        Arrays.fill(this.distance, UNREACHABLE);
+        this.dirty = true;
+    }
+
+    /**
+     * Get the column a horizontal position falls into, clamped to the grid
+     * @param x X coordinate
+     * @return int column
+     */
+
+    public int columnOf(double x) {
+        return Math.max(0, Math.min(this.columns - 1, (int) Math.floor(x / this.cellSize)));
+    }
+
+    /**
+     * Get the row a vertical position falls into, clamped to the grid
+     * @param y Y coordinate
+     * @return int row
+     */
+
+    public int rowOf(double y) {
+        return Math.max(0, Math.min(this.rows - 1, (int) Math.floor(y / this.cellSize)));
+    }
+
+    private int cellOf(double x, double y) {
+        return this.rowOf(y) * this.columns + this.columnOf(x);
+    }
+
+    private boolean isPassable(int cell) {
+        return this.blocked[cell] * 2 < this.pixels[cell];
+    }
+
+    private boolean isSource(int cell) {
+        return this.patch[cell] && this.food[cell] > 0 && this.isPassable(cell);
+    }
+
+    /**
+     * Mark a cell as part of a food patch
+     *
+     * @param column int column
+     * @param row int row
+     */
+
+    public void setPatch(int column, int row) {
+        int cell = row * this.columns + column;
+
+        if(!this.patch[cell]) {
+            this.patch[cell] = true;
+            this.dirty = true;
+        }
+    }
+
+    /**
+     * Record that a pixel has been blocked, e.g. by an obstacle
+     *
+     * @param x X coordinate
+     * @param y Y coordinate
+     */
+
+    public void block(double x, double y) {
+        int cell = this.cellOf(x, y);
+        boolean wasPassable = this.isPassable(cell);
+
+        this.blocked[cell]++;
+
+        if(wasPassable != this.isPassable(cell)) {
+            this.dirty = true;
+        }
+    }
+
+    /**
+     * Record that a pixel is no longer blocked
+     *
+     * @param x X coordinate
+     * @param y Y coordinate
+     */
+
+    public void unblock(double x, double y) {
+        int cell = this.cellOf(x, y);
+        boolean wasPassable = this.isPassable(cell);
+
+        this.blocked[cell] = Math.max(0, this.blocked[cell] - 1);
+
+        if(wasPassable != this.isPassable(cell)) {
+            this.dirty = true;
+        }
+    }
+
+    /**
+     * Record that food has grown at a position, or been added
+     *
+     * @param x X coordinate
+     * @param y Y coordinate
+     */
+
+    public void foodGrown(double x, double y) {
+        int cell = this.cellOf(x, y);
+
+        this.food[cell]++;
+
+        // A new patch can only make cells closer to food, so spread out from it while the field is otherwise
+        // up to date
+        if(this.food[cell] == 1 && this.isSource(cell) && !this.dirty) {
+            this.distance[cell] = 0;
+            this.queue[0] = cell;
+            this.spread(1);
+        }
+    }
+
+    /**
+     * Record that food has been eaten at a position, or taken away
+     *
+     * @param x X coordinate
+     * @param y Y coordinate
+     */
+
+    public void foodEaten(double x, double y) {
+        int cell = this.cellOf(x, y);
+
+        this.food[cell] = Math.max(0, this.food[cell] - 1);
+
+        if(this.food[cell] == 0 && this.patch[cell]) {
+            this.dirty = true;
+        }
+    }
+
+    /**
+     * Check whether a patch has run out of food, or anything else has changed that the field hasn't caught
+     * up with
+     *
+     * @return boolean
+     */
+
+    public boolean isDirty() {
+        return dirty;
+    }
+
+    /**
+     * Work out the distance from every cell to the nearest patch with food again, if anything has changed
+     */
+
+    public void rebuild() {
+        if(!this.dirty) {
+            return;
+        }
+
+        Arrays.fill(this.distance, UNREACHABLE);
+
+        int queued = 0;
+
+        for(int cell = 0; cell < this.distance.length; cell++) {
+            if(this.isSource(cell)) {
+                this.distance[cell] = 0;
+                this.queue[queued++] = cell;
+            }
+        }
+
+        this.spread(queued);
+        this.dirty = false;
+    }
+
+    /**
+     * Breadth first search out from the cells at the start of the queue, shortening the distance of any
+     * neighbour that's further away than the cell it's reached from plus one. Each cell is only queued
+     * when its distance gets shorter, so it's never in the queue twice at once.
+     *
+     * @param queued int number of cells already in the queue
+     */
+
+    private void spread(int queued) {
+        // The queue is used as a ring, as a cell can be queued again after it's left
+        int head = 0;
+        int size = queued;
+
+        while(size > 0) {
+            int cell = this.queue[head];
+            head = (head + 1) % this.queue.length;
+            size--;
+
+            int column = cell % this.columns;
+            int row = cell / this.columns;
+            int next = this.distance[cell] + 1;
+
+            if(column > 0) {
+                size = this.reach(cell - 1, next, head, size);
+            }
+
+            if(column < this.columns - 1) {
+                size = this.reach(cell + 1, next, head, size);
+            }
+
+            if(row > 0) {
+                size = this.reach(cell - this.columns, next, head, size);
+            }
+
+            if(row < this.rows - 1) {
+                size = this.reach(cell + this.columns, next, head, size);
+            }
+        }
+    }
+
+    private int reach(int cell, int distance, int head, int size) {
+        if(distance >= this.distance[cell] || !this.isPassable(cell)) {
+            return size;
+        }
+
+        this.distance[cell] = distance;
+        this.queue[(head + size) % this.queue.length] = cell;
+
+        return size + 1;
+    }
+
+    /**
+     * Get the distance from a cell to the nearest patch with food
+     *
+     * @param column int column
+     * @param row int row
+     * @return int number of cells, or UNREACHABLE
+     */
+
+    public int getDistance(int column, int row) {
+        return this.distance[row * this.columns + column];
+    }
+
+    /**
+     * Find which cell around a position is the closest to food, and get the middle of it. Cells are only
+     * stepped into diagonally if both of the cells either side of the diagonal can be walked through, so
+     * beings don't cut corners around obstacles.
+     *
+     * @param x X coordinate
+     * @param y Y coordinate
+     * @param towards double[2] set to the X and Y coordinates of the middle of the cell to head for
+     * @return boolean false if the position is already in a patch with food, or can't reach one
+     */
+
+    public boolean findStep(double x, double y, double[] towards) {
+        int column = this.columnOf(x);
+        int row = this.rowOf(y);
+
+        int best = this.distance[row * this.columns + column];
+
+        if(best == 0 || best == UNREACHABLE) {
+            return false;
+        }
+
+        int bestColumn = column;
+        int bestRow = row;
+
+        for(int r = Math.max(0, row - 1); r <= Math.min(this.rows - 1, row + 1); r++) {
+            for(int c = Math.max(0, column - 1); c <= Math.min(this.columns - 1, column + 1); c++) {
+                int here = this.distance[r * this.columns + c];
+
+                boolean diagonal = r != row && c != column;
+
+                if(here < best && (!diagonal || (this.isPassable(row * this.columns + c) && this.isPassable(r * this.columns + column)))) {
+                    best = here;
+                    bestColumn = c;
+                    bestRow = r;
+                }
+            }
+        }
+
+        towards[0] = (bestColumn + 0.5) * this.cellSize;
+        towards[1] = (bestRow + 0.5) * this.cellSize;
+
+        return true;
+    }
+
+    /**
+     * Get the width and height of each cell
+     * @return double cell size
+     */
+
+    public double getCellSize() {
+        return cellSize;
+    }
+
+    /**
+     * Get the number of columns of cells
+     * @return int columns
+     */
+
+    public int getColumns() {
+        return columns;
+    }
+
+    /**
+     * Get the number of rows of cells
+     * @return int rows
+     */
+
+    public int getRows() {
+        return rows;
+    }
+}
@@ -0,0 +1,137 @@
+package uk.ac.reading.vv008146.project.spatial;
+
+import uk.ac.reading.vv008146.project.entities.Entity;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+
+/**
+ * An immutable 2D k-d tree of obstacles. Obstacles never move, so the tree is built once when the world
+ * is generated and "what's the closest obstacle?" becomes a logarithmic lookup rather than a scan of
+ * every entity in the world.
+ *
+ * The tree is stored implicitly: the median of each range is its root, with the left and right halves
+ * of the range forming the subtrees. Even depths split on X, odd depths split on Y.
+ */
+
+public class ObstacleIndex {
+
+    private static final Comparator<Entity> BY_X = Comparator.comparingDouble(e -> e.getPosition().getX());
+    private static final Comparator<Entity> BY_Y = Comparator.comparingDouble(e -> e.getPosition().getY());
+
+    private final Entity[] obstacles;
+
+    // Positions are copied out of the obstacles so searches don't have to chase references
+    private final double[] xs;
+    private final double[] ys;
+
+    /**
+     * Build a tree from the given obstacles. The obstacles must not move once the tree is built.
+     * @param obstacles Obstacles to index
+     */
+
+    public ObstacleIndex(Collection<? extends Entity> obstacles) {
+        this.obstacles = obstacles.toArray(new Entity[0]);
+        this.xs = new double[this.obstacles.length];
+        this.ys = new double[this.obstacles.length];
+
+        this.build(0, this.obstacles.length, 0);
+
+        for(int i = 0; i < this.obstacles.length; i++) {
+            this.xs[i] = this.obstacles[i].getPosition().getX();
+            this.ys[i] = this.obstacles[i].getPosition().getY();
+        }
+    }
+
+    private void build(int from, int to, int depth) {
+        if(to - from <= 1) {
+            return;
+        }
+
+        Arrays.sort(this.obstacles, from, to, depth % 2 == 0 ? BY_X : BY_Y);
+
+        int median = (from + to) >>> 1;
+        this.build(from, median, depth + 1);
+        this.build(median + 1, to, depth + 1);
+    }
+
+    /**
+     * Find the closest obstacle that is strictly closer than the given range.
+     *
+     * @param x X coordinate to search from
+     * @param y Y coordinate to search from
+     * @param range Distance to search
+     * @return Entity closest obstacle, or null if there isn't one in range
+     */
+
+    public Entity findNearest(double x, double y, double range) {
+        Search search = new Search(x, y, range * range);
+        this.search(search, 0, this.obstacles.length, 0);
+
+        return search.closest < 0 ? null : this.obstacles[search.closest];
+    }
+
+    private void search(Search search, int from, int to, int depth) {
+        if(from >= to) {
+            return;
+        }
+
+        int median = (from + to) >>> 1;
+
+        double dx = xs[median] - search.x;
+        double dy = ys[median] - search.y;
+        double distanceSquared = dx * dx + dy * dy;
+
+        if(distanceSquared < search.closestDistanceSquared) {
+            search.closest = median;
+            search.closestDistanceSquared = distanceSquared;
+        }
+
+        // Distance from the query to the splitting line
+        double split = depth % 2 == 0 ? search.x - xs[median] : search.y - ys[median];
+
+        // Search the side of the split the query falls on first, and only cross the split if something
+        // on the far side could still be closer than the best match so far
+        if(split < 0) {
+            this.search(search, from, median, depth + 1);
+
+            if(split * split < search.closestDistanceSquared) {
+                this.search(search, median + 1, to, depth + 1);
+            }
+        } else {
+            this.search(search, median + 1, to, depth + 1);
+
+            if(split * split < search.closestDistanceSquared) {
+                this.search(search, from, median, depth + 1);
+            }
+        }
+    }
+
+    /**
+     * Get the number of obstacles in the tree
+     * @return int number of obstacles
+     */
+
+    public int size() {
+        return obstacles.length;
+    }
+
+    /**
+     * State of a single nearest-neighbour search
+     */
+
+    private static class Search {
+        final double x;
+        final double y;
+
+        int closest = -1;
+        double closestDistanceSquared;
+
+        Search(double x, double y, double closestDistanceSquared) {
+            this.x = x;
+            this.y = y;
+            this.closestDistanceSquared = closestDistanceSquared;
+        }
+    }
+}
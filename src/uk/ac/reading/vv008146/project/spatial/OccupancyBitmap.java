@@ -0,0 +1,83 @@
+package uk.ac.reading.vv008146.project.spatial;
+
+/**
+ * A world-sized bitmap with one bit per pixel, used to mark which positions in the world are blocked.
+ * Checking whether a position is blocked is a single array read.
+ *
+ * Positions are rounded down to the pixel they fall in. Positions outside of the world are never blocked.
+ */
+
+public class OccupancyBitmap {
+
+    private final int width;
+    private final int height;
+
+    private final long[] bits;
+
+    /**
+     * Create an empty bitmap covering a world of the given size
+     *
+     * @param width Width of the world
+     * @param height Height of the world
+     */
+
+    public OccupancyBitmap(int width, int height) {
+        this.width = Math.max(0, width);
+        this.height = Math.max(0, height);
+        this.bits = new long[(int) (((long) this.width * this.height + 63) >>> 6)];
+    }
+
+    /**
+     * Check whether the pixel containing a position is marked
+     *
+     * @param x X coordinate
+     * @param y Y coordinate
+     * @return Boolean marked?
+     */
+
+    public boolean isSet(double x, double y) {
+        long index = this.indexOf(x, y);
+
+        return index >= 0 && (bits[(int) (index >>> 6)] & (1L << index)) != 0;
+    }
+
+    /**
+     * Mark the pixel containing a position
+     *
+     * @param x X coordinate
+     * @param y Y coordinate
+     */
+
+    public void set(double x, double y) {
+        long index = this.indexOf(x, y);
+
+        if(index >= 0) {
+            bits[(int) (index >>> 6)] |= 1L << index;
+        }
+    }
+
+    /**
+     * Unmark the pixel containing a position
+     *
+     * @param x X coordinate
+     * @param y Y coordinate
+     */
+
+    public void clear(double x, double y) {
+        long index = this.indexOf(x, y);
+
+        if(index >= 0) {
+            bits[(int) (index >>> 6)] &= ~(1L << index);
+        }
+    }
+
+    private long indexOf(double x, double y) {
+        // Comparing before flooring also rejects NaN
+        if(!(x >= 0 && x < width && y >= 0 && y < height)) {
+            return -1;
+        }
+
+        // Worked out as a long, as there can be more pixels than an int can count
+        return (long) (int) y * width + (int) x;
+    }
+}
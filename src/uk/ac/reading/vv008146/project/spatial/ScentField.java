@@ -0,0 +1,255 @@
+package uk.ac.reading.vv008146.project.spatial;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * A coarse grid of scent covering the world. Food and prey give off scent into the cell they're in, and
+ * each tick the scent spreads into neighbouring cells and fades. Beings find food by moving towards the
+ * strongest scent around them, which only means reading a few cells, however much food there is.
+ *
+ * There's a separate channel of scent for each kind of thing worth smelling, e.g. food for herbivores
+ * and prey for carnivores.
+ *
+ * Things that move about, like prey, emit their scent again every tick. Things that stay put, like food,
+ * are added as sources once instead, and give off scent on every tick until they're taken away again, so
+ * they cost nothing per tick however many of them there are.
+ *
+ * Spreading is done a strip of rows at a time, with strips shared between threads. Every cell is worked
+ * out from the scent as it was before the tick, so the result is the same however many threads are used.
+ */
+
+public class ScentField {
+
+    // Scent given off by food
+    public static final int FOOD = 0;
+
+    // Scent given off by beings that carnivores can eat
+    public static final int PREY = 1;
+
+    private static final int CHANNELS = 2;
+
+    // How much of the difference from its neighbours' average a cell makes up each tick
+    private static final float SPREAD = 0.5f;
+
+    // How much scent is left after a tick
+    private static final float FADE = 0.95f;
+
+    // Rows spread by a single task, larger strips aren't worth splitting between threads
+    private static final int ROWS_PER_TASK = 32;
+
+    private final double cellSize;
+    private final int columns;
+    private final int rows;
+
+    // Scent in each cell before and after the tick being worked out, for each channel
+    private float[][] scent;
+    private float[][] nextScent;
+
+    // Scent given off into each cell this tick
+    private final float[][] emitted;
+
+    // Scent given off into each cell on every tick by sources that stay put
+    private final float[][] sources;
+
+    private final ForkJoinPool pool;
+
+    /**
+     * Create a field with no scent in it
+     *
+     * @param width Width of the world
+     * @param height Height of the world
+     * @param cellSize Width and height of each cell
+     */
+
+    public ScentField(double width, double height, double cellSize) {
+        this.cellSize = cellSize;
+        this.columns = Math.max(1, (int) Math.ceil(width / cellSize));
+        this.rows = Math.max(1, (int) Math.ceil(height / cellSize));
+
+        this.scent = new float[CHANNELS][this.columns * this.rows];
+        this.nextScent = new float[CHANNELS][this.columns * this.rows];
+        this.emitted = new float[CHANNELS][this.columns * this.rows];
+        this.sources = new float[CHANNELS][this.columns * this.rows];
+
+        this.pool = ForkJoinPool.commonPool();
+    }
+
+    /**
+     * Get the column a horizontal position falls into, clamped to the grid
+     * @param x X coordinate
+     * @return int column
+     */
+
+    public int columnOf(double x) {
+        return Math.max(0, Math.min(this.columns - 1, (int) Math.floor(x / this.cellSize)));
+    }
+
+    /**
+     * Get the row a vertical position falls into, clamped to the grid
+     * @param y Y coordinate
+     * @return int row
+     */
+
+    public int rowOf(double y) {
+        return Math.max(0, Math.min(this.rows - 1, (int) Math.floor(y / this.cellSize)));
+    }
+
+    /**
+     * Give off scent at a position. It's added to the field on the next call to spread.
+     *
+     * @param channel int channel, e.g. FOOD
+     * @param x X coordinate
+     * @param y Y coordinate
+     * @param amount float how much scent to give off
+     */
+
+    public void emit(int channel, double x, double y, float amount) {
+        this.emitted[channel][this.rowOf(y) * this.columns + this.columnOf(x)] += amount;
+    }
+
+    /**
+     * Add a source which gives off scent at a position on every tick from now on, or take one away by
+     * giving a negative amount
+     *
+     * @param channel int channel, e.g. FOOD
+     * @param x X coordinate
+     * @param y Y coordinate
+     * @param amount float how much scent the source gives off each tick
+     */
+
+    public void addSource(int channel, double x, double y, float amount) {
+        this.sources[channel][this.rowOf(y) * this.columns + this.columnOf(x)] += amount;
+    }
+
+    /**
+     * Take away every source in a channel, e.g. before adding them all again
+     * @param channel int channel, e.g. FOOD
+     */
+
+    public void clearSources(int channel) {
+        Arrays.fill(this.sources[channel], 0);
+    }
+
+    /**
+     * Spread and fade the scent in every channel, then add the scent given off by sources and since the
+     * last call
+     */
+
+    public void spread() {
+        this.pool.invoke(new SpreadTask(0, this.rows));
+
+        float[][] swap = this.scent;
+        this.scent = this.nextScent;
+        this.nextScent = swap;
+
+        for(float[] channel : this.emitted) {
+            Arrays.fill(channel, 0);
+        }
+    }
+
+    /**
+     * Work out the scent after a tick for a strip of rows
+     *
+     * @param fromRow int first row
+     * @param toRow int row after the last
+     */
+
+    private void spreadRows(int fromRow, int toRow) {
+        for(int channel = 0; channel < CHANNELS; channel++) {
+            float[] before = this.scent[channel];
+            float[] after = this.nextScent[channel];
+            float[] added = this.emitted[channel];
+            float[] sourced = this.sources[channel];
+
+            for(int row = fromRow; row < toRow; row++) {
+                for(int column = 0; column < this.columns; column++) {
+                    int cell = row * this.columns + column;
+                    float here = before[cell];
+
+                    // Scent doesn't spread out of the world, so edge cells use their own scent for
+                    // neighbours that don't exist
+                    float left = column > 0 ? before[cell - 1] : here;
+                    float right = column < this.columns - 1 ? before[cell + 1] : here;
+                    float up = row > 0 ? before[cell - this.columns] : here;
+                    float down = row < this.rows - 1 ? before[cell + this.columns] : here;
+
+                    float average = (left + right + up + down) * 0.25f;
+
+                    after[cell] = FADE * (here + SPREAD * (average - here)) + added[cell] + sourced[cell];
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the scent in a cell
+     *
+     * @param channel int channel, e.g. FOOD
+     * @param column int column
+     * @param row int row
+     * @return float scent
+     */
+
+    public float get(int channel, int column, int row) {
+        return this.scent[channel][row * this.columns + column];
+    }
+
+    /**
+     * Get the width and height of each cell
+     * @return double cell size
+     */
+
+    public double getCellSize() {
+        return cellSize;
+    }
+
+    /**
+     * Get the number of columns of cells
+     * @return int columns
+     */
+
+    public int getColumns() {
+        return columns;
+    }
+
+    /**
+     * Get the number of rows of cells
+     * @return int rows
+     */
+
+    public int getRows() {
+        return rows;
+    }
+
+    /**
+     * Spreads scent through a strip of rows, splitting the strip in half while it's big enough to be
+     * worth sharing between threads
+     */
+
+    private class SpreadTask extends RecursiveAction {
+
+        // RecursiveAction is Serializable, but tasks are never saved
+        private static final long serialVersionUID = 1L;
+
+        private final int fromRow;
+        private final int toRow;
+
+        SpreadTask(int fromRow, int toRow) {
+            this.fromRow = fromRow;
+            this.toRow = toRow;
+        }
+
+        @Override
+        protected void compute() {
+            if(toRow - fromRow > ROWS_PER_TASK) {
+                int middle = (fromRow + toRow) >>> 1;
+                invokeAll(new SpreadTask(fromRow, middle), new SpreadTask(middle, toRow));
+                return;
+            }
+
+            spreadRows(fromRow, toRow);
+        }
+    }
+}
@@ -0,0 +1,305 @@
+package uk.ac.reading.vv008146.project.spatial;
+
+import uk.ac.reading.vv008146.project.entities.Entity;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * A uniform grid of buckets that entities are sorted into by position. Queries only need to visit
+ * the handful of cells that overlap the area being searched, rather than every entity in the world.
+ *
+ * Entities outside of the world's bounds are clamped into the nearest edge cell, so they can still
+ * be found by queries close to the edge.
+ */
+
+public class SpatialHashGrid {
+
+    private final double cellSize;
+
+    private final int columns;
+    private final int rows;
+
+    private final List<List<Entity>> cells;
+
+    private int size;
+
+    /**
+     * Create an empty grid covering a world of the given size.
+     *
+     * @param width Width of the world
+     * @param height Height of the world
+     * @param cellSize Width and height of each cell
+     */
+
+    public SpatialHashGrid(double width, double height, double cellSize) {
+        this.cellSize = cellSize;
+        this.columns = Math.max(1, (int) Math.ceil(width / cellSize));
+        this.rows = Math.max(1, (int) Math.ceil(height / cellSize));
+
+        // Cells are created lazily, most of a sparse world will never be touched
+        this.cells = new ArrayList<>(this.columns * this.rows);
+
+        for(int i = 0; i < this.columns * this.rows; i++) {
+            this.cells.add(null);
+        }
+    }
+
+    /**
+     * Get the column a horizontal position falls into, clamped to the grid
+     * @param x X coordinate
+     * @return int column
+     */
+
+    public int columnOf(double x) {
+        return clamp((int) Math.floor(x / cellSize), columns);
+    }
+
+    /**
+     * Get the row a vertical position falls into, clamped to the grid
+     * @param y Y coordinate
+     * @return int row
+     */
+
+    public int rowOf(double y) {
+        return clamp((int) Math.floor(y / cellSize), rows);
+    }
+
+    private static int clamp(int value, int count) {
+        if(value < 0) {
+            return 0;
+        }
+
+        return value >= count ? count - 1 : value;
+    }
+
+    /**
+     * Add an entity to the cell matching its current position
+     * @param e Entity to add
+     */
+
+    public void insert(Entity e) {
+        if(e.getSpatialCell() >= 0) {
+            // Already indexed
+            return;
+        }
+
+        int cell = rowOf(e.getPosition().getY()) * columns + columnOf(e.getPosition().getX());
+        this.bucket(cell).add(e);
+        e.setSpatialCell(cell);
+        size++;
+    }
+
+    /**
+     * Remove an entity from the grid. Does nothing if the entity isn't indexed.
+     * @param e Entity to remove
+     */
+
+    public void remove(Entity e) {
+        int cell = e.getSpatialCell();
+
+        if(cell < 0) {
+            return;
+        }
+
+        this.cells.get(cell).remove(e);
+        e.setSpatialCell(-1);
+        size--;
+    }
+
+    /**
+     * Move an indexed entity into the cell matching its current position. Should be called whenever
+     * an entity's position changes. Entities that aren't indexed are ignored.
+     *
+     * @param e Entity that has moved
+     */
+
+    public void update(Entity e) {
+        int oldCell = e.getSpatialCell();
+
+        if(oldCell < 0) {
+            return;
+        }
+
+        int newCell = rowOf(e.getPosition().getY()) * columns + columnOf(e.getPosition().getX());
+
+        if(newCell != oldCell) {
+            this.cells.get(oldCell).remove(e);
+            this.bucket(newCell).add(e);
+            e.setSpatialCell(newCell);
+        }
+    }
+
+    /**
+     * Visit every entity in the cells overlapping the square of the given range around a point. Some
+     * of the visited entities may be slightly outside of the range, so callers should apply their own
+     * distance test.
+     *
+     * @param x X coordinate of the centre
+     * @param y Y coordinate of the centre
+     * @param range Distance from the centre to search
+     * @param action Called once for each entity found
+     */
+
+    public void forEachInRange(double x, double y, double range, Consumer<Entity> action) {
+        this.forEachInArea(x - range, y - range, x + range, y + range, action);
+    }
+
+    /**
+     * Visit every entity in the cells overlapping a rectangle. As with forEachInRange, entities just
+     * outside of the rectangle may also be visited.
+     *
+     * @param minX Left edge of the rectangle
+     * @param minY Top edge of the rectangle
+     * @param maxX Right edge of the rectangle
+     * @param maxY Bottom edge of the rectangle
+     * @param action Called once for each entity found
+     */
+
+    public void forEachInArea(double minX, double minY, double maxX, double maxY, Consumer<Entity> action) {
+        int minColumn = columnOf(minX);
+        int maxColumn = columnOf(maxX);
+        int minRow = rowOf(minY);
+        int maxRow = rowOf(maxY);
+
+        for(int row = minRow; row <= maxRow; row++) {
+            for(int column = minColumn; column <= maxColumn; column++) {
+                List<Entity> bucket = this.cells.get(row * columns + column);
+
+                if(bucket == null) {
+                    continue;
+                }
+
+                for(int i = 0; i < bucket.size(); i++) {
+                    action.accept(bucket.get(i));
+                }
+            }
+        }
+    }
+
+    /**
+     * Find the closest entity to a point that is within range and matches a filter.
+     *
+     * @param x X coordinate of the centre
+     * @param y Y coordinate of the centre
+     * @param range Maximum distance (inclusive) to search
+     * @param filter Only entities matching the filter are considered
+     * @return Entity closest match, or null if nothing is in range
+     */
+
+    public Entity findNearest(double x, double y, double range, Predicate<Entity> filter) {
+        int minColumn = columnOf(x - range);
+        int maxColumn = columnOf(x + range);
+        int minRow = rowOf(y - range);
+        int maxRow = rowOf(y + range);
+
+        Entity closest = null;
+        double shortestDistanceSquared = range * range;
+
+        for(int row = minRow; row <= maxRow; row++) {
+            for(int column = minColumn; column <= maxColumn; column++) {
+                List<Entity> bucket = this.cells.get(row * columns + column);
+
+                if(bucket == null) {
+                    continue;
+                }
+
+                for(int i = 0; i < bucket.size(); i++) {
+                    Entity e = bucket.get(i);
+
+                    double dx = e.getPosition().getX() - x;
+                    double dy = e.getPosition().getY() - y;
+                    double distanceSquared = dx * dx + dy * dy;
+
+                    if(distanceSquared <= shortestDistanceSquared && (closest == null || distanceSquared < shortestDistanceSquared) && filter.test(e)) {
+                        closest = e;
+                        shortestDistanceSquared = distanceSquared;
+                    }
+                }
+            }
+        }
+
+        return closest;
+    }
+
+    /**
+     * Remove every entity from the grid
+     */
+
+    public void clear() {
+        for(List<Entity> bucket : this.cells) {
+            if(bucket != null) {
+                for(Entity e : bucket) {
+                    e.setSpatialCell(-1);
+                }
+
+                bucket.clear();
+            }
+        }
+
+        size = 0;
+    }
+
+    /**
+     * Get the number of entities in the grid
+     * @return int number of indexed entities
+     */
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Get the number of entities in a single cell
+     *
+     * @param column int column, between 0 and getColumns() - 1
+     * @param row int row, between 0 and getRows() - 1
+     * @return int number of entities in the cell
+     */
+
+    public int countInCell(int column, int row) {
+        List<Entity> bucket = this.cells.get(row * columns + column);
+
+        return bucket == null ? 0 : bucket.size();
+    }
+
+    /**
+     * Get the width and height of each cell
+     * @return double cell size
+     */
+
+    public double getCellSize() {
+        return cellSize;
+    }
+
+    /**
+     * Get the number of columns of cells in the grid
+     * @return int columns
+     */
+
+    public int getColumns() {
+        return columns;
+    }
+
+    /**
+     * Get the number of rows of cells in the grid
+     * @return int rows
+     */
+
+    public int getRows() {
+        return rows;
+    }
+
+    private List<Entity> bucket(int cell) {
+        List<Entity> bucket = this.cells.get(cell);
+
+        if(bucket == null) {
+            bucket = new ArrayList<>();
+            this.cells.set(cell, bucket);
+        }
+
+        return bucket;
+    }
+}
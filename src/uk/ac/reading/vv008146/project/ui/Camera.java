@@ -0,0 +1,191 @@
+package uk.ac.reading.vv008146.project.ui;
+
+import javafx.scene.transform.Affine;
+
+/**
+ * The part of the world shown in the GUI. The camera can be panned around the world and zoomed in and
+ * out, and works out which rectangle of the world is currently visible so renderers only need to draw
+ * what can actually be seen.
+ */
+
+public class Camera {
+
+    public static final double MIN_ZOOM = 0.02;
+    public static final double MAX_ZOOM = 8;
+
+    // World position shown in the top left corner of the viewport
+    private double x;
+    private double y;
+
+    // Screen pixels per world pixel
+    private double zoom;
+
+    // Size of the area the world is shown in, in screen pixels
+    private double viewportWidth;
+    private double viewportHeight;
+
+    // World to screen transform, which nodes drawn in world coordinates can share
+    private final Affine transform;
+
+    /**
+     * Create a camera showing the top left of the world at normal size
+     */
+
+    public Camera() {
+        this.transform = new Affine();
+        this.reset();
+    }
+
+    /**
+     * Go back to showing the top left of the world at normal size
+     */
+
+    public void reset() {
+        this.x = 0;
+        this.y = 0;
+        this.zoom = 1;
+        this.updateTransform();
+    }
+
+    /**
+     * Move the camera by a distance on screen, e.g. when the world is dragged with the mouse
+     *
+     * @param screenX Horizontal distance in screen pixels
+     * @param screenY Vertical distance in screen pixels
+     */
+
+    public void pan(double screenX, double screenY) {
+        this.x -= screenX / this.zoom;
+        this.y -= screenY / this.zoom;
+        this.updateTransform();
+    }
+
+    /**
+     * Zoom in or out, keeping the world position under a point on screen in the same place
+     *
+     * @param factor double how much to multiply the zoom by, above 1 zooms in
+     * @param screenX X position on screen to zoom around
+     * @param screenY Y position on screen to zoom around
+     */
+
+    public void zoomAt(double factor, double screenX, double screenY) {
+        double worldX = this.toWorldX(screenX);
+        double worldY = this.toWorldY(screenY);
+
+        this.zoom = Math.max(MIN_ZOOM, Math.min(MAX_ZOOM, this.zoom * factor));
+
+        this.x = worldX - screenX / this.zoom;
+        this.y = worldY - screenY / this.zoom;
+        this.updateTransform();
+    }
+
+    /**
+     * Convert a horizontal position on screen to a position in the world
+     * @param screenX X position on screen
+     * @return double X position in world
+     */
+
+    public double toWorldX(double screenX) {
+        return this.x + screenX / this.zoom;
+    }
+
+    /**
+     * Convert a vertical position on screen to a position in the world
+     * @param screenY Y position on screen
+     * @return double Y position in world
+     */
+
+    public double toWorldY(double screenY) {
+        return this.y + screenY / this.zoom;
+    }
+
+    /**
+     * Get the left edge of the visible part of the world
+     * @return double X position in world
+     */
+
+    public double getMinX() {
+        return x;
+    }
+
+    /**
+     * Get the top edge of the visible part of the world
+     * @return double Y position in world
+     */
+
+    public double getMinY() {
+        return y;
+    }
+
+    /**
+     * Get the right edge of the visible part of the world
+     * @return double X position in world
+     */
+
+    public double getMaxX() {
+        return x + viewportWidth / zoom;
+    }
+
+    /**
+     * Get the bottom edge of the visible part of the world
+     * @return double Y position in world
+     */
+
+    public double getMaxY() {
+        return y + viewportHeight / zoom;
+    }
+
+    /**
+     * Get the current zoom level
+     * @return double screen pixels per world pixel
+     */
+
+    public double getZoom() {
+        return zoom;
+    }
+
+    /**
+     * Get the width of the area the world is shown in
+     * @return double width in screen pixels
+     */
+
+    public double getViewportWidth() {
+        return viewportWidth;
+    }
+
+    /**
+     * Get the height of the area the world is shown in
+     * @return double height in screen pixels
+     */
+
+    public double getViewportHeight() {
+        return viewportHeight;
+    }
+
+    /**
+     * Set the size of the area the world is shown in
+     *
+     * @param viewportWidth double width in screen pixels
+     * @param viewportHeight double height in screen pixels
+     */
+
+    public void setViewportSize(double viewportWidth, double viewportHeight) {
+        this.viewportWidth = viewportWidth;
+        this.viewportHeight = viewportHeight;
+    }
+
+    /**
+     * Get the world to screen transform. The same transform is kept up to date as the camera moves, so
+     * nodes drawn in world coordinates can add it to their transforms once and follow the camera.
+     *
+     * @return Affine transform
+     */
+
+    public Affine getTransform() {
+        return transform;
+    }
+
+    private void updateTransform() {
+        this.transform.setToTransform(zoom, 0, -x * zoom, 0, zoom, -y * zoom);
+    }
+}
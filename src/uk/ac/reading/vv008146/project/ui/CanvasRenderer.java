@@ -0,0 +1,526 @@
+package uk.ac.reading.vv008146.project.ui;
+
+import javafx.scene.Group;
+import javafx.scene.Node;
+import javafx.scene.canvas.Canvas;
+import javafx.scene.canvas.GraphicsContext;
+import javafx.scene.image.Image;
+import javafx.scene.paint.Color;
+import uk.ac.reading.vv008146.project.simulation.RenderSnapshot;
+import uk.ac.reading.vv008146.project.simulation.SceneryLayer;
+import uk.ac.reading.vv008146.project.utilities.SpriteAtlas;
+import uk.ac.reading.vv008146.project.utilities.SpriteLoader;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Draws every entity onto canvases each frame, rather than giving each entity its own node in the scene
+ * graph. The scene graph only ever holds two nodes however many entities there are, so there's no
+ * per-entity layout or CSS work.
+ *
+ * The canvases cover the viewport rather than the whole world, and only entities in the cells of the
+ * snapshot the camera can see are drawn, so entities off screen cost nothing.
+ *
+ * Living beings are drawn onto their own canvas, which is cleared and redrawn every frame. Food, obstacles
+ * and grave markers are drawn onto a canvas underneath, which is only redrawn where the snapshot says
+ * something has been eaten or grown back, unless the camera has moved.
+ *
+ * Sprites are drawn from a SpriteAtlas where possible, so every entity is drawn from the same texture.
+ * Sprites missing from the atlas are drawn from SpriteLoader's cached images.
+ *
+ * As the camera zooms out, the renderer switches to drawing less detail (see DetailLevel), based on how
+ * big sprites would be on screen and roughly how many entities are in view.
+ */
+
+public class CanvasRenderer implements WorldRenderer {
+
+    // Same size as the sprites drawn by EntityView
+    private static final double SPRITE_WIDTH = 25;
+
+    // Sprites smaller than this on screen can't be made out, so points are drawn instead
+    private static final double MIN_SPRITE_PIXELS = 8;
+
+    // Roughly how many sprites and points can be drawn in a frame
+    private static final int SPRITE_BUDGET = 50000;
+    private static final int POINT_BUDGET = 200000;
+
+    // Points are this size on screen however far the camera is zoomed out
+    private static final double POINT_PIXELS = 3;
+
+    // Below this zoom, points run together, so the heatmap is drawn instead
+    private static final double MIN_POINT_ZOOM = 0.15;
+
+    // Heatmap squares are made from enough grid cells to be at least this size on screen
+    private static final double MIN_HEATMAP_PIXELS = 6;
+
+    // Past this many changes, it's quicker to redraw all of the scenery than to redraw around each one
+    private static final int MAX_SCENERY_PATCHES = 256;
+
+    private static final Color FOOD_COLOUR = Color.FORESTGREEN;
+    private static final Color OBSTACLE_COLOUR = Color.SADDLEBROWN;
+    private static final Color GRAVE_COLOUR = Color.DIMGRAY;
+    private static final Color BEING_HEAT_COLOUR = Color.CRIMSON;
+
+    private final Group canvases;
+    private final Canvas sceneryCanvas;
+    private final Canvas beingCanvas;
+    private final Camera camera;
+    private final SpriteAtlas atlas;
+    private final Map<String, Sprite> sprites;
+
+    // Colour of each species when drawn as points
+    private final Map<String, Color> speciesColours;
+
+    private DetailLevel detailLevel;
+
+    // Entity counts for each square of the heatmap, reused from frame to frame
+    private int[] heat;
+
+    // What the scenery canvas was last drawn from, so it's only redrawn when something has changed
+    private SceneryLayer drawnScenery;
+    private long drawnSequence;
+    private DetailLevel drawnDetailLevel;
+    private double drawnX;
+    private double drawnY;
+    private double drawnZoom;
+
+    // Set for the duration of a frame
+    private GraphicsContext graphics;
+    private RenderSnapshot snapshot;
+    private double alpha;
+
+    /**
+     * Create a renderer with nothing to draw
+     *
+     * @param atlas SpriteAtlas to draw sprites from, or null to draw every sprite from its own image
+     * @param camera Camera deciding which part of the world to draw
+     */
+
+    public CanvasRenderer(SpriteAtlas atlas, Camera camera) {
+        this.sceneryCanvas = new Canvas();
+        this.beingCanvas = new Canvas();
+        this.canvases = new Group(this.sceneryCanvas, this.beingCanvas);
+        this.camera = camera;
+        this.atlas = atlas;
+        this.sprites = new HashMap<>();
+        this.speciesColours = new HashMap<>();
+        this.detailLevel = DetailLevel.SPRITES;
+        this.heat = new int[0];
+    }
+
+    @Override
+    public Node getNode() {
+        return canvases;
+    }
+
+    @Override
+    public void clear() {
+        clearCanvas(this.sceneryCanvas);
+        clearCanvas(this.beingCanvas);
+        this.drawnScenery = null;
+    }
+
+    private static GraphicsContext clearCanvas(Canvas canvas) {
+        GraphicsContext graphics = canvas.getGraphicsContext2D();
+        graphics.setTransform(1, 0, 0, 1, 0, 0);
+        graphics.clearRect(0, 0, canvas.getWidth(), canvas.getHeight());
+
+        return graphics;
+    }
+
+    @Override
+    public void render(RenderSnapshot snapshot, double alpha) {
+        boolean resized = false;
+
+        for(Canvas canvas : new Canvas[] {this.sceneryCanvas, this.beingCanvas}) {
+            if(canvas.getWidth() != camera.getViewportWidth() || canvas.getHeight() != camera.getViewportHeight()) {
+                canvas.setWidth(camera.getViewportWidth());
+                canvas.setHeight(camera.getViewportHeight());
+                resized = true;
+            }
+        }
+
+        this.snapshot = snapshot;
+        this.alpha = alpha;
+        this.detailLevel = this.chooseDetailLevel();
+
+        if(snapshot.getScenery() != null) {
+            this.renderScenery(resized);
+        }
+
+        this.graphics = clearCanvas(this.beingCanvas);
+        this.toWorldCoordinates();
+
+        if(this.detailLevel == DetailLevel.HEATMAP) {
+            this.drawHeatmap(BEING_HEAT_COLOUR, 0.2, 0.8, false);
+            return;
+        }
+
+        // Sprites are drawn down and to the right of an entity's position, so look a sprite's width further
+        // up and left for entities that are only partly visible
+        int minColumn = snapshot.columnOf(camera.getMinX() - SPRITE_WIDTH);
+        int maxColumn = snapshot.columnOf(camera.getMaxX());
+        int minRow = snapshot.rowOf(camera.getMinY() - SPRITE_WIDTH);
+        int maxRow = snapshot.rowOf(camera.getMaxY());
+
+        for(int row = minRow; row <= maxRow; row++) {
+            for(int column = minColumn; column <= maxColumn; column++) {
+                for(int i = snapshot.getCellStart(column, row); i < snapshot.getCellEnd(column, row); i++) {
+                    this.drawBeing(i);
+                }
+            }
+        }
+    }
+
+    private void toWorldCoordinates() {
+        double zoom = camera.getZoom();
+        this.graphics.setTransform(zoom, 0, 0, zoom, -camera.getMinX() * zoom, -camera.getMinY() * zoom);
+    }
+
+    /**
+     * Bring the scenery canvas up to date with the snapshot. It's redrawn completely if the camera has
+     * moved, the scenery layer has been rebuilt, a snapshot has been missed or a lot has changed.
+     * Otherwise, only the area around each changed entity is redrawn.
+     *
+     * @param resized boolean whether the canvases have just changed size
+     */
+
+    private void renderScenery(boolean resized) {
+        SceneryLayer layer = snapshot.getScenery();
+
+        boolean moved = resized || camera.getMinX() != this.drawnX || camera.getMinY() != this.drawnY || camera.getZoom() != this.drawnZoom;
+        boolean redraw = moved || layer != this.drawnScenery || this.detailLevel != this.drawnDetailLevel || snapshot.getSequence() > this.drawnSequence + 1;
+
+        // Already up to date
+        if(!redraw && snapshot.getSequence() == this.drawnSequence) {
+            return;
+        }
+
+        if(!redraw && snapshot.getChangedSceneryCount() > 0) {
+            // The heatmap is cheap enough to redraw whenever anything changes
+            redraw = this.detailLevel == DetailLevel.HEATMAP || snapshot.getChangedSceneryCount() > MAX_SCENERY_PATCHES;
+        }
+
+        this.drawnScenery = layer;
+        this.drawnSequence = snapshot.getSequence();
+        this.drawnDetailLevel = this.detailLevel;
+        this.drawnX = camera.getMinX();
+        this.drawnY = camera.getMinY();
+        this.drawnZoom = camera.getZoom();
+
+        if(redraw) {
+            this.graphics = clearCanvas(this.sceneryCanvas);
+            this.toWorldCoordinates();
+
+            if(this.detailLevel == DetailLevel.HEATMAP) {
+                this.drawHeatmap(FOOD_COLOUR, 0, 0.6, true);
+            } else {
+                this.drawSceneryIn(camera.getMinX(), camera.getMinY(), camera.getMaxX(), camera.getMaxY());
+            }
+
+            return;
+        }
+
+        this.graphics = this.sceneryCanvas.getGraphicsContext2D();
+        this.toWorldCoordinates();
+
+        for(int i = 0; i < snapshot.getChangedSceneryCount(); i++) {
+            this.patchScenery(layer, snapshot.getChangedScenery(i));
+        }
+    }
+
+    /**
+     * Redraw the scenery where one entity is drawn, e.g. after it's been eaten. Anything else drawn in the
+     * same place is redrawn too, clipped to the entity's area so nothing else on the canvas is touched.
+     *
+     * @param layer SceneryLayer being drawn
+     * @param index int index of the changed entity in the layer
+     */
+
+    private void patchScenery(SceneryLayer layer, int index) {
+        double x = layer.getX(index);
+        double y = layer.getY(index);
+
+        if(x > camera.getMaxX() || y > camera.getMaxY() || x + SPRITE_WIDTH < camera.getMinX() || y + SPRITE_WIDTH < camera.getMinY()) {
+            return;
+        }
+
+        // Take in the whole sprite, plus a pixel either side for anti-aliasing
+        double margin = 1 / camera.getZoom();
+        double width = this.detailLevel == DetailLevel.POINTS ? POINT_PIXELS / camera.getZoom() : SPRITE_WIDTH;
+        double height = this.detailLevel == DetailLevel.POINTS ? width : this.spriteFor(layer.getSpriteName(index)).drawHeight;
+
+        double minX = x - margin;
+        double minY = y - margin;
+        double maxX = x + width + margin;
+        double maxY = y + height + margin;
+
+        graphics.save();
+        graphics.beginPath();
+        graphics.rect(minX, minY, maxX - minX, maxY - minY);
+        graphics.clip();
+        graphics.clearRect(minX, minY, maxX - minX, maxY - minY);
+
+        this.drawSceneryIn(minX, minY, maxX, maxY);
+
+        graphics.restore();
+    }
+
+    /**
+     * Draw every visible food item, obstacle and grave marker that could be drawn in an area
+     *
+     * @param minX double left edge of the area
+     * @param minY double top edge of the area
+     * @param maxX double right edge of the area
+     * @param maxY double bottom edge of the area
+     */
+
+    private void drawSceneryIn(double minX, double minY, double maxX, double maxY) {
+        SceneryLayer layer = snapshot.getScenery();
+
+        // Sprites are drawn down and to the right of an entity's position, so look a sprite's width further
+        // up and left for entities that are only partly in the area
+        int minColumn = snapshot.columnOf(minX - SPRITE_WIDTH);
+        int maxColumn = snapshot.columnOf(maxX);
+        int minRow = snapshot.rowOf(minY - SPRITE_WIDTH);
+        int maxRow = snapshot.rowOf(maxY);
+
+        for(int row = minRow; row <= maxRow; row++) {
+            for(int column = minColumn; column <= maxColumn; column++) {
+                int cell = row * layer.getColumns() + column;
+
+                for(int i = layer.getCellStart(cell); i < layer.getCellEnd(cell); i++) {
+                    if(!snapshot.isSceneryVisible(i)) {
+                        continue;
+                    }
+
+                    if(this.detailLevel == DetailLevel.POINTS) {
+                        this.drawPoint(layer.getX(i), layer.getY(i), this.sceneryColour(layer.getKind(i)));
+                    } else {
+                        this.drawSprite(layer.getSpriteName(i), layer.getX(i), layer.getY(i));
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Draw a single living being from the snapshot, part of the way between where it was before the
+     * snapshot's tick and where it was after it.
+     *
+     * @param index int index of the being in the snapshot
+     */
+
+    private void drawBeing(int index) {
+        double x = snapshot.getPreviousX(index) + (snapshot.getX(index) - snapshot.getPreviousX(index)) * alpha;
+        double y = snapshot.getPreviousY(index) + (snapshot.getY(index) - snapshot.getPreviousY(index)) * alpha;
+
+        if(this.detailLevel == DetailLevel.POINTS) {
+            this.drawPoint(x, y, this.speciesColour(index));
+        } else {
+            this.drawSprite(snapshot.getSpriteName(index), x, y);
+        }
+    }
+
+    private void drawPoint(double x, double y, Color colour) {
+        double size = POINT_PIXELS / camera.getZoom();
+
+        graphics.setFill(colour);
+        graphics.fillRect(x, y, size, size);
+    }
+
+    private void drawSprite(String spriteName, double x, double y) {
+        Sprite sprite = this.spriteFor(spriteName);
+
+        graphics.drawImage(sprite.image, sprite.x, sprite.y, sprite.width, sprite.height, x, y, SPRITE_WIDTH, sprite.drawHeight);
+    }
+
+    /**
+     * Decide how much detail to draw with. Sprites are drawn as long as they're big enough to make out
+     * and there aren't too many of them in view, then points, then the heatmap. The number of entities in
+     * view is estimated from how much of the world is in view, rather than counted.
+     *
+     * @return DetailLevel
+     */
+
+    private DetailLevel chooseDetailLevel() {
+        double zoom = camera.getZoom();
+
+        int entities = snapshot.size() + (snapshot.getScenery() != null ? snapshot.getScenery().size() : 0);
+
+        double visibleWidth = Math.max(0, Math.min(camera.getMaxX(), snapshot.getWidth()) - Math.max(camera.getMinX(), 0));
+        double visibleHeight = Math.max(0, Math.min(camera.getMaxY(), snapshot.getHeight()) - Math.max(camera.getMinY(), 0));
+        double visibleFraction = (visibleWidth * visibleHeight) / Math.max(1.0, (double) snapshot.getWidth() * snapshot.getHeight());
+        double visibleEntities = entities * Math.min(1, visibleFraction);
+
+        if(SPRITE_WIDTH * zoom >= MIN_SPRITE_PIXELS && visibleEntities <= SPRITE_BUDGET) {
+            return DetailLevel.SPRITES;
+        }
+
+        if(zoom >= MIN_POINT_ZOOM && visibleEntities <= POINT_BUDGET) {
+            return DetailLevel.POINTS;
+        }
+
+        return DetailLevel.HEATMAP;
+    }
+
+    /**
+     * Get the colour a living being is drawn as a point in. Each species is given its own colour, so each
+     * species stands out from the others.
+     *
+     * @param index int index of the being in the snapshot
+     * @return Color
+     */
+
+    private Color speciesColour(int index) {
+        String species = snapshot.getSpecies(index);
+        String key = species != null ? species : snapshot.getSpriteName(index);
+
+        Color colour = this.speciesColours.get(key);
+
+        if(colour == null) {
+            // Spread species around the colour wheel, keeping clear of the greens used for food
+            double hue = (Math.floorMod(key.hashCode(), 240) + 160) % 360;
+            colour = Color.hsb(hue, 0.85, 0.95);
+            this.speciesColours.put(key, colour);
+        }
+
+        return colour;
+    }
+
+    /**
+     * Get the colour food, obstacles and grave markers are drawn as points in
+     * @param kind byte kind of entity, e.g. RenderSnapshot.FOOD
+     * @return Color
+     */
+
+    private Color sceneryColour(byte kind) {
+        if(kind == RenderSnapshot.OBSTACLE) {
+            return OBSTACLE_COLOUR;
+        }
+
+        if(kind == RenderSnapshot.GRAVE_MARKER) {
+            return GRAVE_COLOUR;
+        }
+
+        return FOOD_COLOUR;
+    }
+
+    /**
+     * Shade the visible part of the world by how many food items or living beings are in each square.
+     * The counts come straight from the snapshot's cells, so this costs the same however many entities
+     * there are. Squares are made from several cells when cells would be too small to see.
+     *
+     * @param colour Color to shade with
+     * @param minOpacity double opacity of the emptiest squares
+     * @param opacityRange double how much more opaque the fullest squares are
+     * @param food boolean true to count food, false to count living beings
+     */
+
+    private void drawHeatmap(Color colour, double minOpacity, double opacityRange, boolean food) {
+        double cellSize = snapshot.getCellSize();
+        int cellsPerSquare = Math.max(1, (int) Math.ceil(MIN_HEATMAP_PIXELS / (cellSize * camera.getZoom())));
+
+        int minColumn = snapshot.columnOf(camera.getMinX());
+        int maxColumn = snapshot.columnOf(camera.getMaxX());
+        int minRow = snapshot.rowOf(camera.getMinY());
+        int maxRow = snapshot.rowOf(camera.getMaxY());
+
+        // Line squares up with the grid, so they don't shimmer as the camera moves
+        minColumn -= minColumn % cellsPerSquare;
+        minRow -= minRow % cellsPerSquare;
+
+        int squareColumns = (maxColumn - minColumn) / cellsPerSquare + 1;
+        int squareRows = (maxRow - minRow) / cellsPerSquare + 1;
+
+        if(this.heat.length < squareColumns * squareRows) {
+            this.heat = new int[squareColumns * squareRows];
+        }
+
+        Arrays.fill(this.heat, 0, squareColumns * squareRows, 0);
+
+        int max = 1;
+
+        for(int row = minRow; row <= maxRow; row++) {
+            for(int column = minColumn; column <= maxColumn; column++) {
+                int square = ((row - minRow) / cellsPerSquare) * squareColumns + (column - minColumn) / cellsPerSquare;
+
+                this.heat[square] += food ? snapshot.getFoodCount(column, row) : snapshot.getBeingCount(column, row);
+                max = Math.max(max, this.heat[square]);
+            }
+        }
+
+        double squareSize = cellSize * cellsPerSquare;
+
+        for(int square = 0; square < squareColumns * squareRows; square++) {
+            if(this.heat[square] == 0) {
+                continue;
+            }
+
+            double x = (minColumn + (square % squareColumns) * cellsPerSquare) * cellSize;
+            double y = (minRow + (square / squareColumns) * cellsPerSquare) * cellSize;
+
+            graphics.setFill(colour.deriveColor(0, 1, 1, minOpacity + opacityRange * this.heat[square] / max));
+            graphics.fillRect(x, y, squareSize, squareSize);
+        }
+    }
+
+    /**
+     * Get the level of detail used to draw the last frame
+     * @return DetailLevel
+     */
+
+    public DetailLevel getDetailLevel() {
+        return detailLevel;
+    }
+
+    private Sprite spriteFor(String name) {
+        Sprite sprite = this.sprites.get(name);
+
+        if(sprite == null) {
+            sprite = this.findSprite(name);
+            this.sprites.put(name, sprite);
+        }
+
+        return sprite;
+    }
+
+    private Sprite findSprite(String name) {
+        SpriteAtlas.Region region = this.atlas == null ? null : this.atlas.getRegion(name);
+
+        if(region != null) {
+            return new Sprite(this.atlas.getImage(), region.getX(), region.getY(), region.getWidth(), region.getHeight());
+        }
+
+        Image image = SpriteLoader.load(name);
+
+        return new Sprite(image, 0, 0, image.getWidth(), image.getHeight());
+    }
+
+    /**
+     * Where to find a sprite's image, along with the height it's drawn at
+     */
+
+    private static class Sprite {
+
+        private final Image image;
+        private final double x;
+        private final double y;
+        private final double width;
+        private final double height;
+        private final double drawHeight;
+
+        Sprite(Image image, double x, double y, double width, double height) {
+            this.image = image;
+            this.x = x;
+            this.y = y;
+            this.width = width;
+            this.height = height;
+
+            // Keep the image's aspect ratio, as EntityView does
+            this.drawHeight = width > 0 ? SPRITE_WIDTH * height / width : SPRITE_WIDTH;
+        }
+    }
+}
@@ -0,0 +1,18 @@
+package uk.ac.reading.vv008146.project.ui;
+
+/**
+ * How much detail entities are drawn with. Less detail is used as the camera zooms out, where sprites
+ * would be too small to make out and too many to draw.
+ */
+
+public enum DetailLevel {
+
+    // Each entity is drawn with its sprite
+    SPRITES,
+
+    // Each entity is drawn as a small coloured point, coloured by species
+    POINTS,
+
+    // Entities aren't drawn individually, the world is shaded by how many entities are in each area
+    HEATMAP
+}
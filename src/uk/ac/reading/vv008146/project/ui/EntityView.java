@@ -14,6 +14,9 @@ public class EntityView {
     protected ImageView sprite;
     protected Entity entity;
 
+    // Last frame the view was shown on screen
+    private int lastShownFrame;
+
     /**
      * Declare an EntityView for the given entity.
      * @param e Entity to link to
@@ -26,8 +29,19 @@ public class EntityView {
         this.sprite = new ImageView(SpriteLoader.load(e.getSpriteName()));
         this.sprite.setPreserveRatio(true);
         this.sprite.setFitWidth(25);
-        this.sprite.setX(e.getPosition().getX());
-        this.sprite.setY(e.getPosition().getY());
+    }
+
+    /**
+     * Move the sprite. Positions come from a RenderSnapshot rather than the entity, which may be part way
+     * through a tick on the simulation thread.
+     *
+     * @param x double X position in world
+     * @param y double Y position in world
+     */
+
+    public void moveTo(double x, double y) {
+        this.sprite.setX(x);
+        this.sprite.setY(y);
     }
 
     /**
@@ -48,6 +62,24 @@ public class EntityView {
         return entity;
     }
 
+    /**
+     * Get the last frame the view was shown on
+     * @return int frame number
+     */
+
+    public int getLastShownFrame() {
+        return lastShownFrame;
+    }
+
+    /**
+     * Set the last frame the view was shown on
+     * @param lastShownFrame int frame number
+     */
+
+    public void setLastShownFrame(int lastShownFrame) {
+        this.lastShownFrame = lastShownFrame;
+    }
+
     /**
      * Set the entity represented by this view.
      * @param entity Entity to represent
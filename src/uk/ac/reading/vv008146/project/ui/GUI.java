@@ -18,8 +18,10 @@ import javafx.stage.FileChooser;
 import javafx.stage.Modality;
 import javafx.stage.Stage;
 import uk.ac.reading.vv008146.project.World;
-import uk.ac.reading.vv008146.project.entities.Entity;
 import uk.ac.reading.vv008146.project.entities.GraveMarker;
+import uk.ac.reading.vv008146.project.simulation.RenderSnapshot;
+import uk.ac.reading.vv008146.project.simulation.SimulationThread;
+import uk.ac.reading.vv008146.project.utilities.SpriteAtlas;
 
 import java.io.File;
 import java.net.URISyntaxException;
@@ -39,6 +41,10 @@ public class GUI extends Application {
     private MenuBar menuBar;
     private AnimationTimer simulationTimer;
 
+    // Simulates the world away from the FX thread, so menus and dialogs stay responsive during slow ticks
+    private SimulationThread simulationThread;
+    private double speed;
+
     private Preferences preferences;
 
     private boolean simulate;
@@ -46,9 +52,15 @@ public class GUI extends Application {
 
     private World simulatedWorld;
 
-    private List<EntityView> views;
+    private WorldRenderer renderer;
+    private SpriteAtlas spriteAtlas;
+    private NoiseOverlay noiseOverlay;
+    private SaveStatus saveStatus;
+    private Camera camera;
 
-    private Random rng;
+    // Last mouse position while the world is being dragged
+    private double dragX;
+    private double dragY;
 
     /**
      * Open the GUI
@@ -62,8 +74,11 @@ public class GUI extends Application {
         // preferences used to access first-run settings and whatnot
         this.preferences = Preferences.userRoot().node("life-simulation");
         this.setupPreferences();
-        this.views = new ArrayList<EntityView>();
-        this.rng = new Random();
+        this.camera = new Camera();
+        this.renderer = this.createRenderer();
+        this.noiseOverlay = new NoiseOverlay();
+        this.noiseOverlay.getNode().getTransforms().add(this.camera.getTransform());
+        this.saveStatus = new SaveStatus();
 
         // Set the window title
         this.primaryStage = primaryStage;
@@ -75,6 +90,7 @@ public class GUI extends Application {
 
         // Disable simulation initially
         this.simulate = false;
+        this.speed = 1;
 
         // Setup a border pane to add UI elements to
         BorderPane root = new BorderPane();
@@ -83,6 +99,7 @@ public class GUI extends Application {
         // Set the menu bar and canvas position
         root.setCenter(worldCanvas);
         root.setTop(menuBar);
+        root.setBottom(this.saveStatus.getNode());
 
         // Show the GUI
         primaryStage.setScene(scene);
@@ -95,14 +112,10 @@ public class GUI extends Application {
 
             @Override
             public void handle(long now) {
-                // If the world is  simulating, update it
-                if(simulate) {
-                    simulatedWorld.simulateOutsideOfGrid();
-
-                    // Sync entities
-                    updateEntityViews();
-
-                }
+                // The world is simulated on its own thread, so all that's left to do here is draw the newest
+                // snapshot of it. Done even while paused, as the camera can still be moved
+                RenderSnapshot snapshot = simulationThread.getSnapshot();
+                renderer.render(snapshot, simulationThread.getAlpha(snapshot, System.nanoTime()));
             }
         };
     }
@@ -160,8 +173,11 @@ public class GUI extends Application {
             File file = fileChooser.showOpenDialog(primaryStage);
 
             if(file != null) {
-                this.simulatedWorld = World.load(file.getPath());
-                this.setupWorldCanvas();
+                // Loaded in the background, the current world carries on until the new one is ready
+                this.saveStatus.open(file, world -> {
+                    this.simulatedWorld = world;
+                    this.setupWorldCanvas();
+                });
             }
 
         });
@@ -173,7 +189,13 @@ public class GUI extends Application {
             FileChooser fileChooser = new FileChooser();
             fileChooser.setTitle("Open World");
             fileChooser.setInitialDirectory(new File(preferences.get("settings-directory", ".")));
-            this.simulatedWorld.save(fileChooser.showSaveDialog(primaryStage).getPath());
+            File file = fileChooser.showSaveDialog(primaryStage);
+
+            if(file != null && this.simulationThread != null) {
+                // Copied between ticks and written in the background, so neither the GUI nor the
+                // simulation waits for the file
+                this.saveStatus.save(this.simulationThread, file);
+            }
         });
 
         MenuItem exitItem = new MenuItem("Exit");
@@ -187,6 +209,17 @@ public class GUI extends Application {
         MenuItem debugArtifactsItem = new MenuItem("Show debugging artifacts");
 
         viewMenu.getItems().add(debugArtifactsItem);
+
+        // Drawing every entity onto one canvas is much faster than giving each its own node, but the old
+        // way of drawing is kept around in case it's needed
+        CheckMenuItem canvasRendererItem = new CheckMenuItem("Draw entities on a canvas");
+        canvasRendererItem.setSelected(this.preferences.getBoolean("canvas-renderer", true));
+
+        viewMenu.getItems().add(canvasRendererItem);
+        canvasRendererItem.setOnAction(actionEvent -> {
+            this.preferences.putBoolean("canvas-renderer", canvasRendererItem.isSelected());
+            this.switchRenderer();
+        });
         debugArtifactsItem.setOnAction(actionEvent -> {
             this.showDebuggingArtifacts = !this.showDebuggingArtifacts;
 
@@ -199,28 +232,14 @@ public class GUI extends Application {
                 debugArtifactsItem.setText(lbl1);
             }
 
-            double[][] noise = simulatedWorld.getNoise();
-
-            for(int x = 0; x < simulatedWorld.getWidth(); x++) {
-                for(int y = 0; y < simulatedWorld.getHeight(); y++) {
-
-                    if(noise[x][y] > 0.6) {
-                        Rectangle r = new Rectangle(x, y, 1, 1);
-                        r.setFill(Color.DARKGREEN);
-                        r.setOpacity(0.5);
-                        worldCanvas.getChildren().add(r);
-                    }
-
-                    if(noise[x][y] < -0.7) {
-                        Rectangle r = new Rectangle(x, y, 1, 1);
-                        r.setFill(Color.DEEPSKYBLUE);
-                        r.setOpacity(0.5);
-                        worldCanvas.getChildren().add(r);
-                    }
-                }
-            }
+            // The overlay is built in the background when the world is loaded, so this just shows it
+            this.noiseOverlay.setVisible(this.showDebuggingArtifacts);
         });
 
+        MenuItem resetCameraItem = new MenuItem("Reset camera");
+        resetCameraItem.setOnAction(actionEvent -> this.camera.reset());
+        viewMenu.getItems().add(resetCameraItem);
+
         // EDIT MENU
         Menu editMenu = new Menu("Edit");
 
@@ -272,7 +291,12 @@ public class GUI extends Application {
 
         MenuItem runItem = new MenuItem("Run");
         runItem.setOnAction(actionEvent -> {
+            if(this.simulationThread == null) {
+                return; // Nothing to run until a world has been created or opened
+            }
+
             this.simulate = true;
+            this.simulationThread.setRunning(true);
             pauseItem.setDisable(false);
             runItem.setDisable(true);
             mp.play();
@@ -280,6 +304,11 @@ public class GUI extends Application {
 
         pauseItem.setOnAction(actionEvent -> {
             this.simulate = false;
+
+            if(this.simulationThread != null) {
+                this.simulationThread.setRunning(false);
+            }
+
             pauseItem.setDisable(true);
             runItem.setDisable(false);
             mp.pause();
@@ -289,6 +318,26 @@ public class GUI extends Application {
 
         simulationMenu.getItems().add(pauseItem);
 
+        // Fast-forwarding runs more ticks per frame, so the results are the same as at normal speed
+        Menu speedMenu = new Menu("Speed");
+        ToggleGroup speedGroup = new ToggleGroup();
+
+        for(int speed : new int[] {1, 10, 100}) {
+            RadioMenuItem speedItem = new RadioMenuItem(speed + "x");
+            speedItem.setToggleGroup(speedGroup);
+            speedItem.setSelected(speed == 1);
+            speedItem.setOnAction(actionEvent -> {
+                this.speed = speed;
+
+                if(this.simulationThread != null) {
+                    this.simulationThread.setSpeed(speed);
+                }
+            });
+            speedMenu.getItems().add(speedItem);
+        }
+
+        simulationMenu.getItems().add(speedMenu);
+
         // HELP MENU
         Menu helpMenu = new Menu("Help");
 
@@ -375,6 +424,30 @@ public class GUI extends Application {
         placeholderText.setLayoutX(110);
         placeholderText.setLayoutY(100);
         worldCanvas.getChildren().add(placeholderText);
+
+        // Only draw inside the pane, however far the camera is zoomed in
+        Rectangle clip = new Rectangle();
+        clip.widthProperty().bind(worldCanvas.widthProperty());
+        clip.heightProperty().bind(worldCanvas.heightProperty());
+        worldCanvas.setClip(clip);
+
+        // The camera shows as much of the world as fits in the pane
+        worldCanvas.widthProperty().addListener((observable, oldWidth, newWidth) -> camera.setViewportSize(worldCanvas.getWidth(), worldCanvas.getHeight()));
+        worldCanvas.heightProperty().addListener((observable, oldHeight, newHeight) -> camera.setViewportSize(worldCanvas.getWidth(), worldCanvas.getHeight()));
+
+        // Drag to pan around the world, scroll to zoom in and out around the mouse
+        worldCanvas.setOnMousePressed(event -> {
+            this.dragX = event.getX();
+            this.dragY = event.getY();
+        });
+
+        worldCanvas.setOnMouseDragged(event -> {
+            this.camera.pan(event.getX() - this.dragX, event.getY() - this.dragY);
+            this.dragX = event.getX();
+            this.dragY = event.getY();
+        });
+
+        worldCanvas.setOnScroll(event -> this.camera.zoomAt(Math.pow(1.002, event.getDeltaY()), event.getX(), event.getY()));
     }
 
     /**
@@ -411,70 +484,71 @@ public class GUI extends Application {
     }
 
     /**
-     * Setup the entities in the world with EntityViews so that they can be displayed in the GUI.
-     * This method should only be run once a new world has been initialized.
+     * Create the renderer chosen in the user's preferences
+     * @return WorldRenderer
      */
 
-    private void setupEntityViews() {
-
-        this.views.clear();
+    private WorldRenderer createRenderer() {
+        if(this.preferences.getBoolean("canvas-renderer", true)) {
+            // Pack every sprite into one image the first time it's needed
+            if(this.spriteAtlas == null && this.preferences.getBoolean("sprite-atlas", true)) {
+                this.spriteAtlas = SpriteAtlas.build();
+            }
 
-        for(Entity e : simulatedWorld.getEntities().values()) {
-            EntityView view = new EntityView(e);
-            this.views.add(view);
+            return new CanvasRenderer(this.spriteAtlas, this.camera);
         }
 
-        for(EntityView v : this.views) {
-            this.worldCanvas.getChildren().add(v.getSprite());
-        }
+        return new NodeRenderer(this.camera);
     }
 
     /**
-     * Setup the Pane used for drawing the world, in preparation for some simulations to be done.
-     * Starts the simulation timer, but does not start the simulation (simulate flag is still false)
+     * Swap the current renderer for the one chosen in the user's preferences. The new renderer is placed
+     * underneath anything else in the world pane, e.g. debugging artifacts.
      */
 
-    private void setupWorldCanvas() {
-        this.worldCanvas.getChildren().clear();
-        this.worldCanvas.setStyle("-fx-background-color: mediumspringgreen");
-        this.setupEntityViews();
+    private void switchRenderer() {
+        WorldRenderer newRenderer = this.createRenderer();
 
-        this.simulate = false;
-        this.simulationTimer.start();
+        if(this.simulatedWorld != null) {
+            int index = Math.max(0, this.worldCanvas.getChildren().indexOf(this.renderer.getNode()));
+
+            this.worldCanvas.getChildren().remove(this.renderer.getNode());
+            newRenderer.render(this.simulationThread.getSnapshot(), 1);
+            this.worldCanvas.getChildren().add(index, newRenderer.getNode());
+        }
+
+        this.renderer = newRenderer;
     }
 
     /**
-     * Update the position and display of each EntityView with respect to the entity that it represents.
+     * Setup the Pane used for drawing the world, in preparation for some simulations to be done.
+     * Starts the simulation timer, but does not start the simulation (simulate flag is still false)
      */
 
-    private void updateEntityViews() {
-
-        ListIterator<EntityView> viewListIterator = this.views.listIterator();
-
-        while(viewListIterator.hasNext()) {
-            EntityView v = viewListIterator.next();
-
-            Entity e = this.simulatedWorld.getEntities().get(v.getEntity().getUuid());
+    private void setupWorldCanvas() {
+        // The old world's thread has to finish its tick before it's thrown away
+        if(this.simulationThread != null) {
+            this.simulationThread.stop();
+        }
 
-            if(e == null) {
-                // This entity has been removed from the world. Probably dead or eaten
-                viewListIterator.remove();
-                continue;
-            }
+        this.worldCanvas.getChildren().clear();
+        this.worldCanvas.setStyle("-fx-background-color: mediumspringgreen");
+        this.camera.reset();
 
-            if(e.getEnergy() <= 0) {
-                v.getSprite().setVisible(false);
+        this.simulationThread = new SimulationThread(this.simulatedWorld);
+        this.simulationThread.setSpeed(this.speed);
 
-                // Decide whether or not to respawn this entity (probably food)
-                if(rng.nextInt(1000) > 998) {
-                    e.setEnergy(15);
-                    v.getSprite().setVisible(true);
-                }
+        // Setup the renderer so that the world's entities can be displayed in the GUI
+        this.renderer.clear();
+        this.renderer.render(this.simulationThread.getSnapshot(), 1);
+        this.worldCanvas.getChildren().add(this.renderer.getNode());
 
-            }
+        // Build the noise map overlay now, so it's ready to show straight away
+        this.noiseOverlay.setWorld(this.simulatedWorld);
+        this.worldCanvas.getChildren().add(this.noiseOverlay.getNode());
 
-            v.getSprite().setX(e.getPosition().getX());
-            v.getSprite().setY(e.getPosition().getY());
-        }
+        this.simulate = false;
+        this.simulationThread.start();
+        this.simulationTimer.start();
     }
 }
@@ -0,0 +1,274 @@
+package uk.ac.reading.vv008146.project.ui;
+
+import javafx.scene.Group;
+import javafx.scene.Node;
+import uk.ac.reading.vv008146.project.entities.Entity;
+import uk.ac.reading.vv008146.project.simulation.RenderSnapshot;
+import uk.ac.reading.vv008146.project.simulation.SceneryLayer;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Draws each entity with its own EntityView in the scene graph. Simple, but JavaFX's layout and CSS passes
+ * slow right down past a few thousand entities, so CanvasRenderer should be preferred for large worlds.
+ *
+ * Views are only created and updated for entities the camera can see, and views that go off screen (or
+ * whose entity is eaten, dies or leaves the world) are thrown away, so entities off screen cost nothing
+ * per frame.
+ *
+ * Living beings are moved every frame. Food, obstacles and grave markers don't move, so their views are
+ * only touched when the snapshot says they've changed, or when the camera has moved far enough to show
+ * different cells.
+ */
+
+public class NodeRenderer implements WorldRenderer {
+
+    // Sprites go past the bottom right of an entity's position, see EntityView
+    private static final double SPRITE_WIDTH = 25;
+
+    private final Group sprites;
+    private final Group sceneryGroup;
+    private final Group beingGroup;
+    private final Camera camera;
+
+    private final Map<Entity, EntityView> beingViews;
+    private final Map<Entity, EntityView> sceneryViews;
+
+    // Views of beings shown on the last frame, and the ones being shown on this frame
+    private List<EntityView> shown;
+    private List<EntityView> showing;
+
+    // Sprites to take out of the scene graph at the end of a frame, removed all at once as removing them
+    // one at a time means searching the group for each
+    private final Set<Node> removed;
+
+    private int frame;
+
+    // The scenery as it was last synced, and the cells that were visible at the time
+    private SceneryLayer scenery;
+    private long sequence;
+    private int sync;
+    private int minColumn;
+    private int maxColumn;
+    private int minRow;
+    private int maxRow;
+
+    /**
+     * Create a renderer with nothing to draw
+     * @param camera Camera deciding which part of the world to draw
+     */
+
+    public NodeRenderer(Camera camera) {
+        this.sprites = new Group();
+        this.sceneryGroup = new Group();
+        this.beingGroup = new Group();
+        this.camera = camera;
+        this.beingViews = new IdentityHashMap<>();
+        this.sceneryViews = new IdentityHashMap<>();
+        this.shown = new ArrayList<>();
+        this.showing = new ArrayList<>();
+        this.removed = new HashSet<>();
+
+        // Beings are drawn over food. Sprites are placed in world coordinates, and follow the camera
+        this.sprites.getChildren().addAll(this.sceneryGroup, this.beingGroup);
+        this.sprites.getTransforms().add(camera.getTransform());
+    }
+
+    @Override
+    public Node getNode() {
+        return sprites;
+    }
+
+    @Override
+    public void clear() {
+        this.beingViews.clear();
+        this.sceneryViews.clear();
+        this.shown.clear();
+        this.sceneryGroup.getChildren().clear();
+        this.beingGroup.getChildren().clear();
+        this.scenery = null;
+    }
+
+    /**
+     * Update the views of visible entities from the snapshot, and remove views that have gone off screen.
+     *
+     * @param snapshot RenderSnapshot to draw
+     * @param alpha double how far through the next tick the simulation is, between 0 and 1
+     */
+
+    @Override
+    public void render(RenderSnapshot snapshot, double alpha) {
+        this.frame++;
+
+        // Sprites are drawn down and to the right of an entity's position, so look a sprite's width further
+        // up and left for entities that are only partly visible
+        int minColumn = snapshot.columnOf(camera.getMinX() - SPRITE_WIDTH);
+        int maxColumn = snapshot.columnOf(camera.getMaxX());
+        int minRow = snapshot.rowOf(camera.getMinY() - SPRITE_WIDTH);
+        int maxRow = snapshot.rowOf(camera.getMaxY());
+
+        if(snapshot.getScenery() != null) {
+            boolean sameCells = minColumn == this.minColumn && maxColumn == this.maxColumn && minRow == this.minRow && maxRow == this.maxRow;
+
+            this.minColumn = minColumn;
+            this.maxColumn = maxColumn;
+            this.minRow = minRow;
+            this.maxRow = maxRow;
+
+            if(snapshot.getScenery() != this.scenery || !sameCells || snapshot.getSequence() > this.sequence + 1) {
+                // Missed some changes, or there's more of the world on screen than there was
+                this.syncScenery(snapshot);
+            } else if(snapshot.getSequence() == this.sequence + 1) {
+                this.applySceneryChanges(snapshot);
+            }
+
+            this.sequence = snapshot.getSequence();
+        }
+
+        for(int row = minRow; row <= maxRow; row++) {
+            for(int column = minColumn; column <= maxColumn; column++) {
+                for(int i = snapshot.getCellStart(column, row); i < snapshot.getCellEnd(column, row); i++) {
+                    this.showBeing(snapshot, i, alpha);
+                }
+            }
+        }
+
+        // Any being shown last frame that wasn't shown this frame has gone off screen, or out of the world
+        for(EntityView v : this.shown) {
+            if(v.getLastShownFrame() != this.frame) {
+                this.removed.add(v.getSprite());
+                this.beingViews.remove(v.getEntity());
+            }
+        }
+
+        if(!this.removed.isEmpty()) {
+            this.beingGroup.getChildren().removeAll(this.removed);
+            this.removed.clear();
+        }
+
+        List<EntityView> swap = this.shown;
+        this.shown = this.showing;
+        this.showing = swap;
+        this.showing.clear();
+    }
+
+    private void showBeing(RenderSnapshot snapshot, int index, double alpha) {
+        Entity e = snapshot.getEntity(index);
+        EntityView v = this.beingViews.get(e);
+
+        if(v == null) {
+            v = new EntityView(e);
+            this.beingViews.put(e, v);
+            this.beingGroup.getChildren().add(v.getSprite());
+        }
+
+        double x = snapshot.getX(index);
+        double y = snapshot.getY(index);
+
+        v.moveTo(snapshot.getPreviousX(index) + (x - snapshot.getPreviousX(index)) * alpha, snapshot.getPreviousY(index) + (y - snapshot.getPreviousY(index)) * alpha);
+        v.setLastShownFrame(this.frame);
+
+        this.showing.add(v);
+    }
+
+    /**
+     * Make sure every visible food item, obstacle and grave marker in view has a view, and no others do
+     * @param snapshot RenderSnapshot to draw
+     */
+
+    private void syncScenery(RenderSnapshot snapshot) {
+        SceneryLayer layer = snapshot.getScenery();
+
+        if(layer != this.scenery) {
+            // Rebuilt after entities were added or removed, so start again
+            this.sceneryViews.clear();
+            this.sceneryGroup.getChildren().clear();
+            this.scenery = layer;
+        }
+
+        this.sync++;
+
+        for(int row = this.minRow; row <= this.maxRow; row++) {
+            for(int column = this.minColumn; column <= this.maxColumn; column++) {
+                int cell = row * layer.getColumns() + column;
+
+                for(int i = layer.getCellStart(cell); i < layer.getCellEnd(cell); i++) {
+                    if(snapshot.isSceneryVisible(i)) {
+                        this.showScenery(layer, i).setLastShownFrame(this.sync);
+                    }
+                }
+            }
+        }
+
+        Iterator<EntityView> views = this.sceneryViews.values().iterator();
+
+        while(views.hasNext()) {
+            EntityView v = views.next();
+
+            if(v.getLastShownFrame() != this.sync) {
+                this.removed.add(v.getSprite());
+                views.remove();
+            }
+        }
+
+        if(!this.removed.isEmpty()) {
+            this.sceneryGroup.getChildren().removeAll(this.removed);
+            this.removed.clear();
+        }
+    }
+
+    /**
+     * Show or hide only the scenery that has changed since the last snapshot
+     * @param snapshot RenderSnapshot to draw
+     */
+
+    private void applySceneryChanges(RenderSnapshot snapshot) {
+        SceneryLayer layer = snapshot.getScenery();
+
+        for(int i = 0; i < snapshot.getChangedSceneryCount(); i++) {
+            int index = snapshot.getChangedScenery(i);
+            int cell = layer.cellOf(index);
+            int column = cell % layer.getColumns();
+            int row = cell / layer.getColumns();
+
+            if(column < this.minColumn || column > this.maxColumn || row < this.minRow || row > this.maxRow) {
+                continue;
+            }
+
+            if(snapshot.isSceneryVisible(index)) {
+                this.showScenery(layer, index).setLastShownFrame(this.sync);
+            } else {
+                EntityView v = this.sceneryViews.remove(layer.getEntity(index));
+
+                if(v != null) {
+                    this.removed.add(v.getSprite());
+                }
+            }
+        }
+
+        if(!this.removed.isEmpty()) {
+            this.sceneryGroup.getChildren().removeAll(this.removed);
+            this.removed.clear();
+        }
+    }
+
+    private EntityView showScenery(SceneryLayer layer, int index) {
+        Entity e = layer.getEntity(index);
+        EntityView v = this.sceneryViews.get(e);
+
+        if(v == null) {
+            v = new EntityView(e);
+            v.moveTo(layer.getX(index), layer.getY(index));
+            this.sceneryViews.put(e, v);
+            this.sceneryGroup.getChildren().add(v.getSprite());
+        }
+
+        return v;
+    }
+}
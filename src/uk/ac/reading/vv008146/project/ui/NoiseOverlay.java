@@ -0,0 +1,136 @@
+package uk.ac.reading.vv008146.project.ui;
+
+import javafx.concurrent.Task;
+import javafx.scene.image.ImageView;
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.WritableImage;
+import javafx.scene.paint.Color;
+import uk.ac.reading.vv008146.project.World;
+
+/**
+ * Shows the world's noise map on top of the world, highlighting where food can grow and where water
+ * would be. The whole map is drawn into a single image, which is built on a background thread so large
+ * worlds don't freeze the GUI. Once built, the overlay can be shown and hidden without building it again.
+ */
+
+public class NoiseOverlay {
+
+    // Noise above this is where food grows, below the water threshold is water
+    private static final double FOOD_THRESHOLD = 0.6;
+    private static final double WATER_THRESHOLD = -0.7;
+
+    private static final int FOOD_COLOUR = argb(Color.DARKGREEN, 0.5);
+    private static final int WATER_COLOUR = argb(Color.DEEPSKYBLUE, 0.5);
+
+    private final ImageView view;
+
+    private Task<WritableImage> build;
+
+    /**
+     * Create an empty, hidden overlay
+     */
+
+    public NoiseOverlay() {
+        this.view = new ImageView();
+        this.view.setVisible(false);
+
+        // Don't get in the way of clicks on the world underneath
+        this.view.setMouseTransparent(true);
+    }
+
+    /**
+     * Get the node the overlay is drawn into
+     * @return ImageView
+     */
+
+    public ImageView getNode() {
+        return view;
+    }
+
+    /**
+     * Start building the overlay for a newly created or loaded world. Any overlay still being built for
+     * the previous world is abandoned. The image is shown as soon as it's ready, if the overlay is visible.
+     *
+     * @param world World to show the noise map of
+     */
+
+    public void setWorld(World world) {
+        if(this.build != null) {
+            this.build.cancel();
+        }
+
+        this.view.setImage(null);
+
+        int width = world.getWidth();
+        int height = world.getHeight();
+
+        Task<WritableImage> task = new Task<WritableImage>() {
+            @Override
+            protected WritableImage call() {
+                // Opened worlds only load their noise once it's asked for, so ask here rather than on the
+                // FX thread
+                double[][] noise = world.getNoise();
+
+                if(noise == null) {
+                    return null;
+                }
+
+                int[] pixels = new int[width * height];
+
+                for(int x = 0; x < width && !isCancelled(); x++) {
+                    for(int y = 0; y < height; y++) {
+                        if(noise[x][y] > FOOD_THRESHOLD) {
+                            pixels[y * width + x] = FOOD_COLOUR;
+                        } else if(noise[x][y] < WATER_THRESHOLD) {
+                            pixels[y * width + x] = WATER_COLOUR;
+                        }
+                    }
+                }
+
+                WritableImage image = new WritableImage(width, height);
+                image.getPixelWriter().setPixels(0, 0, width, height, PixelFormat.getIntArgbInstance(), pixels, 0, width);
+
+                return image;
+            }
+        };
+
+        // Runs on the FX thread. The build may have finished just as it was abandoned, so check it's
+        // still the current one
+        task.setOnSucceeded(event -> {
+            if(this.build == task) {
+                this.view.setImage(task.getValue());
+            }
+        });
+
+        this.build = task;
+
+        Thread thread = new Thread(task, "noise-overlay");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Check whether the overlay is being shown
+     * @return Boolean
+     */
+
+    public boolean isVisible() {
+        return this.view.isVisible();
+    }
+
+    /**
+     * Show or hide the overlay
+     * @param visible Boolean
+     */
+
+    public void setVisible(boolean visible) {
+        this.view.setVisible(visible);
+    }
+
+    private static int argb(Color colour, double opacity) {
+        return ((int) Math.round(opacity * 255) << 24)
+                | ((int) Math.round(colour.getRed() * 255) << 16)
+                | ((int) Math.round(colour.getGreen() * 255) << 8)
+                | (int) Math.round(colour.getBlue() * 255);
+    }
+}
@@ -0,0 +1,193 @@
+package uk.ac.reading.vv008146.project.ui;
+
+import javafx.application.Platform;
+import javafx.concurrent.Task;
+import javafx.geometry.Insets;
+import javafx.geometry.Pos;
+import javafx.scene.Node;
+import javafx.scene.control.Label;
+import javafx.scene.control.ProgressBar;
+import javafx.scene.layout.HBox;
+import uk.ac.reading.vv008146.project.World;
+import uk.ac.reading.vv008146.project.persistence.SnapshotFile;
+import uk.ac.reading.vv008146.project.persistence.WorldSnapshot;
+import uk.ac.reading.vv008146.project.simulation.SimulationThread;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/**
+ * Saves and opens worlds in the background, showing how far along they are in a bar along the bottom of
+ * the window.
+ *
+ * When saving, the world is copied between two ticks on the simulation thread, which is the only time
+ * it's guaranteed not to be half way through changing, and the copy is written to disk on a thread of its
+ * own while the simulation carries on.
+ *
+ * Opening a large world still means building every one of its entities, which can take a second or two,
+ * so it's done on a thread of its own and the new world is only swapped in once it's ready.
+ *
+ * Saves are written one after another in the order they were asked for, so saving twice to the same file
+ * always leaves the newest copy behind.
+ */
+
+public class SaveStatus {
+
+    private final HBox bar;
+    private final Label label;
+    private final ProgressBar progress;
+
+    private final ExecutorService executor;
+
+    // Saves and opens asked for that haven't finished yet
+    private int busy;
+
+    // How much of the save being written has been written, and whether that's waiting to be shown
+    private volatile double written;
+    private final AtomicBoolean reporting = new AtomicBoolean();
+
+    /**
+     * Create a hidden status bar with nothing being saved
+     */
+
+    public SaveStatus() {
+        this.label = new Label();
+        this.progress = new ProgressBar(0);
+        this.progress.setPrefWidth(200);
+
+        this.bar = new HBox(10, this.label, this.progress);
+        this.bar.setAlignment(Pos.CENTER_LEFT);
+        this.bar.setPadding(new Insets(4, 8, 4, 8));
+
+        // Take up no room while hidden
+        this.bar.setVisible(false);
+        this.bar.managedProperty().bind(this.bar.visibleProperty());
+
+        this.executor = Executors.newSingleThreadExecutor(task -> {
+            Thread thread = new Thread(task, "save");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Save the world being simulated by a thread to a file. Returns straight away, the save carries on in
+     * the background. Must be called from the FX thread.
+     *
+     * @param simulationThread SimulationThread simulating the world to save
+     * @param file File to save to
+     */
+
+    public void save(SimulationThread simulationThread, File file) {
+        this.show("Saving " + file.getName() + "...");
+
+        // Copied between the next two ticks, so the save holds the world as it was when it was asked for
+        // even if other saves are still being written. Fails straight away if the thread has been stopped
+        CompletableFuture<WorldSnapshot> snapshot = simulationThread.callBetweenTicks(() -> WorldSnapshot.capture(simulationThread.getWorld()));
+
+        snapshot.thenAcceptAsync(copy -> {
+            try {
+                SnapshotFile.write(copy, file.getPath(), this::report);
+            } catch(IOException e) {
+                throw new CompletionException(e);
+            }
+        }, this.executor).whenComplete((done, failure) -> Platform.runLater(() -> {
+            if(failure != null) {
+                failure.printStackTrace();
+                this.finished("Couldn't save " + file.getName());
+            } else {
+                this.finished("Saved " + file.getName());
+            }
+        }));
+    }
+
+    /**
+     * Show how much of a save has been written. Called on the saving thread, as often as the file is
+     * written to, so only the newest amount is passed on to the FX thread.
+     *
+     * @param written double from 0 to 1
+     */
+
+    private void report(double written) {
+        this.written = written;
+
+        if(this.reporting.compareAndSet(false, true)) {
+            Platform.runLater(() -> {
+                this.reporting.set(false);
+                this.progress.setProgress(this.written);
+            });
+        }
+    }
+
+    /**
+     * Open a world from a file, or the newest checkpoint in a directory. Returns straight away, and the
+     * world is given to opened on the FX thread once it's been loaded. Must be called from the FX thread.
+     *
+     * @param file File to open
+     * @param opened Consumer given the world once it's loaded
+     */
+
+    public void open(File file, Consumer<World> opened) {
+        Task<World> task = new Task<World>() {
+            @Override
+            protected World call() {
+                return World.load(file.getPath());
+            }
+        };
+
+        // Handlers run on the FX thread
+        task.setOnSucceeded(event -> {
+            if(task.getValue() == null) {
+                this.finished("Couldn't open " + file.getName());
+                return;
+            }
+
+            this.finished("Opened " + file.getName());
+            opened.accept(task.getValue());
+        });
+
+        task.setOnFailed(event -> {
+            task.getException().printStackTrace();
+            this.finished("Couldn't open " + file.getName());
+        });
+
+        this.show("Opening " + file.getName() + "...");
+
+        Thread thread = new Thread(task, "open");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void show(String message) {
+        this.label.setText(message);
+        this.progress.setProgress(ProgressBar.INDETERMINATE_PROGRESS);
+        this.progress.setVisible(true);
+        this.bar.setVisible(true);
+        this.busy++;
+    }
+
+    /**
+     * Get the status bar to show in the window
+     * @return Node
+     */
+
+    public Node getNode() {
+        return this.bar;
+    }
+
+    private void finished(String message) {
+        this.busy--;
+
+        // A later save or open may have taken over the bar already
+        if(this.busy == 0) {
+            this.label.setText(message);
+            this.progress.setVisible(false);
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package uk.ac.reading.vv008146.project.ui;
+
+import javafx.scene.Node;
+import uk.ac.reading.vv008146.project.simulation.RenderSnapshot;
+
+/**
+ * Draws the entities of a world in the GUI. The GUI places the renderer's node in the world pane, and
+ * asks the renderer to draw once per frame.
+ *
+ * Renderers draw from snapshots published by the simulation thread, and never touch the world itself, as
+ * it may be part way through a tick.
+ */
+
+public interface WorldRenderer {
+
+    /**
+     * Get the node the renderer draws into
+     * @return Node
+     */
+
+    Node getNode();
+
+    /**
+     * Forget everything drawn so far, e.g. when a new world is created or loaded
+     */
+
+    void clear();
+
+    /**
+     * Draw a snapshot of the world. Living beings are placed part of the way between where they were
+     * before the snapshot's tick and where they were after it.
+     *
+     * @param snapshot RenderSnapshot to draw
+     * @param alpha double how far through the next tick the simulation is, between 0 and 1
+     */
+
+    void render(RenderSnapshot snapshot, double alpha);
+}
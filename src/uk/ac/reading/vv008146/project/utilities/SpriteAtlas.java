@@ -0,0 +1,165 @@
+package uk.ac.reading.vv008146.project.utilities;
+
+import javafx.scene.image.Image;
+import javafx.scene.image.PixelReader;
+import javafx.scene.image.PixelWriter;
+import javafx.scene.image.WritableImage;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Packs many sprites into a single image. The sprites are scaled down to a fixed cell size as they're
+ * packed, so the atlas takes a fraction of the memory of the full size sprite images, and everything
+ * drawn from it shares a single texture.
+ */
+
+public class SpriteAtlas {
+
+    // Directories holding the application's sprites
+    public static final String[] SPRITE_DIRECTORIES = {"animals", "food", "objects"};
+
+    private final WritableImage image;
+    private final int cellSize;
+    private final Map<String, Region> regions;
+
+    /**
+     * Build an atlas of every sprite in the given directories of the JAR
+     *
+     * @param directories Directory names, e.g. "animals"
+     * @param cellSize int size (px) to scale each sprite to
+     * @return SpriteAtlas
+     */
+
+    public static SpriteAtlas build(String[] directories, int cellSize) {
+        List<String> names = new ArrayList<>();
+
+        for(String directory : directories) {
+            names.addAll(SpriteLoader.list(directory));
+        }
+
+        return new SpriteAtlas(names, cellSize);
+    }
+
+    /**
+     * Build an atlas of every sprite the application comes with
+     * @return SpriteAtlas
+     */
+
+    public static SpriteAtlas build() {
+        return build(SPRITE_DIRECTORIES, 64);
+    }
+
+    /**
+     * Build an atlas of the given sprites. Sprites are laid out in a square grid, one per cell.
+     *
+     * @param names List of sprite names, in the format SpriteLoader.load(String) takes
+     * @param cellSize int size (px) to scale each sprite to
+     */
+
+    public SpriteAtlas(List<String> names, int cellSize) {
+        this.cellSize = cellSize;
+        this.regions = new HashMap<>();
+
+        int columns = Math.max(1, (int) Math.ceil(Math.sqrt(names.size())));
+        int rows = Math.max(1, (names.size() + columns - 1) / columns);
+
+        this.image = new WritableImage(columns * cellSize, rows * cellSize);
+        PixelWriter writer = this.image.getPixelWriter();
+
+        for(int i = 0; i < names.size(); i++) {
+            // Let JavaFX scale the sprite while decoding it, rather than decoding the full size image
+            Image sprite = new Image(SpriteLoader.class.getResource("/" + names.get(i) + ".png").toString(), cellSize, cellSize, true, true);
+
+            if(sprite.isError()) {
+                continue;
+            }
+
+            PixelReader reader = sprite.getPixelReader();
+            int width = (int) sprite.getWidth();
+            int height = (int) sprite.getHeight();
+
+            int x = (i % columns) * cellSize;
+            int y = (i / columns) * cellSize;
+
+            writer.setPixels(x, y, width, height, reader, 0, 0);
+
+            this.regions.put(names.get(i), new Region(x, y, width, height));
+        }
+    }
+
+    /**
+     * Check whether a sprite is in the atlas
+     * @param name Sprite name
+     * @return Boolean
+     */
+
+    public boolean contains(String name) {
+        return this.regions.containsKey(name);
+    }
+
+    /**
+     * Get the packed image holding every sprite
+     * @return Image
+     */
+
+    public Image getImage() {
+        return image;
+    }
+
+    /**
+     * Get the size of each sprite's cell in the atlas
+     * @return int size (px)
+     */
+
+    public int getCellSize() {
+        return cellSize;
+    }
+
+    /**
+     * Get the part of the atlas a sprite was packed into
+     * @param name Sprite name
+     * @return Region or null if the sprite isn't in the atlas
+     */
+
+    public Region getRegion(String name) {
+        return this.regions.get(name);
+    }
+
+    /**
+     * The part of the atlas holding a single sprite
+     */
+
+    public static class Region {
+
+        private final int x;
+        private final int y;
+        private final int width;
+        private final int height;
+
+        Region(int x, int y, int width, int height) {
+            this.x = x;
+            this.y = y;
+            this.width = width;
+            this.height = height;
+        }
+
+        public int getX() {
+            return x;
+        }
+
+        public int getY() {
+            return y;
+        }
+
+        public int getWidth() {
+            return width;
+        }
+
+        public int getHeight() {
+            return height;
+        }
+    }
+}
@@ -2,21 +2,97 @@ package uk.ac.reading.vv008146.project.utilities;
 
 import javafx.scene.image.Image;
 
+import java.io.File;
+import java.io.IOException;
+import java.net.JarURLConnection;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
 /**
  * A utility class which loads sprites from the JAR given the appropriate name.
  */
 
 public class SpriteLoader {
 
+    // Sprites that have already been loaded, so each image is only decoded and held in memory once
+    private static final Map<String, Image> cache = new ConcurrentHashMap<>();
+
     /**
-     * Load a sprite from the JAR as a JavaFX image.
+     * Load a sprite from the JAR as a JavaFX image. Each sprite is only loaded once, later calls return
+     * the same image.
      *
      * @param name Sprite name (including directory, excluding type extension)
      * @return Image Loaded image
      */
 
     public static Image load(String name) {
-        return new Image(SpriteLoader.class.getResource("/" + name + ".png").toString());
+        return cache.computeIfAbsent(name, n -> new Image(SpriteLoader.class.getResource("/" + n + ".png").toString()));
+    }
+
+    /**
+     * Forget every loaded sprite, so they're loaded again the next time they're needed
+     */
+
+    public static void clearCache() {
+        cache.clear();
+    }
+
+    /**
+     * List the names of the sprites in a directory of the JAR, in the same format load(String) takes.
+     * Works whether the sprites are packed into a JAR or sitting in a directory on disk.
+     *
+     * @param directory Directory name, e.g. "animals"
+     * @return List of sprite names, e.g. "animals/cow"
+     */
+
+    public static List<String> list(String directory) {
+        URL url = SpriteLoader.class.getResource("/" + directory);
+        List<String> names = new ArrayList<>();
+
+        if(url == null) {
+            return names;
+        }
+
+        try {
+            if(url.getProtocol().equals("jar")) {
+                JarFile jar = ((JarURLConnection) url.openConnection()).getJarFile();
+                String prefix = directory + "/";
+
+                Enumeration<JarEntry> entries = jar.entries();
+
+                while(entries.hasMoreElements()) {
+                    String entry = entries.nextElement().getName();
+
+                    // Only sprites directly inside the directory
+                    if(entry.startsWith(prefix) && entry.endsWith(".png") && entry.indexOf('/', prefix.length()) < 0) {
+                        names.add(entry.substring(0, entry.length() - ".png".length()));
+                    }
+                }
+            } else {
+                File[] files = new File(url.toURI()).listFiles((dir, file) -> file.endsWith(".png"));
+
+                if(files != null) {
+                    for(File file : files) {
+                        names.add(directory + "/" + file.getName().substring(0, file.getName().length() - ".png".length()));
+                    }
+                }
+            }
+        } catch(IOException | URISyntaxException e) {
+            e.printStackTrace();
+        }
+
+        // Directory listings come back in any order
+        Collections.sort(names);
+
+        return names;
     }
 
 }